@@ -0,0 +1,227 @@
+package com.tangle.tanglelibrary;
+
+import android.os.Handler;
+
+import java.util.Arrays;
+
+/**
+ * Streams a continuous value, e.g. microphone level or acceleration, as event parameters.
+ * <p>
+ * Values offered between two ticks are decimated to {@code samplesPerFrame} slots, quantized to
+ * the 8 bit event parameter and dropped when they moved less than the deadband. The remaining
+ * samples of a tick go out as one payload of back to back emit event records, each stamped with a
+ * timeline time {@code playoutDelayMillis} ahead, so the controller plays them evenly spaced no
+ * matter how the ticks jitter. Frames the link has no room for are dropped, never queued.
+ */
+public class ChannelStreamer implements Runnable {
+
+    static final int FLAG_EMIT_EVENT = 253;
+    static final int RECORD_SIZE = 8;
+
+    public interface Sink {
+        /* false when the link has no room for the payload */
+        boolean offer(byte[] payload);
+    }
+
+    public interface ValueSource {
+        float getValue();
+    }
+
+    private final Sink sink;
+    private final CueScheduler.TimelineClock clock;
+    private final TangleMetrics.TimeSource timeSource;
+    private final int deviceId;
+    private final int code;
+    private final int frameMillis;
+    private final int samplesPerFrame;
+
+    private float minimum = 0;
+    private float maximum = 1;
+    private int deadband = 1;
+    private int playoutDelayMillis = 100;
+    private ValueSource source;
+
+    private final float[] sums;
+    private final int[] counts;
+    private long frameStart;
+    private int lastSent = -1;
+    private float lastValue;
+    private Handler handler;
+
+    private final LatencyHistogram jitter = new LatencyHistogram();
+    private long lastTickNanos = 0;
+    private long framesSent;
+    private long framesDropped;
+    private long samplesSent;
+    private long samplesFiltered;
+
+    public ChannelStreamer(Sink sink, CueScheduler.TimelineClock clock, int device_id, int code, int frameRateHz, int samplesPerFrame) {
+        this(sink, clock, System::nanoTime, device_id, code, frameRateHz, samplesPerFrame);
+    }
+
+    /* a frame is at least 1 ms, so the rate is 1..1000 Hz */
+    public ChannelStreamer(Sink sink, CueScheduler.TimelineClock clock, TangleMetrics.TimeSource timeSource, int device_id, int code, int frameRateHz, int samplesPerFrame) {
+        if (frameRateHz <= 0 || frameRateHz > 1000) {
+            throw new IllegalArgumentException("Frame rate " + frameRateHz + " Hz out of 1..1000");
+        }
+        if (samplesPerFrame <= 0) {
+            throw new IllegalArgumentException("Samples per frame " + samplesPerFrame + " is not positive");
+        }
+        this.sink = sink;
+        this.clock = clock;
+        this.timeSource = timeSource;
+        this.deviceId = device_id;
+        this.code = code;
+        this.frameMillis = 1000 / frameRateHz;
+        this.samplesPerFrame = samplesPerFrame;
+        this.sums = new float[samplesPerFrame];
+        this.counts = new int[samplesPerFrame];
+        this.frameStart = timeSource.nanoTime();
+    }
+
+    public synchronized void setRange(float minimum, float maximum) {
+        if (maximum == minimum) {
+            throw new IllegalArgumentException("Empty range " + minimum + ".." + maximum);
+        }
+        this.minimum = minimum;
+        this.maximum = maximum;
+    }
+
+    /* quantized steps a sample has to move to be sent */
+    public synchronized void setDeadband(int deadband) {
+        this.deadband = deadband;
+    }
+
+    public synchronized void setPlayoutDelay(int playoutDelayMillis) {
+        this.playoutDelayMillis = playoutDelayMillis;
+    }
+
+    /* polled once per tick when nothing was offered */
+    public synchronized void setSource(ValueSource source) {
+        this.source = source;
+    }
+
+    public synchronized void offer(float value) {
+        long elapsed = (timeSource.nanoTime() - frameStart) / 1000000;
+        int slot = (int) Math.min(samplesPerFrame - 1, Math.max(0, elapsed * samplesPerFrame / frameMillis));
+        sums[slot] += value;
+        counts[slot]++;
+        lastValue = value;
+    }
+
+    int quantize(float value) {
+        float normalized = (value - minimum) / (maximum - minimum);
+        return Math.max(0, Math.min(255, Math.round(normalized * 255)));
+    }
+
+    /* builds and offers the frame of the samples collected since the last tick */
+    public void tick() {
+        byte[] payload;
+        synchronized (this) {
+            long now = timeSource.nanoTime();
+            if (lastTickNanos != 0) {
+                jitter.record(Math.abs((now - lastTickNanos) / 1000 - frameMillis * 1000L));
+            }
+            lastTickNanos = now;
+            frameStart = now;
+
+            boolean offered = false;
+            for (int count : counts) {
+                offered |= count > 0;
+            }
+            if (!offered && source != null) {
+                lastValue = source.getValue();
+            }
+
+            int timeline = clock.getTime() + playoutDelayMillis;
+            byte[] records = new byte[samplesPerFrame * RECORD_SIZE];
+            int size = 0;
+            float value = lastValue;
+            for (int i = 0; i < samplesPerFrame; i++) {
+                if (counts[i] > 0) {
+                    value = sums[i] / counts[i];
+                }
+                sums[i] = 0;
+                counts[i] = 0;
+
+                int sample = quantize(value);
+                if (lastSent >= 0 && Math.abs(sample - lastSent) < deadband) {
+                    samplesFiltered++;
+                    continue;
+                }
+                lastSent = sample;
+                putRecord(records, size, sample, timeline + i * frameMillis / samplesPerFrame);
+                size += RECORD_SIZE;
+            }
+            if (size == 0) {
+                return;
+            }
+            payload = size == records.length ? records : Arrays.copyOf(records, size);
+        }
+        boolean sent = sink.offer(payload);
+        synchronized (this) {
+            if (sent) {
+                framesSent++;
+                samplesSent += payload.length / RECORD_SIZE;
+            } else {
+                framesDropped++;
+                /* make the next frame carry the current value again */
+                lastSent = -1;
+            }
+        }
+    }
+
+    private void putRecord(byte[] records, int index, int parameter, int timeline_timestamp) {
+        records[index] = (byte) FLAG_EMIT_EVENT;
+        records[index + 1] = (byte) deviceId;
+        records[index + 2] = (byte) code;
+        records[index + 3] = (byte) parameter;
+        TangleTime.encode(timeline_timestamp, records, index + 4);
+    }
+
+    public void start(Handler handler) {
+        synchronized (this) {
+            this.handler = handler;
+            lastTickNanos = 0;
+        }
+        handler.post(this);
+    }
+
+    public synchronized void stop() {
+        if (handler != null) {
+            handler.removeCallbacks(this);
+            handler = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        tick();
+        synchronized (this) {
+            if (handler != null) {
+                handler.postDelayed(this, frameMillis);
+            }
+        }
+    }
+
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public synchronized long getSamplesSent() {
+        return samplesSent;
+    }
+
+    public synchronized long getSamplesFiltered() {
+        return samplesFiltered;
+    }
+
+    /* deviation of the tick interval from the frame period, in microseconds */
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+}
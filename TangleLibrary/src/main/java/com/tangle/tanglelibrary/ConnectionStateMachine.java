@@ -0,0 +1,219 @@
+package com.tangle.tanglelibrary;
+
+/**
+ * Connection lifecycle of one Tangle device: connect, discover services, synchronize, ready.
+ * <p>
+ * A link that drops while the connection is wanted is reconnected with exponential backoff,
+ * only {@link #disconnect()} ends the connection for good. A setup that is not ready within the
+ * setup timeout, because a discovery, descriptor or sync callback never came, is aborted and
+ * reconnected the same way, as is a connection attempt that is not up within the connect timeout.
+ */
+public class ConnectionStateMachine {
+
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_DISCONNECTING = 3;
+    public static final int STATE_RECONNECTING = 4;
+    public static final int STATE_READY = 5;
+
+    public interface Link {
+        void connect();
+
+        void discoverServices();
+
+        /* sync clock and timeline, the link calls onSynchronized() once the device is in sync */
+        void resync();
+
+        void postDelayed(Runnable task, long delayMillis);
+
+        /* drops the link, it calls onDisconnected() once it is down */
+        void abort();
+
+        void onStateChanged(int state);
+    }
+
+    private final Link link;
+    private int state = STATE_DISCONNECTED;
+    private boolean wanted = false;
+    private int attempts = 0;
+    private int generation = 0;
+    private long initialBackoffMillis = 100;
+    private long maxBackoffMillis = 5000;
+    private long setupTimeoutMillis = 10000;
+    /* below the stack's own 30 s direct connect timeout */
+    private long connectTimeoutMillis = 15000;
+    private int setups = 0;
+    private int connects = 0;
+
+    public ConnectionStateMachine(Link link) {
+        this.link = link;
+    }
+
+    public synchronized void setBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /* from onConnected() until ready */
+    public synchronized void setSetupTimeout(long setupTimeoutMillis) {
+        this.setupTimeoutMillis = setupTimeoutMillis;
+    }
+
+    /* from link.connect() until onConnected(), 0 waits for the stack */
+    public synchronized void setConnectTimeout(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized int getAttempts() {
+        return attempts;
+    }
+
+    public boolean isReady() {
+        return getState() == STATE_READY;
+    }
+
+    public void connect() {
+        synchronized (this) {
+            wanted = true;
+            attempts = 0;
+            generation++;
+        }
+        setState(STATE_CONNECTING);
+        connectLink();
+    }
+
+    public void disconnect() {
+        synchronized (this) {
+            wanted = false;
+            generation++;
+            if (state == STATE_DISCONNECTED) {
+                return;
+            }
+        }
+        setState(STATE_DISCONNECTING);
+    }
+
+    public void onConnecting() {
+        synchronized (this) {
+            if (!wanted || state == STATE_RECONNECTING) {
+                return;
+            }
+        }
+        setState(STATE_CONNECTING);
+    }
+
+    public void onConnected() {
+        final int setup;
+        final long timeout;
+        synchronized (this) {
+            if (!wanted) {
+                return;
+            }
+            setup = ++setups;
+            timeout = setupTimeoutMillis;
+            /* the connection attempt is over */
+            connects++;
+        }
+        setState(STATE_CONNECTED);
+        link.postDelayed(() -> {
+            synchronized (this) {
+                if (!wanted || setups != setup || state != STATE_CONNECTED) {
+                    return;
+                }
+            }
+            link.abort();
+        }, timeout);
+        link.discoverServices();
+    }
+
+    public void onServicesDiscovered(boolean success) {
+        synchronized (this) {
+            if (!wanted || state != STATE_CONNECTED) {
+                return;
+            }
+        }
+        if (success) {
+            link.resync();
+        } else {
+            schedule(link::discoverServices);
+        }
+    }
+
+    public void onSynchronized() {
+        synchronized (this) {
+            if (!wanted || state != STATE_CONNECTED) {
+                return;
+            }
+            attempts = 0;
+        }
+        setState(STATE_READY);
+    }
+
+    public void onDisconnected() {
+        boolean reconnect;
+        synchronized (this) {
+            reconnect = wanted;
+            connects++;
+        }
+        if (!reconnect) {
+            setState(STATE_DISCONNECTED);
+            return;
+        }
+        setState(STATE_RECONNECTING);
+        schedule(this::connectLink);
+    }
+
+    private void connectLink() {
+        final int attempt;
+        final long timeout;
+        synchronized (this) {
+            attempt = ++connects;
+            timeout = connectTimeoutMillis;
+        }
+        if (timeout > 0) {
+            link.postDelayed(() -> {
+                synchronized (this) {
+                    if (!wanted || connects != attempt) {
+                        return;
+                    }
+                }
+                link.abort();
+            }, timeout);
+        }
+        link.connect();
+    }
+
+    long getBackoffMillis(int attempt) {
+        long backoff = initialBackoffMillis << Math.min(attempt, 16);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    private void schedule(Runnable task) {
+        final int scheduled;
+        final long delay;
+        synchronized (this) {
+            scheduled = generation;
+            delay = getBackoffMillis(attempts++);
+        }
+        link.postDelayed(() -> {
+            synchronized (this) {
+                if (!wanted || generation != scheduled) {
+                    return;
+                }
+            }
+            task.run();
+        }, delay);
+    }
+
+    private void setState(int state) {
+        synchronized (this) {
+            this.state = state;
+        }
+        link.onStateChanged(state);
+    }
+}
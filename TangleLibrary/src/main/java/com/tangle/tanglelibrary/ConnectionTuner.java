@@ -0,0 +1,105 @@
+package com.tangle.tanglelibrary;
+
+/**
+ * Picks the connection parameters from what the upload pipeline is doing: the bulk phase (high
+ * priority, 2M PHY where available) from the first queued upload until the queue drains, then
+ * balanced after a short idle time and low power after a long one. Short gaps between uploads or
+ * streamed events keep the bulk phase, so a stream does not renegotiate the interval on every frame.
+ * <p>
+ * Phases only apply while connected, every new connection is tuned again from its start.
+ */
+public class ConnectionTuner implements UploadPipeline.ActivityListener {
+
+    public static final int PHASE_NONE = 0;
+    public static final int PHASE_BULK = 1;
+    public static final int PHASE_BALANCED = 2;
+    public static final int PHASE_LOW_POWER = 3;
+
+    public interface Radio {
+        void setPhase(int phase);
+
+        void postDelayed(Runnable task, long delayMillis);
+    }
+
+    private final Radio radio;
+    private TangleMetrics metrics = new TangleMetrics();
+    private long balancedDelayMillis = 1000;
+    private long lowPowerDelayMillis = 30000;
+    private boolean connected;
+    private boolean busy;
+    private int phase = PHASE_NONE;
+    private int generation;
+
+    public ConnectionTuner(Radio radio) {
+        this.radio = radio;
+    }
+
+    public synchronized void setMetrics(TangleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /* idle times after the queue drained until balanced and until low power */
+    public synchronized void setDelays(long balancedDelayMillis, long lowPowerDelayMillis) {
+        this.balancedDelayMillis = balancedDelayMillis;
+        this.lowPowerDelayMillis = lowPowerDelayMillis;
+    }
+
+    public synchronized int getPhase() {
+        return phase;
+    }
+
+    public synchronized void onConnected() {
+        connected = true;
+        generation++;
+        if (busy) {
+            setPhase(PHASE_BULK);
+        } else {
+            setPhase(PHASE_BALANCED);
+            schedule(lowPowerDelayMillis, PHASE_LOW_POWER);
+        }
+    }
+
+    public synchronized void onDisconnected() {
+        connected = false;
+        generation++;
+        setPhase(PHASE_NONE);
+    }
+
+    @Override
+    public synchronized void onActivityChanged(boolean busy) {
+        this.busy = busy;
+        if (!connected) {
+            return;
+        }
+        generation++;
+        if (busy) {
+            setPhase(PHASE_BULK);
+        } else {
+            schedule(balancedDelayMillis, PHASE_BALANCED);
+            schedule(lowPowerDelayMillis, PHASE_LOW_POWER);
+        }
+    }
+
+    /* dropped when the activity changes before it is due */
+    private void schedule(long delayMillis, int phase) {
+        final int scheduled = generation;
+        radio.postDelayed(() -> {
+            synchronized (ConnectionTuner.this) {
+                if (scheduled == generation) {
+                    setPhase(phase);
+                }
+            }
+        }, delayMillis);
+    }
+
+    private void setPhase(int phase) {
+        if (phase == this.phase) {
+            return;
+        }
+        this.phase = phase;
+        if (phase != PHASE_NONE) {
+            radio.setPhase(phase);
+        }
+        metrics.onConnectionPhase(phase);
+    }
+}
@@ -0,0 +1,172 @@
+package com.tangle.tanglelibrary;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sends show cues ahead of time. Event cues go out up to {@code lookAheadMillis} before they are
+ * due, stamped with their timeline time, so the controller fires them on its synchronized
+ * timeline instead of whenever the phone gets to send them.
+ * <p>
+ * A timeline cue is applied by the controller on receipt, so it is sent when it is due with its
+ * timestamp corrected for the lateness, and no cue behind it is sent before it. The cues between
+ * its jump target and the corrected timestamp are overdue by then and go out right away, so a
+ * looping show resends its first cues on every pass. The timeline clock is expected to follow the
+ * timeline cues, e.g. a Stopwatch the sender updates.
+ */
+public class CueScheduler implements Runnable {
+
+    public interface Sender {
+        UploadFuture emitEvent(int device_id, int code, int parameter, int timeline_timestamp);
+
+        UploadFuture setTimeline(int timeline_timestamp, boolean timeline_paused);
+    }
+
+    public interface TimelineClock {
+        int getTime();
+    }
+
+    public static class Cue implements Comparable<Cue> {
+        static final int TYPE_EVENT = 0;
+        static final int TYPE_TIMELINE = 1;
+
+        final int time;
+        final int type;
+        final int deviceId;
+        final int code;
+        final int parameter;
+        final int timelineTimestamp;
+        final boolean timelinePaused;
+
+        private Cue(int time, int type, int deviceId, int code, int parameter, int timelineTimestamp, boolean timelinePaused) {
+            this.time = time;
+            this.type = type;
+            this.deviceId = deviceId;
+            this.code = code;
+            this.parameter = parameter;
+            this.timelineTimestamp = timelineTimestamp;
+            this.timelinePaused = timelinePaused;
+        }
+
+        public static Cue event(int time, int device_id, int code, int parameter) {
+            return new Cue(time, TYPE_EVENT, device_id, code, parameter, 0, false);
+        }
+
+        public static Cue timeline(int time, int timeline_timestamp, boolean timeline_paused) {
+            return new Cue(time, TYPE_TIMELINE, 0, 0, 0, timeline_timestamp, timeline_paused);
+        }
+
+        public int getTime() {
+            return time;
+        }
+
+        /* timeline order, the cues of a show must lie within 2^31 ms of each other */
+        @Override
+        public int compareTo(Cue other) {
+            return TangleTime.compare(time, other.time);
+        }
+    }
+
+    private final Sender sender;
+    private final TimelineClock clock;
+    private final int lookAheadMillis;
+    private final List<Cue> cues = new ArrayList<>();
+    private int cursor = 0;
+    private int lastTime;
+    private boolean polled = false;
+    private Handler handler;
+
+    public CueScheduler(Sender sender, TimelineClock clock, int lookAheadMillis) {
+        this.sender = sender;
+        this.clock = clock;
+        this.lookAheadMillis = lookAheadMillis;
+    }
+
+    public synchronized void setCues(List<Cue> cues) {
+        this.cues.clear();
+        this.cues.addAll(cues);
+        Collections.sort(this.cues);
+        cursor = 0;
+        polled = false;
+    }
+
+    /* sends everything due within the look-ahead window, returns the cues sent */
+    public synchronized int poll() {
+        int now = clock.getTime();
+        if (polled && TangleTime.isBefore(now, lastTime)) {
+            /* timeline went back, cues from there on are due again */
+            cursor = indexOf(now);
+        }
+        lastTime = now;
+        polled = true;
+
+        int sent = 0;
+        /* wraparound safe, the window carries on past the end of the timeline range */
+        while (cursor < cues.size() && TangleTime.diff(now, cues.get(cursor).time) <= lookAheadMillis) {
+            Cue cue = cues.get(cursor);
+            if (cue.type == Cue.TYPE_TIMELINE) {
+                if (TangleTime.isAfter(cue.time, now)) {
+                    break;
+                }
+                int target = cue.timelineTimestamp + TangleTime.diff(cue.time, now);
+                sender.setTimeline(target, cue.timelinePaused);
+                sent++;
+                /* from the jump target, the cues the lateness skipped are overdue and go out right away */
+                cursor = cue.timelineTimestamp == cue.time ? cursor + 1 : indexOf(cue.timelineTimestamp);
+                lastTime = target;
+                now = target;
+                continue;
+            }
+            sender.emitEvent(cue.deviceId, cue.code, cue.parameter, cue.time);
+            sent++;
+            cursor++;
+        }
+        return sent;
+    }
+
+    private int indexOf(int time) {
+        int low = 0;
+        int high = cues.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (TangleTime.isBefore(cues.get(middle).time, time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public synchronized boolean isFinished() {
+        return cursor >= cues.size();
+    }
+
+    /* refills the window from the handler, a few times per look-ahead period */
+    public void start(Handler handler) {
+        synchronized (this) {
+            this.handler = handler;
+        }
+        handler.post(this);
+    }
+
+    public synchronized void stop() {
+        if (handler != null) {
+            handler.removeCallbacks(this);
+            handler = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        poll();
+        synchronized (this) {
+            if (handler != null) {
+                handler.postDelayed(this, Math.max(10, lookAheadMillis / 4));
+            }
+        }
+    }
+}
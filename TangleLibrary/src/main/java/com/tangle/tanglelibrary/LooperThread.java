@@ -0,0 +1,64 @@
+package com.tangle.tanglelibrary;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/*
+ * A looper thread that starts on first use, one per connection. Once quit, getHandler() fails until
+ * start() is called for the next connection, timers posted meanwhile are dropped. Submissions made
+ * on it never wait for room in the upload pipeline.
+ */
+class LooperThread {
+
+    private final String name;
+    private HandlerThread thread;
+    private Handler handler;
+    private boolean quit;
+
+    LooperThread(String name) {
+        this.name = name;
+    }
+
+    synchronized void start() {
+        quit = false;
+        getHandler();
+    }
+
+    synchronized Handler getHandler() {
+        if (quit) {
+            throw new IllegalStateException(name + " was quit, the connection is closed");
+        }
+        if (thread == null) {
+            thread = new HandlerThread(name) {
+                @Override
+                protected void onLooperPrepared() {
+                    UploadPipeline.forbidWaiting();
+                }
+            };
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /* false when the thread was quit, the task is dropped */
+    synchronized boolean postDelayed(Runnable task, long delayMillis) {
+        return !quit && getHandler().postDelayed(task, delayMillis);
+    }
+
+    synchronized void removeCallbacks(Runnable task) {
+        if (handler != null) {
+            handler.removeCallbacks(task);
+        }
+    }
+
+    /* runs what is already due, drops delayed tasks */
+    synchronized void quit() {
+        quit = true;
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.tangle.tanglelibrary;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Decodes notifications of the terminal and sync characteristics. A notification carries one or more
+ * records back to back, each is its flag u8, the length of its body u8 and the body, fields are
+ * little endian:
+ * <pre>
+ * FLAG_ACK            247  8 bytes  payload uuid u32, bytes received u32
+ * FLAG_SYNC_REPLY     248  8 bytes  echoed clock u32, controller clock u32
+ * FLAG_DEVICE_STATUS  249  7 bytes  device id u8, battery % u8, temperature celsius i8, uptime ms u32
+ * FLAG_EMIT_EVENT     253  7 bytes  device id u8, code u8, parameter u8, timeline time i32, as emitEvent sends it
+ * </pre>
+ * These layouts are provisional, the controller firmware does not document its notifications yet.
+ * Flags 247 to 249 are also CHANNEL_* opcodes of TNGL, so a record whose length does not match its
+ * layout is skipped rather than decoded, like a record with an unknown flag. The service only decodes
+ * once setNotificationDecoding(true) was called.
+ * <p>
+ * Records are decoded straight from the notified bytes into one message object per type, which is
+ * reused for the next record. Listeners must copy what they want to keep. Decoding and dispatch are
+ * not thread safe, the service runs both on its notification thread.
+ */
+public class NotificationDecoder {
+    private static final String TAG = NotificationDecoder.class.getName();
+
+    public static final int FLAG_ACK = 247;
+    public static final int FLAG_SYNC_REPLY = 248;
+    public static final int FLAG_DEVICE_STATUS = 249;
+    public static final int FLAG_EMIT_EVENT = 253;
+
+    /* only the message types of interest need to be overridden */
+    public interface Listener {
+        default void onAck(Ack ack) {
+        }
+
+        default void onSyncReply(SyncReply reply) {
+        }
+
+        default void onDeviceStatus(DeviceStatus status) {
+        }
+
+        default void onEvent(ControllerEvent event) {
+        }
+    }
+
+    public static class Ack {
+        public long payloadUuid;
+        public long received;
+    }
+
+    public static class SyncReply {
+        public long echoedClock;
+        public long controllerClock;
+    }
+
+    public static class DeviceStatus {
+        public int deviceId;
+        public int battery;
+        public int temperature;
+        public long uptime;
+    }
+
+    public static class ControllerEvent {
+        public int deviceId;
+        public int code;
+        public int parameter;
+        public int timelineTime;
+    }
+
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Ack ack = new Ack();
+    private final SyncReply syncReply = new SyncReply();
+    private final DeviceStatus deviceStatus = new DeviceStatus();
+    private final ControllerEvent event = new ControllerEvent();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /* returns the number of records dispatched, unknown ones are skipped by their length, a truncated one ends the notification */
+    public int decode(byte[] value) {
+        if (value == null) {
+            return 0;
+        }
+        int records = 0;
+        int offset = 0;
+        while (offset < value.length) {
+            if (offset + 2 > value.length) {
+                Log.w(TAG, "Truncated notification record header");
+                break;
+            }
+            int flag = value[offset] & 0xFF;
+            int size = value[offset + 1] & 0xFF;
+            if (offset + 2 + size > value.length) {
+                Log.w(TAG, "Truncated notification record " + flag);
+                break;
+            }
+            if (size == getBodySize(flag)) {
+                dispatch(flag, value, offset + 2);
+                records++;
+            } else {
+                Log.d(TAG, "Skipped notification record " + flag + " of " + size + " bytes");
+            }
+            offset += 2 + size;
+        }
+        return records;
+    }
+
+    static int getBodySize(int flag) {
+        switch (flag) {
+            case FLAG_ACK:
+            case FLAG_SYNC_REPLY:
+                return 8;
+            case FLAG_DEVICE_STATUS:
+            case FLAG_EMIT_EVENT:
+                return 7;
+            default:
+                return -1;
+        }
+    }
+
+    private void dispatch(int flag, byte[] value, int offset) {
+        switch (flag) {
+            case FLAG_ACK:
+                ack.payloadUuid = TangleTime.decode(value, offset);
+                ack.received = TangleTime.decode(value, offset + 4);
+                for (Listener listener : listeners) {
+                    listener.onAck(ack);
+                }
+                break;
+            case FLAG_SYNC_REPLY:
+                syncReply.echoedClock = TangleTime.decode(value, offset);
+                syncReply.controllerClock = TangleTime.decode(value, offset + 4);
+                for (Listener listener : listeners) {
+                    listener.onSyncReply(syncReply);
+                }
+                break;
+            case FLAG_DEVICE_STATUS:
+                deviceStatus.deviceId = value[offset] & 0xFF;
+                deviceStatus.battery = value[offset + 1] & 0xFF;
+                deviceStatus.temperature = value[offset + 2];
+                deviceStatus.uptime = TangleTime.decode(value, offset + 3);
+                for (Listener listener : listeners) {
+                    listener.onDeviceStatus(deviceStatus);
+                }
+                break;
+            case FLAG_EMIT_EVENT:
+                event.deviceId = value[offset] & 0xFF;
+                event.code = value[offset + 1] & 0xFF;
+                event.parameter = value[offset + 2] & 0xFF;
+                event.timelineTime = TangleTime.decodeTimeline(value, offset + 3);
+                for (Listener listener : listeners) {
+                    listener.onEvent(event);
+                }
+                break;
+        }
+    }
+}
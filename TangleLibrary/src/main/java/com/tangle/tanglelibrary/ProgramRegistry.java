@@ -0,0 +1,128 @@
+package com.tangle.tanglelibrary;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers per device the last TNGL program queued for it and whether the device confirmed it,
+ * so uploading the program a device already runs (or is about to) can be skipped. Programs are
+ * told apart by their SHA-256, a skipped duplicate is delivered only once the upload that sends
+ * the program is.
+ * <p>
+ * Claims have to be made in the order the uploads are queued, the service makes them on the
+ * compile executor. A device is forgotten when its link drops, the controller may have been power
+ * cycled and lost its program.
+ */
+class ProgramRegistry {
+
+    private static class Program {
+        final ByteBuffer id;
+        /* the upload that sends the program */
+        final CompletableFuture<Void> upload;
+        boolean confirmed;
+
+        Program(ByteBuffer id, CompletableFuture<Void> upload) {
+            this.id = id;
+            this.upload = upload;
+        }
+    }
+
+    private static final ByteBuffer DONE = ByteBuffer.allocate(0);
+    private static final CompletableFuture<Void> DELIVERED = CompletableFuture.completedFuture(null);
+
+    private final Map<String, Program> latest = new HashMap<>();
+
+    /* SHA-256 of the program, compared by content */
+    static ByteBuffer getProgramId(ByteBuffer tngl) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(tngl.duplicate());
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            /* every Java platform has SHA-256 */
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Compile stage of a program upload. The compiled program is claimed for the device and released
+     * again when the future fails; a device that holds it or has it queued only gets the header, and
+     * the future then also waits for the upload that sends the program. Nothing is claimed once the
+     * future is done, e.g. cancelled, timed out or dropped while compiling.
+     */
+    Callable<ByteBuffer[]> compile(String device, ByteBuffer header, Callable<ByteBuffer> compiler,
+                                   UploadFuture future, TangleMetrics metrics) {
+        final AtomicReference<ByteBuffer> claimed = new AtomicReference<>();
+        /* registered first, so the registry is up to date before the caller's stages run */
+        future.whenComplete((result, error) -> {
+            ByteBuffer program = claimed.getAndSet(DONE);
+            if (program != null && program != DONE) {
+                onUploadDone(device, program, error == null);
+            }
+        });
+        return () -> {
+            ByteBuffer tngl = compiler.call();
+            ByteBuffer program = getProgramId(tngl);
+            if (future.isDone()) {
+                return null;
+            }
+            CompletableFuture<Void> original = claim(device, program, future);
+            if (original != null) {
+                metrics.onUploadSkipped();
+                future.after(original);
+                return new ByteBuffer[]{header};
+            }
+            if (!claimed.compareAndSet(null, program)) {
+                /* the future completed while claiming, it will not release the claim any more */
+                onUploadDone(device, program, false);
+                return null;
+            }
+            return new ByteBuffer[]{header, tngl};
+        };
+    }
+
+    /*
+     * Null when the program becomes the latest one of the device, sent by upload. When it already is,
+     * the upload that sends it, or a completed future once the device confirmed it.
+     */
+    synchronized CompletableFuture<Void> claim(String device, ByteBuffer program, CompletableFuture<Void> upload) {
+        Program current = latest.get(device);
+        if (current != null && current.id.equals(program)) {
+            return current.confirmed ? DELIVERED : current.upload;
+        }
+        latest.put(device, new Program(program, upload));
+        return null;
+    }
+
+    synchronized void onUploadDone(String device, ByteBuffer program, boolean delivered) {
+        Program current = latest.get(device);
+        if (current == null || !current.id.equals(program)) {
+            /* a newer program was queued meanwhile */
+            return;
+        }
+        if (delivered) {
+            current.confirmed = true;
+        } else {
+            latest.remove(device);
+        }
+    }
+
+    synchronized boolean isConfirmed(String device, ByteBuffer program) {
+        Program current = latest.get(device);
+        return current != null && current.id.equals(program) && current.confirmed;
+    }
+
+    synchronized void forget(String device) {
+        latest.remove(device);
+    }
+
+    synchronized void clear() {
+        latest.clear();
+    }
+}
@@ -0,0 +1,98 @@
+package com.tangle.tanglelibrary;
+
+import java.util.Locale;
+
+/**
+ * Keeps the last {@code capacity} span events and exports them in the Chrome trace event format,
+ * which chrome://tracing and Perfetto open as a timeline.
+ */
+public class RingBufferTracer implements TangleTracer {
+
+    static final char PHASE_BEGIN = 'B';
+    static final char PHASE_END = 'E';
+    static final char PHASE_ASYNC_BEGIN = 'b';
+    static final char PHASE_ASYNC_END = 'e';
+
+    private final TangleMetrics.TimeSource timeSource;
+    private final int capacity;
+    /* events recorded so far, the slot of an event is claimed and written under the same lock */
+    private long next;
+    private final long[] timestamps;
+    private final long[] threads;
+    private final long[] ids;
+    private final char[] phases;
+    private final String[] names;
+
+    public RingBufferTracer(int capacity) {
+        this(capacity, System::nanoTime);
+    }
+
+    public RingBufferTracer(int capacity, TangleMetrics.TimeSource timeSource) {
+        this.capacity = capacity;
+        this.timeSource = timeSource;
+        timestamps = new long[capacity];
+        threads = new long[capacity];
+        ids = new long[capacity];
+        phases = new char[capacity];
+        names = new String[capacity];
+    }
+
+    private synchronized void record(char phase, String name, long id) {
+        int index = (int) (next++ % capacity);
+        /* taken under the lock too, so the export is in timestamp order */
+        timestamps[index] = timeSource.nanoTime();
+        threads[index] = Thread.currentThread().getId();
+        ids[index] = id;
+        phases[index] = phase;
+        names[index] = name;
+    }
+
+    @Override
+    public void begin(String name) {
+        record(PHASE_BEGIN, name, 0);
+    }
+
+    @Override
+    public void end(String name) {
+        record(PHASE_END, name, 0);
+    }
+
+    @Override
+    public void asyncBegin(String name, long id) {
+        record(PHASE_ASYNC_BEGIN, name, id);
+    }
+
+    @Override
+    public void asyncEnd(String name, long id) {
+        record(PHASE_ASYNC_END, name, id);
+    }
+
+    public synchronized int size() {
+        return (int) Math.min(next, capacity);
+    }
+
+    public synchronized void clear() {
+        next = 0;
+    }
+
+    public synchronized String toChromeTrace() {
+        long count = next;
+        long first = Math.max(0, count - capacity);
+        StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+        for (long i = first; i < count; i++) {
+            int index = (int) (i % capacity);
+            if (i > first) {
+                json.append(',');
+            }
+            json.append("{\"name\":\"").append(names[index])
+                    .append("\",\"ph\":\"").append(phases[index])
+                    .append("\",\"ts\":").append(String.format(Locale.US, "%.3f", timestamps[index] / 1000.0))
+                    .append(",\"pid\":0,\"tid\":").append(threads[index]);
+            if (phases[index] == PHASE_ASYNC_BEGIN || phases[index] == PHASE_ASYNC_END) {
+                json.append(",\"cat\":\"tangle\",\"id\":").append(ids[index]);
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+}
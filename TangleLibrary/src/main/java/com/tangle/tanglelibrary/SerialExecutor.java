@@ -0,0 +1,40 @@
+package com.tangle.tanglelibrary;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/*
+ * Runs its tasks one at a time in submission order on a shared executor, so a connection keeps
+ * its compile order without owning a thread.
+ */
+class SerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+    SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNext();
+            }
+        });
+        if (active == null) {
+            scheduleNext();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            executor.execute(active);
+        }
+    }
+}
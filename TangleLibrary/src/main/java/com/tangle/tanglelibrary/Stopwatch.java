@@ -2,13 +2,14 @@ package com.tangle.tanglelibrary;
 
 import android.os.SystemClock;
 
+/* measures in long milliseconds, the int results are 32 bit timeline times that wrap like TangleTime */
 public class Stopwatch {
 
     boolean pause;
     boolean paused;
     long lastPauseTime;
     long startTime;
-    int time;
+    long time;
 
     public Stopwatch() {
         this.pause = true;
@@ -26,9 +27,9 @@ public class Stopwatch {
             if (!paused) {
                 time = 0;
             }
-            return time;
+            return (int) time;
         }
-        return time + (int) (SystemClock.elapsedRealtime() - startTime);
+        return (int) (time + (SystemClock.elapsedRealtime() - startTime));
     }
 
     public int stop() {
@@ -36,7 +37,7 @@ public class Stopwatch {
 
         paused = false;
         time = 0;
-        return time;
+        return (int) time;
     }
 
     public int pause() {
@@ -46,16 +47,20 @@ public class Stopwatch {
             lastPauseTime = SystemClock.elapsedRealtime();
             time += lastPauseTime - startTime;
         }
-        return time;
+        return (int) time;
     }
 
     public int getTime(){
+        return (int) getElapsedMillis();
+    }
+
+    public long getElapsedMillis() {
         if (pause){
             return time;
         } else if (!paused){
-            return (int) (SystemClock.elapsedRealtime() -startTime);
+            return SystemClock.elapsedRealtime() - startTime;
         } else {
-            return time + (int) (SystemClock.elapsedRealtime() - startTime);
+            return time + (SystemClock.elapsedRealtime() - startTime);
         }
     }
 }
@@ -1,66 +1,305 @@
 package com.tangle.tanglelibrary;
 
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothProfile;
 import android.content.Intent;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
-import java.util.UUID;
-
-public class TangleBluetoothLeService extends Service {
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TangleBluetoothLeService extends Service implements CueScheduler.Sender, ChannelStreamer.Sink {
     private final String TAG = TangleBluetoothLeService.class.getName();
-    public final int STATE_DISCONNECTED = 0;
-    public final int STATE_CONNECTING = 1;
-    public final int STATE_CONNECTED = 2;
-    public final int STATE_DISCONNECTING = 3;
+    public final int STATE_DISCONNECTED = ConnectionStateMachine.STATE_DISCONNECTED;
+    public final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+    public final int STATE_DISCONNECTING = ConnectionStateMachine.STATE_DISCONNECTING;
+    public final int STATE_RECONNECTING = ConnectionStateMachine.STATE_RECONNECTING;
+    public final int STATE_READY = ConnectionStateMachine.STATE_READY;
     final int FLAG_TNGL_BYTES = 251;
     final int FLAG_SET_TIMELINE = 252;
     final int FLAG_EMIT_EVENT = 253;
 
-    private boolean isDataSent = true;
-    private boolean isSynchronized = false;
     public boolean isConnecting = false;
-    private boolean paused = true;
-    private long time = 0;
-    private long startTime;
-    private long lastPauseTime;
-    private long pauseTime = 0;
-    private final asyncWriteThread tT;
-
-    static final long x7fffffff = Long.decode("0x7fffffff");
-    static final long xfff = Long.decode("0xffffffff");
-
-    private final UUID mDeviceUUID = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
-    private final UUID terminalCharacteristicUUID = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
-    private final UUID syncCharacteristicUUID = UUID.fromString("0000ffe2-0000-1000-8000-00805f9b34fb");
+    /* disconnect statuses after which the client is stuck, GATT_ERROR and failed pairing */
+    private static final int STATUS_GATT_ERROR = 133;
+    private static final int STATUS_AUTHENTICATION_FAILURE = 5;
+    private static final int STATUS_PIN_OR_KEY_MISSING = 6;
+    /* shared by all services, each compiles in order on it through its own SerialExecutor; idle threads time out */
+    private static final ThreadPoolExecutor COMPILE_POOL = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), task -> {
+                Thread thread = new Thread(task, "TangleCompile");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static {
+        COMPILE_POOL.allowCoreThreadTimeOut(true);
+    }
 
+    /* timers and reconnects of the connection, quit once it is closed; submissions run on the callers' threads */
+    private final LooperThread ioThread = new LooperThread("TangleIO");
+    private final LooperThread notificationThread = new LooperThread("TangleNotifications");
+    private final UploadPipeline pipeline;
+    private final ConnectionStateMachine connection;
+    private final ConnectionTuner tuner;
+    private final TangleMetrics metrics = new TangleMetrics();
+    private final TimelineManager timelines = new TimelineManager(this::getClockTimestamp);
+    private final ProgramRegistry programs = new ProgramRegistry();
+    private final NotificationDecoder notifications = new NotificationDecoder();
+    private long metricsInterval = 0;
+    private volatile long clockSyncNanos;
+    private volatile TangleTracer tracer = TangleTracer.NOOP;
+    private volatile TnglModules modules;
+    private volatile boolean notificationDecoding;
+
+    private BluetoothDevice bluetoothDevice;
     private BluetoothGatt bluetoothGatt;
+    private volatile TangleGattProfile gattProfile;
     private int connectionState = STATE_DISCONNECTED;
     private TangleBluetoothLeService.ChangeBtStateListener listener;
+    private TangleBluetoothLeService.ErrorListener errorListener;
 
     public TangleBluetoothLeService() {
-        tT = new asyncWriteThread();
-        tT.start();
+        pipeline = new UploadPipeline(this::writeFrame, new SerialExecutor(COMPILE_POOL), 4);
+        pipeline.setMetrics(metrics);
+        /* writeCharacteristic refuses while another GATT operation is outstanding */
+        pipeline.setRetryScheduler(ioThread::postDelayed);
+        connection = new ConnectionStateMachine(connectionLink);
+        tuner = new ConnectionTuner(radio);
+        tuner.setMetrics(metrics);
+        pipeline.setActivityListener(tuner);
+        notifications.addListener(new NotificationDecoder.Listener() {
+            @Override
+            public void onSyncReply(NotificationDecoder.SyncReply reply) {
+                /* the controller took its clock about half way through the round trip */
+                long roundTrip = TangleTime.elapsed(reply.echoedClock, getClockTimestamp());
+                metrics.setClockOffset(TangleTime.diff(TangleTime.add(reply.echoedClock, roundTrip / 2), reply.controllerClock));
+            }
+        });
     }
 
     public void connectBt(BluetoothDevice device) {
         isConnecting = true;
-        bluetoothGatt = device.connectGatt(this, false, gattCallback);
+        if (device != bluetoothDevice && bluetoothGatt != null) {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        }
+        bluetoothDevice = device;
+        /* the threads and the publisher of the last connection were quit when it closed */
+        ioThread.start();
+        notificationThread.start();
+        publishMetrics(metricsInterval);
+        connection.connect();
+    }
+
+    public TangleMetrics getMetrics() {
+        return metrics;
+    }
+
+    /* snapshots go to the TangleMetrics listeners every intervalMillis, 0 stops publishing */
+    public void publishMetrics(long intervalMillis) {
+        ioThread.removeCallbacks(metricsPublisher);
+        metricsInterval = intervalMillis;
+        if (intervalMillis > 0) {
+            ioThread.postDelayed(metricsPublisher, intervalMillis);
+        }
+    }
+
+    /*
+     * What write and upload calls do on the calling thread while the transmit queue is full,
+     * UploadPipeline.BACKPRESSURE_BLOCK by default: the call waits for room.
+     */
+    public void setBackpressure(int policy) {
+        pipeline.setBackpressure(policy);
+    }
+
+    private final Runnable metricsPublisher = new Runnable() {
+        @Override
+        public void run() {
+            metrics.publish();
+            if (metricsInterval > 0) {
+                ioThread.postDelayed(this, metricsInterval);
+            }
+        }
+    };
+
+    /*
+     * Notification records have a provisional layout (see NotificationDecoder), so they are only
+     * decoded once enabled here. Off by default, the clock offset metric then stays at zero.
+     */
+    public void setNotificationDecoding(boolean enabled) {
+        notificationDecoding = enabled;
+    }
+
+    /* acks, sync replies, device status and controller events, delivered on the notification thread */
+    public void addNotificationListener(NotificationDecoder.Listener listener) {
+        notifications.addListener(listener);
+    }
+
+    public void removeNotificationListener(NotificationDecoder.Listener listener) {
+        notifications.removeListener(listener);
     }
 
+    /* spans of the compile and upload stages, TangleTracer.NOOP by default */
+    public void setTracer(TangleTracer tracer) {
+        this.tracer = tracer;
+        pipeline.setTracer(tracer);
+    }
+
+    /* idle times after the last upload until the link is switched to balanced and to low power */
+    public void setConnectionTuning(long balancedDelayMillis, long lowPowerDelayMillis) {
+        tuner.setDelays(balancedDelayMillis, lowPowerDelayMillis);
+    }
+
+    /* 2M PHY stays when idle, it keeps the radio on for less time per byte than 1M */
+    private final ConnectionTuner.Radio radio = new ConnectionTuner.Radio() {
+        @Override
+        public void setPhase(int phase) {
+            BluetoothGatt gatt = bluetoothGatt;
+            if (gatt == null) {
+                return;
+            }
+            switch (phase) {
+                case ConnectionTuner.PHASE_BULK:
+                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+                    BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+                    if (adapter != null && adapter.isLe2MPhySupported()) {
+                        gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    }
+                    break;
+                case ConnectionTuner.PHASE_BALANCED:
+                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+                    break;
+                case ConnectionTuner.PHASE_LOW_POWER:
+                    gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER);
+                    break;
+            }
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            ioThread.postDelayed(task, delayMillis);
+        }
+    };
+
+    public void setReconnectBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+        connection.setBackoff(initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /* a connection not ready this long after it came up is dropped and reconnected */
+    public void setSetupTimeout(long setupTimeoutMillis) {
+        connection.setSetupTimeout(setupTimeoutMillis);
+    }
+
+    /* a connection attempt not up this long is dropped and retried, 0 waits for the stack */
+    public void setConnectTimeout(long connectTimeoutMillis) {
+        connection.setConnectTimeout(connectTimeoutMillis);
+    }
+
+    private static boolean isStuck(int status) {
+        return status == STATUS_GATT_ERROR || status == STATUS_AUTHENTICATION_FAILURE || status == STATUS_PIN_OR_KEY_MISSING;
+    }
+
+    private final ConnectionStateMachine.Link connectionLink = new ConnectionStateMachine.Link() {
+        @Override
+        public void connect() {
+            if (bluetoothGatt != null) {
+                /* reconnecting the same client keeps the services discovered before the dropout */
+                Log.i(TAG, "Reconnecting to GATT server: " + bluetoothGatt.connect());
+            } else if (bluetoothDevice != null) {
+                bluetoothGatt = bluetoothDevice.connectGatt(TangleBluetoothLeService.this, false, gattCallback);
+            }
+        }
+
+        @Override
+        public void discoverServices() {
+            BluetoothGatt gatt = bluetoothGatt;
+            if (gatt == null) {
+                return;
+            }
+            if (gatt.getService(TangleGattProfile.SERVICE_UUID) != null) {
+                Log.i(TAG, "Using cached services");
+                resolveProfile(gatt);
+            } else {
+                Log.i(TAG, "Attempting to start service discovery:" + gatt.discoverServices());
+            }
+        }
+
+        @Override
+        public void resync() {
+            /* clock and timeline go out first, then everything held back since the dropout */
+            pipeline.resume(() -> {
+                syncClock();
+                try {
+                    pipeline.submit(ByteBuffer.wrap(timelines.encodeAll()));
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "" + e);
+                }
+            });
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            ioThread.postDelayed(task, delayMillis);
+        }
+
+        /* a connect or setup callback never came, a fresh client does not inherit whatever the stack is stuck on */
+        @Override
+        public void abort() {
+            Log.w(TAG, "Connection attempt or setup timed out, reconnecting");
+            pipeline.pause();
+            gattProfile = null;
+            BluetoothGatt gatt = bluetoothGatt;
+            if (gatt != null) {
+                /* no disconnect callback is coming for a closed client */
+                gatt.disconnect();
+                gatt.close();
+                bluetoothGatt = null;
+            }
+            connection.onDisconnected();
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+            isConnecting = state == STATE_CONNECTING || state == STATE_RECONNECTING;
+            if (state == STATE_RECONNECTING || state == STATE_DISCONNECTED) {
+                /* the controller may come back power cycled, without the program it confirmed */
+                programs.forget(getDeviceKey());
+            }
+            if (state == STATE_CONNECTED) {
+                tuner.onConnected();
+            } else if (state != STATE_READY) {
+                tuner.onDisconnected();
+            }
+            if (state == STATE_DISCONNECTED) {
+                /* closed for good, a dropout reconnects on the same threads; quit first so no timer runs after the clear */
+                ioThread.quit();
+                notificationThread.quit();
+                pipeline.clear();
+            }
+            setConnectionState(state);
+        }
+    };
+
     public void setChangeBtStateListener(TangleBluetoothLeService.ChangeBtStateListener listener) {
         this.listener = listener;
     }
@@ -69,9 +308,63 @@ public class TangleBluetoothLeService extends Service {
         void onChangeBtState(int connectionState);
     }
 
+    public void setErrorListener(TangleBluetoothLeService.ErrorListener errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public interface ErrorListener {
+        void onError(TangleGattException error);
+    }
+
+    private void reportError(TangleGattException error) {
+        Log.e(TAG, "" + error);
+        if (errorListener != null) UploadPipeline.runWithoutWaiting(() -> errorListener.onError(error));
+    }
+
+    /* a connected device without the Tangle service will not grow one, give up on it */
+    private void resolveProfile(BluetoothGatt gatt) {
+        try {
+            TangleGattProfile profile = TangleGattProfile.resolve(gatt);
+            gattProfile = profile;
+            enableNotifications(profile, 0);
+        } catch (TangleGattException e) {
+            gattProfile = null;
+            reportError(e);
+            close();
+        }
+    }
+
+    /*
+     * One descriptor write at a time, each next one from onDescriptorWrite. The pipeline resumes only
+     * after the last, so the writes never collide with frames.
+     */
+    private void enableNotifications(TangleGattProfile profile, int index) {
+        List<BluetoothGattDescriptor> configs = profile.getNotificationConfigs();
+        for (; index < configs.size(); index++) {
+            BluetoothGattDescriptor config = configs.get(index);
+            BluetoothGatt gatt = profile.getGatt();
+            if (gatt.setCharacteristicNotification(config.getCharacteristic(), true)
+                    && config.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                    && gatt.writeDescriptor(config)) {
+                return;
+            }
+            Log.w(TAG, "Notifications were not enabled on " + config.getCharacteristic().getUuid());
+        }
+        connection.onServicesDiscovered(true);
+    }
+
+    /* value is the array the binder handed over, it is not reused, so it is decoded without a copy */
+    private void onNotification(byte[] value) {
+        if (!notificationDecoding) {
+            return;
+        }
+        notificationThread.postDelayed(() -> notifications.decode(value), 0);
+    }
+
     public void setConnectionState(int connectionState) {
         this.connectionState = connectionState;
-        if (listener != null) listener.onChangeBtState(connectionState);
+        /* often called on the Bluetooth callback thread, a write from the listener must not wait there */
+        if (listener != null) UploadPipeline.runWithoutWaiting(() -> listener.onChangeBtState(connectionState));
     }
 
     // Various callback methods defined by the BLE API.
@@ -80,22 +373,25 @@ public class TangleBluetoothLeService extends Service {
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             switch (newState) {
                 case BluetoothProfile.STATE_CONNECTING:
-                    setConnectionState(STATE_CONNECTING);
-                    isConnecting = true;
                     Log.i(TAG, "Connecting to GATT server.");
+                    connection.onConnecting();
                     break;
                 case BluetoothProfile.STATE_CONNECTED:
-                    setConnectionState(STATE_CONNECTED);
-                    isConnecting = false;
                     Log.i(TAG, "Connected to GATT server.");
-                    Log.i(TAG, "Attempting to start service discovery:" + bluetoothGatt.discoverServices());
+                    connection.onConnected();
                     break;
                 case BluetoothProfile.STATE_DISCONNECTED:
-                    setConnectionState(STATE_DISCONNECTED);
-                    isConnecting = false;
-                    Log.i(TAG, "Disconnected from GATT server.");
-                    bluetoothGatt.close();
-                    bluetoothGatt = null;
+                    Log.i(TAG, "Disconnected from GATT server, status " + status);
+                    pipeline.pause();
+                    gattProfile = null;
+                    if (isStuck(status) || connection.getState() == STATE_DISCONNECTING) {
+                        /* stuck or closed client, a reconnect needs a fresh one; after a supervision timeout or a remote close the same client reconnects */
+                        gatt.close();
+                        if (bluetoothGatt == gatt) {
+                            bluetoothGatt = null;
+                        }
+                    }
+                    connection.onDisconnected();
                     break;
                 case BluetoothProfile.STATE_DISCONNECTING:
                     setConnectionState(STATE_DISCONNECTING);
@@ -109,20 +405,10 @@ public class TangleBluetoothLeService extends Service {
         // New services discovered
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                new Thread(() -> {
-                    syncClock();
-                    while (!isSynchronized) {
-                        Log.i(TAG, "OnServiceDiscovered: Waiting for free corridor");
-                        try {
-                            Thread.sleep(10);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                    syncTimeline();
-                }).start();
+                resolveProfile(gatt);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
+                connection.onServicesDiscovered(false);
             }
         }
 
@@ -130,14 +416,32 @@ public class TangleBluetoothLeService extends Service {
         // Result of a characteristic read operation
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                final byte[] data = characteristic.getValue();
-                if (data != null && data.length > 0) {
-                    final StringBuilder stringBuilder = new StringBuilder(data.length);
-                    for (byte byteChar : data)
-                        stringBuilder.append(String.format("%02X ", byteChar));
-                    String extraData = new String(data) + "\n" + stringBuilder.toString();
-                    Log.d(TAG, extraData);
-                }
+                onNotification(characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            onNotification(characteristic.getValue());
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            Log.i(TAG, "PHY tx " + txPhy + " rx " + rxPhy + ", status " + status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            TangleGattProfile profile = gattProfile;
+            if (profile == null || profile.getGatt() != gatt) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Notifications were not enabled on " + descriptor.getCharacteristic().getUuid() + ", status " + status);
+            }
+            int index = profile.getNotificationConfigs().indexOf(descriptor);
+            if (index >= 0) {
+                enableNotifications(profile, index + 1);
             }
         }
 
@@ -147,11 +451,16 @@ public class TangleBluetoothLeService extends Service {
             final byte[] data = characteristic.getValue();
             if (data != null && data.length > 0) {
                 Log.d(TAG, "Wrote: " + logBytes(data));
-                isDataSent = true;
-            }
-            if (data[0] == 0) {
-                isSynchronized = true;
+                if (data.length == 4 && TangleGattProfile.SYNC_CHARACTERISTIC_UUID.equals(characteristic.getUuid())
+                        && status == BluetoothGatt.GATT_SUCCESS) {
+                    metrics.onClockSynchronized(clockSyncNanos);
+                }
+                if (data.length == 1 && data[0] == 0 && TangleGattProfile.SYNC_CHARACTERISTIC_UUID.equals(characteristic.getUuid())
+                        && status == BluetoothGatt.GATT_SUCCESS) {
+                    connection.onSynchronized();
+                }
             }
+            pipeline.onFrameWritten(status == BluetoothGatt.GATT_SUCCESS);
         }
 
     };
@@ -160,203 +469,175 @@ public class TangleBluetoothLeService extends Service {
         return connectionState;
     }
 
-    public void getPayloadFromTngl(byte[] tnglCode) {
-        final long syncTimestamp = getClockTimestamp();
+    public UploadFuture getPayloadFromTngl(byte[] tnglCode) {
+        return getPayloadFromTngl(ByteBuffer.wrap(tnglCode));
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            /* Timeline bytes */
-            outputStream.write(FLAG_SET_TIMELINE);
-            outputStream.write(longToBytes(syncTimestamp, 4));
-            outputStream.write(longToBytes(0, 4)); // timelineTimestamp
-            /* Timeline flag */
-            outputStream.write(getTimelineFlag(0, 0)); // 0 = main timeline, timelinePaused 0 = false; 1 = true;
-
-            outputStream.write(tnglCode); // tngl bytes
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
-        byte[] payload = outputStream.toByteArray();
-        write(payload);
+    public UploadFuture getPayloadFromTngl(byte[] tnglCode, int timeline_timestamp, boolean timeline_paused) {
+        return getPayloadFromTngl(ByteBuffer.wrap(tnglCode), timeline_timestamp, timeline_paused);
+    }
 
+    public UploadFuture getPayloadFromTngl(ByteBuffer tnglCode) {
+        return getPayloadFromTngl(tnglCode, 0, false);
     }
 
-    public void getPayloadFromTngl(byte[] tnglCode, int timeline_timestamp, boolean timeline_paused) {
+    /* tnglCode is sent as is, e.g. a scene slice of a mapped TnglBundle, without being copied into the payload */
+    public UploadFuture getPayloadFromTngl(ByteBuffer tnglCode, int timeline_timestamp, boolean timeline_paused) {
+        final ByteBuffer tngl = tnglCode.duplicate();
+        return uploadProgram(timeline_timestamp, timeline_paused, () -> tngl);
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            /* Timeline bytes */
-            outputStream.write(FLAG_SET_TIMELINE);
-            outputStream.write(longToBytes(getClockTimestamp(), 4));
-            outputStream.write(integerToBytes(timeline_timestamp, 4)); // timelineTimestamp
-            /* Timeline flag */
-            outputStream.write(getTimelineFlag(0, timeline_paused ? 1 : 0)); // 0 = main timeline, timelinePaused 0 = false; 1 = true;
-
-            outputStream.write(tnglCode); // tngl bytes
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
-        byte[] payload = outputStream.toByteArray();
-        write(payload);
+    /* whether the connected device confirmed this program as its latest upload */
+    public boolean holdsProgram(ByteBuffer tnglCode) {
+        return programs.isConfirmed(getDeviceKey(), ProgramRegistry.getProgramId(tnglCode));
+    }
 
+    /* after a controller was reset or reprogrammed elsewhere its programs have to be uploaded again */
+    public void forgetPrograms() {
+        programs.clear();
     }
 
-    public static class asyncWriteThread extends Thread {
-        public Handler mHandler;
+    private String getDeviceKey() {
+        BluetoothDevice device = bluetoothDevice;
+        return device != null ? device.getAddress() : "";
+    }
 
-        @Override
-        public void run() {
-            super.run();
-            Looper.prepare();
-            mHandler = new Handler();
-            Looper.loop();
+    /*
+     * The program is claimed on the compile executor, in queue order. A device that already holds it
+     * or has it queued only gets the timeline record.
+     */
+    private UploadFuture uploadProgram(int timeline_timestamp, boolean timeline_paused, Callable<ByteBuffer> compiler) {
+        final ByteBuffer header = ByteBuffer.wrap(getTimelineHeader(timeline_timestamp, timeline_paused));
+        final UploadFuture future = newUploadFuture();
+        try {
+            pipeline.submitProgram(future, programs.compile(getDeviceKey(), header, compiler, future, metrics));
+        } catch (InterruptedException e) {
+            Log.e(TAG, "" + e);
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
         }
+        return future;
     }
 
+    private UploadFuture newUploadFuture() {
+        final UploadFuture future = new UploadFuture(ioThread::postDelayed);
+        future.setCanceller(() -> pipeline.cancel(future));
+        return future;
+    }
 
-    public void write(byte[] payload) {
-
-        tT.mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                while (!isDataSent) {
-                    Log.i(TAG, "Write: Waiting for corridor");
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                isDataSent = false;
-
-                byte[] thisPayload = payload;
-                long payloadUuid = (long) (Math.random() * xfff);
-                int packetSize = 512;
-                int bytesSize = packetSize - 12;
-
-                int indexFrom = 0;
-                int indexTo = bytesSize;
-
-                BluetoothGattCharacteristic characteristic = bluetoothGatt.getService(mDeviceUUID).getCharacteristic(terminalCharacteristicUUID);
-                characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-
-                while (indexFrom < thisPayload.length) {
-                    if (indexTo > thisPayload.length) {
-                        indexTo = thisPayload.length;
-                    }
+    /* main timeline record in front of the tngl bytes */
+    private byte[] getTimelineHeader(int timeline_timestamp, boolean timeline_paused) {
+        timelines.get(0).set(timeline_timestamp, timeline_paused);
+        return timelines.encode(0);
+    }
 
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    try {
-                        outputStream.write(longToBytes(payloadUuid, 4));
-                        outputStream.write(longToBytes(indexFrom, 4));
-                        outputStream.write(longToBytes(thisPayload.length, 4));
-                        outputStream.write(Arrays.copyOfRange(thisPayload, indexFrom, indexTo));
-                    } catch (Exception e) {
-                        Log.e(TAG, "" + e);
-                    }
-                    byte[] bytes = outputStream.toByteArray();
+    public UploadFuture write(byte[] payload) {
+        return write(ByteBuffer.wrap(payload));
+    }
 
-                    try {
-                        Log.d(TAG, "Tray write: " + logBytes(bytes));
-                        characteristic.setValue(bytes);
-                    } catch (Exception e) {
-                        Log.e(TAG, "" + e);
-                    }
+    /*
+     * Parts are sent back to back as one payload, the future completes on the acknowledgement of its
+     * last chunk. Submitted on the calling thread, so a full transmit queue holds the caller back.
+     */
+    public UploadFuture write(ByteBuffer... parts) {
+        final UploadFuture future = newUploadFuture();
+        try {
+            pipeline.submit(future, parts);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "" + e);
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
 
-                    try {
-                        bluetoothGatt.writeCharacteristic(characteristic);
-                    } catch (Exception e) {
-                        Log.e(TAG, "Value was not wrote");
-                    }
+    /* for streamed data that is useless once late: never blocks and returns false when the link has no room */
+    @Override
+    public boolean offer(byte[] payload) {
+        return pipeline.offer(ByteBuffer.wrap(payload));
+    }
 
-                    indexFrom += bytesSize;
-                    indexTo = indexFrom + bytesSize;
-                }
-            }
+    /* compiles on the upload pipeline, so the program compiles while previous payloads are still being sent */
+    public UploadFuture uploadTngl(Reader tnglCode, int timeline_timestamp, boolean timeline_paused) {
+        return uploadProgram(timeline_timestamp, timeline_paused, () -> {
+            UploadPipeline.PayloadBuffer tngl = new UploadPipeline.PayloadBuffer(4096);
+            TangleParse parser = new TangleParse();
+            parser.setTracer(tracer);
+            parser.setModules(modules);
+            parser.getPayload(tnglCode, tngl);
+            return tngl.toByteBuffer();
         });
     }
 
-    public void syncClock() {
-        long clock_timestamp = getClockTimestamp();
-        BluetoothGattCharacteristic characteristic = bluetoothGatt.getService(mDeviceUUID).getCharacteristic(syncCharacteristicUUID);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    /* modules for the include lines of uploaded TNGL, their compiled fragments are reused across uploads */
+    public void setModules(TnglModules modules) {
+        this.modules = modules;
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            outputStream.write(longToBytes(clock_timestamp, 4));
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
-        byte[] bytes = outputStream.toByteArray();
+    /* the template is compiled once for all devices, only its slots are patched for this one */
+    public UploadFuture uploadTngl(TnglTemplate template, Map<String, Integer> values, int timeline_timestamp, boolean timeline_paused) {
+        return uploadProgram(timeline_timestamp, timeline_paused, () -> ByteBuffer.wrap(template.specialize(values)));
+    }
 
-        try {
-            Log.d(TAG, "Tray write: " + logBytes(bytes));
-            characteristic.setValue(bytes);
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
+    private boolean writeFrame(int target, byte[] frame) {
+        TangleGattProfile profile = gattProfile;
+        if (profile == null) {
+            return false;
         }
+        BluetoothGattCharacteristic characteristic = profile.getCharacteristic(target);
 
         try {
-            isDataSent = false;
-            bluetoothGatt.writeCharacteristic(characteristic);
-            new Thread(() -> {
-                while (!isDataSent) {
-                    Log.i(TAG, "syncClock: Waiting for freeCorridor");
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                // pro tam posilam nulu?
-                characteristic.setValue(new byte[]{0});
-                isDataSent = false;
-                bluetoothGatt.writeCharacteristic(characteristic);
-            }).start();
+            Log.d(TAG, "Tray write: " + logBytes(frame));
+            characteristic.setValue(frame);
+            return profile.getGatt().writeCharacteristic(characteristic);
         } catch (Exception e) {
             Log.e(TAG, "Value was not wrote");
+            return false;
         }
     }
 
-    public void syncTimeline() {
-
+    /* completes once both sync writes were acknowledged */
+    public UploadFuture syncClock() {
+        clockSyncNanos = metrics.now();
         long clock_timestamp = getClockTimestamp();
+        UploadFuture future = newUploadFuture();
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            /* Timeline bytes */
-            outputStream.write(FLAG_SET_TIMELINE);
-            outputStream.write(longToBytes(clock_timestamp, 4));
-            outputStream.write(longToBytes(0, 4)); // timelineTimestamp
-            /* Timeline flag */
-            outputStream.write(getTimelineFlag(0, 1)); // 0 = main timeline, Timeline paused 1 = paused | 0 = play
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
-        byte[] payload = outputStream.toByteArray();
+        pipeline.submitRaw(UploadPipeline.TARGET_SYNC, TangleTime.encode(clock_timestamp));
+        // pro tam posilam nulu?
+        pipeline.submitRaw(UploadPipeline.TARGET_SYNC, new byte[]{0}, future);
+        return future;
+    }
 
-        write(payload);
+    /* every timeline in use, as last set and advanced by the time it has been playing since */
+    public UploadFuture syncTimeline() {
+        return write(timelines.encodeAll());
     }
 
-    public void setTimeline(int timeline_timestamp, boolean timeline_paused) {
+    @Override
+    public UploadFuture setTimeline(int timeline_timestamp, boolean timeline_paused) {
+        return setTimeline(0, timeline_timestamp, timeline_paused);
+    }
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        try {
-            /* Timeline bytes */
-            outputStream.write(FLAG_SET_TIMELINE);
-            outputStream.write(longToBytes(getClockTimestamp(), 4));
-            outputStream.write(integerToBytes(timeline_timestamp, 4)); // timelineTimestamp
-            /* Timeline flag */
-            outputStream.write(getTimelineFlag(0, timeline_paused ? 1 : 0)); // 0 = main timeline, timelinePaused 0 = false; 1 = true;
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
-        byte[] payload = outputStream.toByteArray();
+    public UploadFuture setTimeline(int timelineIndex, int timeline_timestamp, boolean timeline_paused) {
+        timelines.get(timelineIndex).set(timeline_timestamp, timeline_paused);
+        return write(timelines.encode(timelineIndex));
+    }
 
-        write(payload);
+    public TimelineManager getTimelines() {
+        return timelines;
     }
 
-    public void emitEvent(int device_id, int code, int parameter, int timeline_timestamp) {
+    /* sends the timelines changed since the last flush as one payload */
+    public UploadFuture flushTimelines() {
+        byte[] payload = timelines.flush();
+        if (payload == null) {
+            return UploadFuture.completed(ioThread::postDelayed);
+        }
+        return write(payload);
+    }
+
+    @Override
+    public UploadFuture emitEvent(int device_id, int code, int parameter, int timeline_timestamp) {
 
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         try {
@@ -366,13 +647,13 @@ public class TangleBluetoothLeService extends Service {
             outputStream.write(code);
             outputStream.write(parameter);
             /* Timeline timestamp */
-            outputStream.write(integerToBytes(timeline_timestamp, 4)); // timelineTimestamp
+            outputStream.write(TangleTime.encode(timeline_timestamp)); // timelineTimestamp
         } catch (Exception e) {
             Log.e(TAG, "" + e);
         }
         byte[] payload = outputStream.toByteArray();
 
-        write(payload);
+        return write(payload);
     }
 
     public byte getTimelineFlag(int timelineIndex, int timelinePaused) {
@@ -399,15 +680,6 @@ public class TangleBluetoothLeService extends Service {
         return result;
     }
 
-    public byte[] doubleToBytes(long value, int byteCount) {
-        byte[] result = new byte[byteCount];
-        for (int i = 0; i < byteCount; i++) {
-            result[i] = (byte) (value & 0xFF);
-            value >>= Byte.SIZE;
-        }
-        return result;
-    }
-
     public ArrayList<Integer> logBytes(byte[] data) {
         ArrayList<Integer> bytes = new ArrayList<Integer>(data.length);
         if (data.length > 0) {
@@ -418,22 +690,50 @@ public class TangleBluetoothLeService extends Service {
         return bytes;
     }
 
+    /* the controller clock is 32 bit and wraps, compare and subtract its values with TangleTime */
     public long getClockTimestamp() {
-        return ((new Date().getTime() % x7fffffff));
+        return TangleTime.wrap(new Date().getTime());
     }
 
     public boolean isDataSent() {
-        return isDataSent;
+        return pipeline.isIdle();
     }
 
     public void close() {
         Log.d(TAG, "Call close");
+        boolean linkDown = connection.getState() == STATE_RECONNECTING;
+        connection.disconnect();
         if (bluetoothGatt == null) {
+            if (linkDown) {
+                connection.onDisconnected();
+            }
+            return;
+        }
+        if (linkDown) {
+            /* no disconnect callback is coming for a link that is already down */
+            bluetoothGatt.disconnect();
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+            connection.onDisconnected();
             return;
         }
         bluetoothGatt.disconnect();
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        connection.disconnect();
+        if (bluetoothGatt != null) {
+            bluetoothGatt.close();
+            bluetoothGatt = null;
+        }
+        gattProfile = null;
+        ioThread.quit();
+        notificationThread.quit();
+        pipeline.clear();
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
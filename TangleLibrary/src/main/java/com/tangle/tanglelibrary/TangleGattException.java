@@ -0,0 +1,30 @@
+package com.tangle.tanglelibrary;
+
+import java.util.UUID;
+
+public class TangleGattException extends Exception {
+
+    public static final int REASON_NOT_CONNECTED = 0;
+    public static final int REASON_SERVICE_MISSING = 1;
+    public static final int REASON_CHARACTERISTIC_MISSING = 2;
+
+    private static final long serialVersionUID = 1L;
+
+    private final int reason;
+    private final UUID uuid;
+
+    public TangleGattException(int reason, UUID uuid, String message) {
+        super(message);
+        this.reason = reason;
+        this.uuid = uuid;
+    }
+
+    public int getReason() {
+        return reason;
+    }
+
+    /* the missing service or characteristic, null when not connected */
+    public UUID getUuid() {
+        return uuid;
+    }
+}
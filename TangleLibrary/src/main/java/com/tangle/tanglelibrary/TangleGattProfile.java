@@ -0,0 +1,83 @@
+package com.tangle.tanglelibrary;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tangle service characteristics of one connected device, resolved once after service discovery
+ * and dropped when the device disconnects.
+ */
+public class TangleGattProfile {
+
+    public static final UUID SERVICE_UUID = UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb");
+    public static final UUID TERMINAL_CHARACTERISTIC_UUID = UUID.fromString("0000ffe1-0000-1000-8000-00805f9b34fb");
+    public static final UUID SYNC_CHARACTERISTIC_UUID = UUID.fromString("0000ffe2-0000-1000-8000-00805f9b34fb");
+    public static final UUID CLIENT_CONFIG_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothGatt gatt;
+    private final BluetoothGattCharacteristic terminalCharacteristic;
+    private final BluetoothGattCharacteristic syncCharacteristic;
+
+    private TangleGattProfile(BluetoothGatt gatt, BluetoothGattCharacteristic terminalCharacteristic, BluetoothGattCharacteristic syncCharacteristic) {
+        this.gatt = gatt;
+        this.terminalCharacteristic = terminalCharacteristic;
+        this.syncCharacteristic = syncCharacteristic;
+    }
+
+    public static TangleGattProfile resolve(BluetoothGatt gatt) throws TangleGattException {
+        if (gatt == null) {
+            throw new TangleGattException(TangleGattException.REASON_NOT_CONNECTED, null, "Not connected");
+        }
+        BluetoothGattService service = gatt.getService(SERVICE_UUID);
+        if (service == null) {
+            throw new TangleGattException(TangleGattException.REASON_SERVICE_MISSING, SERVICE_UUID, "Tangle service not found");
+        }
+        BluetoothGattCharacteristic terminal = getCharacteristic(service, TERMINAL_CHARACTERISTIC_UUID);
+        BluetoothGattCharacteristic sync = getCharacteristic(service, SYNC_CHARACTERISTIC_UUID);
+        terminal.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        sync.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        return new TangleGattProfile(gatt, terminal, sync);
+    }
+
+    private static BluetoothGattCharacteristic getCharacteristic(BluetoothGattService service, UUID uuid) throws TangleGattException {
+        BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+        if (characteristic == null) {
+            throw new TangleGattException(TangleGattException.REASON_CHARACTERISTIC_MISSING, uuid, "Characteristic " + uuid + " not found");
+        }
+        return characteristic;
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(int target) {
+        return target == UploadPipeline.TARGET_SYNC ? syncCharacteristic : terminalCharacteristic;
+    }
+
+    /* client configuration descriptors of the characteristics that notify, firmware without notifications has none */
+    public List<BluetoothGattDescriptor> getNotificationConfigs() {
+        List<BluetoothGattDescriptor> configs = new ArrayList<>(2);
+        for (BluetoothGattCharacteristic characteristic : new BluetoothGattCharacteristic[]{terminalCharacteristic, syncCharacteristic}) {
+            BluetoothGattDescriptor config = characteristic.getDescriptor(CLIENT_CONFIG_UUID);
+            if ((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 && config != null) {
+                configs.add(config);
+            }
+        }
+        return configs;
+    }
+
+    public BluetoothGattCharacteristic getTerminalCharacteristic() {
+        return terminalCharacteristic;
+    }
+
+    public BluetoothGattCharacteristic getSyncCharacteristic() {
+        return syncCharacteristic;
+    }
+}
@@ -0,0 +1,269 @@
+package com.tangle.tanglelibrary;
+
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and latency histograms of the BLE upload path. Recording is lock free, readers
+ * take {@link Snapshot}s which are also delivered to the registered listeners on {@link #publish()}.
+ * Latencies are kept in microseconds.
+ */
+public class TangleMetrics {
+
+    public interface TimeSource {
+        long nanoTime();
+    }
+
+    public interface Listener {
+        void onMetrics(Snapshot snapshot);
+    }
+
+    private final TimeSource timeSource;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    final AtomicLong bytesSent = new AtomicLong();
+    final AtomicLong chunksSent = new AtomicLong();
+    final AtomicLong uploads = new AtomicLong();
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong uploadsSkipped = new AtomicLong();
+    final AtomicLong uploadsCoalesced = new AtomicLong();
+    final AtomicLong uploadsDropped = new AtomicLong();
+    final AtomicLong queueDepth = new AtomicLong();
+    final AtomicLong maxQueueDepth = new AtomicLong();
+    final AtomicLong clockSyncDelay = new AtomicLong();
+    final AtomicLong clockOffset = new AtomicLong();
+    final AtomicLong connectionPhase = new AtomicLong();
+    final AtomicLong phaseChanges = new AtomicLong();
+    final AtomicLong phaseSince = new AtomicLong();
+    /* nanos spent in each ConnectionTuner phase before the current one */
+    final AtomicLongArray phaseNanos = new AtomicLongArray(4);
+
+    final LatencyHistogram uploadLatency = new LatencyHistogram();
+    final LatencyHistogram chunkRoundTrip = new LatencyHistogram();
+    final LatencyHistogram clockSyncLatency = new LatencyHistogram();
+
+    public TangleMetrics() {
+        this(System::nanoTime);
+    }
+
+    public TangleMetrics(TimeSource timeSource) {
+        this.timeSource = timeSource;
+        phaseSince.set(now());
+    }
+
+    public long now() {
+        return timeSource.nanoTime();
+    }
+
+    void onChunkSent(int bytes) {
+        chunksSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    void onChunkAcknowledged(long sentNanos) {
+        chunkRoundTrip.record((now() - sentNanos) / 1000);
+    }
+
+    void onRetry() {
+        retries.incrementAndGet();
+    }
+
+    /* the device already holds the program, only its timeline was sent */
+    void onUploadSkipped() {
+        uploadsSkipped.incrementAndGet();
+    }
+
+    void onUploadCoalesced() {
+        uploadsCoalesced.incrementAndGet();
+    }
+
+    /* refused or dropped by the backpressure policy of a full queue */
+    void onUploadDropped() {
+        uploadsDropped.incrementAndGet();
+    }
+
+    void onUploadDone(long submittedNanos) {
+        uploads.incrementAndGet();
+        uploadLatency.record((now() - submittedNanos) / 1000);
+    }
+
+    /* time from taking the clock timestamp until the device acknowledged it bounds the sync offset */
+    void onClockSynchronized(long timestampNanos) {
+        long delay = (now() - timestampNanos) / 1000;
+        clockSyncDelay.set(delay);
+        clockSyncLatency.record(delay);
+    }
+
+    /* controller clock minus phone clock as measured by the last sync reply, in ms */
+    void setClockOffset(long offsetMillis) {
+        clockOffset.set(offsetMillis);
+    }
+
+    void onConnectionPhase(int phase) {
+        long now = now();
+        int previous = (int) connectionPhase.getAndSet(phase);
+        phaseNanos.addAndGet(previous, now - phaseSince.getAndSet(now));
+        phaseChanges.incrementAndGet();
+    }
+
+    void setQueueDepth(int depth) {
+        queueDepth.set(depth);
+        long current;
+        while (depth > (current = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(current, depth)) {
+            // retry
+        }
+    }
+
+    /* including the time so far when it is the current phase */
+    long getPhaseMillis(int phase, long nowNanos) {
+        long nanos = phaseNanos.get(phase);
+        if (connectionPhase.get() == phase) {
+            nanos += nowNanos - phaseSince.get();
+        }
+        return nanos / 1000000;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public Snapshot publish() {
+        Snapshot snapshot = snapshot();
+        for (Listener listener : listeners) {
+            listener.onMetrics(snapshot);
+        }
+        return snapshot;
+    }
+
+    public void reset() {
+        bytesSent.set(0);
+        chunksSent.set(0);
+        uploads.set(0);
+        retries.set(0);
+        uploadsSkipped.set(0);
+        uploadsCoalesced.set(0);
+        uploadsDropped.set(0);
+        phaseChanges.set(0);
+        phaseSince.set(now());
+        for (int i = 0; i < phaseNanos.length(); i++) {
+            phaseNanos.set(i, 0);
+        }
+        maxQueueDepth.set(queueDepth.get());
+        uploadLatency.reset();
+        chunkRoundTrip.reset();
+        clockSyncLatency.reset();
+    }
+
+    public static class HistogramSnapshot {
+        public final long count;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        HistogramSnapshot(LatencyHistogram histogram) {
+            count = histogram.getCount();
+            mean = histogram.getMean();
+            p50 = histogram.getPercentile(50);
+            p90 = histogram.getPercentile(90);
+            p99 = histogram.getPercentile(99);
+            max = histogram.getMax();
+        }
+
+        void appendTo(StringBuilder text, String name) {
+            text.append(name).append("{quantile=\"0.5\"} ").append(p50).append('\n');
+            text.append(name).append("{quantile=\"0.9\"} ").append(p90).append('\n');
+            text.append(name).append("{quantile=\"0.99\"} ").append(p99).append('\n');
+            text.append(name).append("_max ").append(max).append('\n');
+            text.append(name).append("_mean ").append(String.format(Locale.US, "%.1f", mean)).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+        }
+    }
+
+    public static class Snapshot {
+        public final long timestampNanos;
+        public final long bytesSent;
+        public final long chunksSent;
+        public final long uploads;
+        public final long retries;
+        public final long uploadsSkipped;
+        public final long uploadsCoalesced;
+        public final long uploadsDropped;
+        public final long queueDepth;
+        public final long maxQueueDepth;
+        public final long clockSyncDelayMicros;
+        public final long clockOffsetMillis;
+        public final long connectionPhase;
+        public final long phaseChanges;
+        public final long bulkMillis;
+        public final long balancedMillis;
+        public final long lowPowerMillis;
+        public final HistogramSnapshot uploadLatency;
+        public final HistogramSnapshot chunkRoundTrip;
+        public final HistogramSnapshot clockSyncLatency;
+
+        Snapshot(TangleMetrics metrics) {
+            timestampNanos = metrics.now();
+            bytesSent = metrics.bytesSent.get();
+            chunksSent = metrics.chunksSent.get();
+            uploads = metrics.uploads.get();
+            retries = metrics.retries.get();
+            uploadsSkipped = metrics.uploadsSkipped.get();
+            uploadsCoalesced = metrics.uploadsCoalesced.get();
+            uploadsDropped = metrics.uploadsDropped.get();
+            queueDepth = metrics.queueDepth.get();
+            maxQueueDepth = metrics.maxQueueDepth.get();
+            clockSyncDelayMicros = metrics.clockSyncDelay.get();
+            clockOffsetMillis = metrics.clockOffset.get();
+            connectionPhase = metrics.connectionPhase.get();
+            phaseChanges = metrics.phaseChanges.get();
+            bulkMillis = metrics.getPhaseMillis(ConnectionTuner.PHASE_BULK, timestampNanos);
+            balancedMillis = metrics.getPhaseMillis(ConnectionTuner.PHASE_BALANCED, timestampNanos);
+            lowPowerMillis = metrics.getPhaseMillis(ConnectionTuner.PHASE_LOW_POWER, timestampNanos);
+            uploadLatency = new HistogramSnapshot(metrics.uploadLatency);
+            chunkRoundTrip = new HistogramSnapshot(metrics.chunkRoundTrip);
+            clockSyncLatency = new HistogramSnapshot(metrics.clockSyncLatency);
+        }
+
+        /* one "name value" pair per line, latencies in microseconds */
+        public String toText() {
+            StringBuilder text = new StringBuilder();
+            text.append("tangle_bytes_sent ").append(bytesSent).append('\n');
+            text.append("tangle_chunks_sent ").append(chunksSent).append('\n');
+            text.append("tangle_uploads ").append(uploads).append('\n');
+            text.append("tangle_retries ").append(retries).append('\n');
+            text.append("tangle_uploads_skipped ").append(uploadsSkipped).append('\n');
+            text.append("tangle_uploads_coalesced ").append(uploadsCoalesced).append('\n');
+            text.append("tangle_uploads_dropped ").append(uploadsDropped).append('\n');
+            text.append("tangle_queue_depth ").append(queueDepth).append('\n');
+            text.append("tangle_queue_depth_max ").append(maxQueueDepth).append('\n');
+            text.append("tangle_clock_sync_delay_us ").append(clockSyncDelayMicros).append('\n');
+            text.append("tangle_clock_offset_ms ").append(clockOffsetMillis).append('\n');
+            text.append("tangle_connection_phase ").append(connectionPhase).append('\n');
+            text.append("tangle_connection_phase_changes ").append(phaseChanges).append('\n');
+            text.append("tangle_connection_phase_ms{phase=\"bulk\"} ").append(bulkMillis).append('\n');
+            text.append("tangle_connection_phase_ms{phase=\"balanced\"} ").append(balancedMillis).append('\n');
+            text.append("tangle_connection_phase_ms{phase=\"low_power\"} ").append(lowPowerMillis).append('\n');
+            uploadLatency.appendTo(text, "tangle_upload_latency_us");
+            chunkRoundTrip.appendTo(text, "tangle_chunk_rtt_us");
+            clockSyncLatency.appendTo(text, "tangle_clock_sync_latency_us");
+            return text.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toText();
+        }
+    }
+}
@@ -2,11 +2,22 @@ package com.tangle.tanglelibrary;
 
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -14,6 +25,14 @@ public class TangleParse {
 
     final String TAG = this.getClass().getName();
 
+    /* where compile warnings go; the build time compiler runs on a plain JVM, where android.util.Log is a stub */
+    public interface Logger {
+        void warn(String message);
+    }
+
+    public static final Logger ANDROID_LOG = message -> Log.w(TangleParse.class.getName(), message);
+    public static final Logger STDERR = message -> System.err.println("warning: " + message);
+
     /* no code or command used by decoder as a validation */
 
     final static int MODIFIER_SWITCH_NONE = 0;
@@ -130,69 +149,130 @@ public class TangleParse {
     final static int END_OF_TNGL_BYTES = 255;
 
     ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    OutputStream output = payload;
+    TangleTracer tracer = TangleTracer.NOOP;
+    Logger logger = ANDROID_LOG;
+
+    /* $name or $name:type placeholders, see TnglTemplate */
+    final static Pattern SLOT = Pattern.compile("\\$([a-zA-Z_][a-zA-Z_0-9]*)(?::(u8|i32|rgb))?");
+    int written = 0;
+    Map<String, List<int[]>> slots = new LinkedHashMap<>();
+
+    /* include "name", macro name(parameters) ... endMacro, each on its own line, see TnglModules */
+    final static Pattern INCLUDE = Pattern.compile("\\s*include\\s+\"([\\w./-]+)\"\\s*(?://.*)?");
+    final static Pattern MACRO = Pattern.compile("\\s*macro\\s+([a-zA-Z_][a-zA-Z_0-9]*)\\s*\\(([^)]*)\\)\\s*(?://.*)?");
+    final static Pattern END_MACRO = Pattern.compile("\\s*endMacro\\s*(?://.*)?");
+    final static Pattern CALL = Pattern.compile("([a-zA-Z_][a-zA-Z_0-9]*)\\s*\\(");
+    final static int MAX_MACRO_DEPTH = 16;
+    TnglModules modules;
+    Map<String, TnglModules.Macro> macros = new HashMap<>();
+    Set<String> included = new HashSet<>();
+    List<TnglModules.Fragment> dependencies;
+
+    public void setTracer(TangleTracer tracer) {
+        this.tracer = tracer;
+    }
 
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public void setModules(TnglModules modules) {
+        this.modules = modules;
+    }
+
+    /* throws IllegalArgumentException naming the line of a TNGL mistake, see parseCode(String) */
     public byte[] getPayload(String code) {
         parseCode(code);
 
         return payload.toByteArray();
     }
 
-    private void fillCommand(int code) {
-        payload.write(code);
+    public void getPayload(Reader code, OutputStream out) throws IOException {
+        output = out;
+        reset();
+        try {
+            parseCode(code);
+        } finally {
+            output = payload;
+        }
     }
 
-    private void fillByte(byte value) {
-        payload.write(value);
+    /* module code without the tngl bytes framing, its includes are returned instead of emitted */
+    List<TnglModules.Fragment> getFragment(Reader code, OutputStream out) throws IOException {
+        output = out;
+        reset();
+        dependencies = new ArrayList<>();
+        try {
+            parseCode(code);
+            return dependencies;
+        } finally {
+            output = payload;
+            dependencies = null;
+        }
     }
 
-    private void fillBytes(byte[] value) {
-        for (byte b : value) {
-            payload.write(b);
-        }
+    private void reset() {
+        written = 0;
+        slots.clear();
+        macros.clear();
+        included.clear();
     }
 
-    private void fillUInt8(int value) {
-        payload.write(value);
+    public void getPayload(InputStream code, OutputStream out) throws IOException {
+        getPayload(new InputStreamReader(code, StandardCharsets.UTF_8), out);
     }
 
-    private void fillInt16(int value) {
+    private void fillCommand(int code) throws IOException {
+        output.write(code);
+        written++;
+    }
+
+    private void fillByte(byte value) throws IOException {
+        output.write(value);
+        written++;
+    }
+
+    private void fillBytes(byte[] value) throws IOException {
+        output.write(value);
+        written += value.length;
+    }
+
+    private void fillUInt8(int value) throws IOException {
+        output.write(value);
+        written++;
+    }
+
+    private void fillInt16(int value) throws IOException {
         byte[] result = new byte[2];
         for (int i = 0; i < 2; i++) {
             result[i] = (byte) (value & 0xFF);
             value >>= Byte.SIZE;
         }
-        try {
-            payload.write(result);
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
+        fillBytes(result);
     }
 
-    private void fillInt32(int value) {
+    private void fillInt32(int value) throws IOException {
         byte[] result = new byte[4];
         for (int i = 0; i < 4; i++) {
             result[i] = (byte) (value & 0xFF);
             value >>= Byte.SIZE;
         }
-        try {
-            payload.write(result);
-        } catch (Exception e) {
-            Log.e(TAG, "" + e);
-        }
+        fillBytes(result);
     }
 
-    private void fillRGB(String color) {
+    private void fillRGB(String color) throws IOException {
         if (color.length() == 7) {
             color = color.substring(1);
             fillUInt8(Integer.decode("#" + color.substring(0, 2)));
             fillUInt8(Integer.decode("#" + color.substring(2, 4)));
             fillUInt8(Integer.decode("#" + color.substring(4, 6)));
         } else {
-            Log.e(TAG, "fillRGB: Have wrong color stamp");
+            logger.warn("fillRGB: Have wrong color stamp");
         }
     }
 
-    private void fillString(String s) {
+    private void fillString(String s) throws IOException {
         byte[] result = new byte[8];
         if (s.length() >= 8) {
             for (int i = 0; i < 8; i++) {
@@ -203,20 +283,34 @@ public class TangleParse {
                 result[i] = (byte) s.charAt(i);
             }
         }
-        try {
-            payload.write(result);
-        } catch (IOException e) {
-            Log.e(TAG, "fillString: " + e);
-        }
+        fillBytes(result);
     }
 
-    private void fillPercentage(double percent) {
-        payload.write((int) Math.floor((percent / 100) * 255));
+    private void fillPercentage(double percent) throws IOException {
+        fillUInt8((int) Math.floor((percent / 100) * 255));
+    }
+
+    /* zeroed placeholder, its offset is recorded for TnglTemplate to patch */
+    private void fillSlot(String slot) throws IOException {
+        Matcher matcher = SLOT.matcher(slot);
+        if (!matcher.matches()) {
+            logger.warn("fillSlot: Have wrong slot " + slot);
+            return;
+        }
+        int type = TnglTemplate.getSlotType(matcher.group(2));
+        List<int[]> offsets = slots.get(matcher.group(1));
+        if (offsets == null) {
+            offsets = new ArrayList<>();
+            slots.put(matcher.group(1), offsets);
+        }
+        offsets.add(new int[]{written, type});
+        fillBytes(new byte[TnglTemplate.getSlotSize(type)]);
     }
 
     private Map<String, Pattern> setPatterns() {
         Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>();
         patterns.put("comment", Pattern.compile("\\/\\/[^\\n]*"));
+        patterns.put("slot", SLOT);
         patterns.put("htmlrgb", Pattern.compile("#([0-9a-f][0-9a-f])([0-9a-f][0-9a-f])([0-9a-f][0-9a-f])", Pattern.MULTILINE));
         patterns.put("string", Pattern.compile("\"([\\w ]*)\"", Pattern.MULTILINE));
         patterns.put("arrow", Pattern.compile("->"));
@@ -231,11 +325,16 @@ public class TangleParse {
         return patterns;
     }
 
+    /* raw lists kept for existing callers, the parser itself uses tokenize */
     public ArrayList<ArrayList> getToken(String code, Map<String, Pattern> patterns) {
+        return new ArrayList<ArrayList>(tokenize(code, patterns));
+    }
+
+    private static ArrayList<ArrayList<String>> tokenize(String code, Map<String, Pattern> patterns) {
         int codeLength;
         Matcher matcher;
         ArrayList<String> token = new ArrayList<>();
-        ArrayList<ArrayList> tokens = new ArrayList<>();
+        ArrayList<ArrayList<String>> tokens = new ArrayList<>();
 
         while (!code.isEmpty()) {
             codeLength = code.length();
@@ -264,300 +363,508 @@ public class TangleParse {
         return tokens;
     }
 
+    /* a broken include or macro is an IllegalArgumentException, truncated bytecode is never returned */
     public void parseCode(String code) {
-        setPatterns();
-        ArrayList<ArrayList> tokens = getToken(code, setPatterns());
         payload.reset();
+        output = payload;
+        reset();
+        try {
+            parseCode(new StringReader(code));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid TNGL: " + e.getMessage(), e);
+        }
+    }
 
-        fillCommand(FLAG_TNGL_BYTES);
+    public void parseCode(Reader code) throws IOException {
+        Map<String, Pattern> patterns = setPatterns();
+        BufferedReader reader = code instanceof BufferedReader ? (BufferedReader) code : new BufferedReader(code);
 
-        for (int i = 0; i < tokens.size(); i++) {
-            ArrayList<String> token = tokens.get(i);
-            switch (token.get(0)) {
-                case "whitespace":
-                    continue;
-                case "char":
-                    fillUInt8(token.get(1).charAt(0));
-                    break;
-                case "byte":
-                    fillUInt8(Integer.decode(token.get(1)));
-                    break;
-                case "string":
-                    String s = token.get(1);
-                    s = s.substring(1);
-                    s = s.substring(0, s.length() - 1);
-                    fillString(s);
-                    break;
-                case "punctuation":
-                    if (token.get(1).equals("}")) {
-                        fillCommand(END_OF_STATEMENT);
-                    }
-                    break;
-                case "word":
-                    switch (token.get(1)) {
-                        // === true, false ===
-                        case "true":
-                            fillUInt8(1);
-                            break;
-                        case "false":
-                            fillUInt8(0);
-                            break;
-                        // === canvas operations ===
-                        case "setDrawing":
-                            fillCommand(DRAWING_SET);
-                            break;
-                        case "addDrawing":
-                            fillCommand(DRAWING_ADD);
-                            break;
-                        case "subDrawing":
-                            fillCommand(DRAWING_SUB);
-                            break;
-                        case "scaDrawing":
-                            fillCommand(DRAWING_SCALE);
-                            break;
-                        case "filDrawing":
-                            fillCommand(DRAWING_FILTER);
-                            break;
-                        case "setWindow":
-                            fillCommand(WINDOW_SET);
-                            break;
-                        case "addWindow":
-                            fillCommand(WINDOW_ADD);
-                            break;
-                        case "subWindow":
-                            fillCommand(WINDOW_SUB);
-                            break;
-                        case "scaWindow":
-                            fillCommand(WINDOW_SCALE);
-                            break;
-                        case "filWindow":
-                            fillCommand(WINDOW_FILTER);
-                            break;
-                        // === time operations ===
-                        case "frame":
-                            fillCommand(FRAME);
-                            break;
-                        // === animations ===
-                        case "animNone":
-                            fillCommand(ANIMATION_NONE);
-                            break;
-                        case "animationDefined":
-                            fillCommand(ANIMATION_DEFINED);
-                            break;
-                        case "animFill":
-                            fillCommand(ANIMATION_FILL);
-                            break;
-                        case "animRainbow":
-                            fillCommand(ANIMATION_RAINBOW);
-                            break;
-                        case "animPlasmaShot":
-                            fillCommand(ANIMATION_PROJECTILE);
-                            break;
-                        case "animLoadingBar":
-                            fillCommand(ANIMATION_LOADING);
-                            break;
-                        case "animFade":
-                            fillCommand(ANIMATION_FADE);
-                            break;
-                        case "animColorRoll":
-                            fillCommand(ANIMATION_COLOR_ROLL);
-                            break;
-                        case "animPaletteRoll":
-                            fillCommand(ANIMATION_PALLETTE_ROLL);
-                            break;
-                        // === handlers ===
-                        case "eventHandler":
-                            fillCommand(HANDLER);
-                            break;
-                        // === clip ===
-                        case "clip":
-                            fillCommand(CLIP);
-                            break;
-                        // === definitions ===
-                        case "defAnimation":
-                            fillCommand(DEFINE_ANIMATION);
-                            break;
-                        case "defDevice1":
-                            fillCommand(DEFINE_DEVICE_1PORT);
-                            break;
-                        case "defDevice2":
-                            fillCommand(DEFINE_DEVICE_2PORT);
-                            break;
-                        case "defDevice4":
-                            fillCommand(DEFINE_DEVICE_4PORT);
-                            break;
-                        case "defDevice8":
-                            fillCommand(DEFINE_DEVICE_8PORT);
-                            break;
-                        case "defTangle":
-                            fillCommand(DEFINE_TANGLE);
-                            break;
-                        case "defGroup":
-                            fillCommand(DEFINE_GROUP);
-                            break;
-                        case "defMarks":
-                            fillCommand(DEFINE_MARKS);
-                            break;
-                        // === sifters ===
-                        case "sifDevices":
-                            fillCommand(SIFT_DEVICE);
-                            break;
-                        case "siftTangles":
-                            fillCommand(SIFT_TANGLE);
-                            break;
-                        case "siftGroups":
-                            fillCommand(SIFT_GROUP);
-                            break;
-                        // === variables ===
-                        case "device":
-                            fillCommand(DEVICE);
-                            break;
-                        case "tangle":
-                            fillCommand(TANGLE);
-                            break;
-                        case "pixels":
-                            fillCommand(PIXELS);
-                            break;
-                        case "port":
-                            fillCommand(PORT);
-                            break;
-                        case "group":
-                            fillCommand(GROUP);
-                            break;
-                        case "mark":
-                            fillCommand(MARK);
-                            break;
-                        case "constant":
-                            fillCommand(CONSTANT);
-                            break;
-                        case "channel":
-                            fillCommand(CHANNEL);
-                            break;
-                        case "event":
-                            fillCommand(EVENT);
-                            break;
-                        // === modifiers ===
-                        case "modifyBrightness":
-                            fillCommand(MODIFIER_BRIGHTNESS);
-                            break;
-                        case "modifyTimeline":
-                            fillCommand(MODIFIER_TIMELINE);
-                            break;
-                        case "modifyFadeIn":
-                            fillCommand(MODIFIER_FADE_IN);
-                            break;
-                        case "modifyFadeOut":
-                            fillCommand(MODIFIER_FADE_OUT);
-                            break;
-                        case "modifyColorSwitch":
-                            fillCommand(MODIFIER_SWITCH_COLORS);
-                            break;
-                        case "modifyTimeLoop":
-                            fillCommand(MODIFIER_TIME_LOOP);
-                            break;
-                        case "modifyTimeScale":
-                            fillCommand(MODIFIER_TIME_SCALE);
-                            break;
-                        case "modifyTimeChange":
-                            fillCommand(MODIFIER_TIME_CHANGE);
-                            break;
-                        // === filters ===
-                        case "filterNone":
-                            fillCommand(FILTER_NONE);
-                            break;
-                        case "filterBlur":
-                            fillCommand(FILTER_BLUR);
-                            break;
-                        case "filterColorShift":
-                            fillCommand(FILTER_COLOR_SHIFT);
-                            break;
-                        case "filterMirror":
-                            fillCommand(FILTER_MIRROR);
-                            break;
-                        case "filterScatter":
-                            fillCommand(FILTER_SCATTER);
-                            break;
-                        // === channels ===
-                        case "writeChannel":
-                            fillCommand(CHANNEL_WRITE);
-                            break;
-                        case "eventParameterValue":
-                            fillCommand(CHANNEL_PARAMETER_VALUE);
-                            break;
-                        case "eventParameterValueSmoothed":
-                            fillCommand(CHANNEL_PARAMETER_VALUE_SMOOTHED);
-                            break;
-                        case "addValues":
-                            fillCommand(CHANNEL_ADD_VALUES);
-                            break;
-                        case "subValues":
-                            fillCommand(CHANNEL_SUB_VALUES);
-                            break;
-                        case "mulValues":
-                            fillCommand(CHANNEL_MUL_VALUES);
-                            break;
-                        case "divValues":
-                            fillCommand(CHANNEL_DIV_VALUES);
-                            break;
-                        case "modValues":
-                            fillCommand(CHANNEL_MOD_VALUES);
-                            break;
-                        case "scaValue":
-                            fillCommand(CHANNEL_SCALE_VALUE);
-                            break;
-                        case "mapValue":
-                            fillCommand(CHANNEL_MAP_VALUE);
-                            break;
-                        // === events ===
-                        case "emitEvent":
-                            fillCommand(EVENT_EMIT);
-                            break;
-                        case "onEvent":
-                            fillCommand(EVENT_ON);
-                            break;
-                        case "setEventParam":
-                            fillCommand(EVENT_SET_PARAM);
-                            break;
-                        // === constants ===
-                        case"MODIFIER_SWITCH_NONE":
-                            fillCommand(MODIFIER_SWITCH_NONE);
-                            break;
-                        case "MODIFIER_SWITCH_RG":
-                            fillCommand(MODIFIER_SWITCH_RG);
-                            break;
-                        case "MODIFIER_SWITCH_GR":
-                            fillCommand(MODIFIER_SWITCH_RG);
-                            break;
-                        case "MODIFIER_SWITCH_GB":
-                            fillCommand(MODIFIER_SWITCH_GB);
-                            break;
-                        case "MODIFIER_SWITCH_BG":
-                            fillCommand(MODIFIER_SWITCH_GB);
-                            break;
-                        case "MODIFIER_SWITCH_BR":
-                            fillCommand(MODIFIER_SWITCH_BR);
-                            break;
-                        case "MODIFIER_SWITCH_RB":
-                            fillCommand(MODIFIER_SWITCH_BR);
+        tracer.begin("parse");
+        try {
+            if (dependencies == null) {
+                fillCommand(FLAG_TNGL_BYTES);
+            }
+
+            /* tokens never span lines, so the source is lexed line by line instead of as one string */
+            String line;
+            int lineNumber = 0;
+            int macroLine = 0;
+            TnglModules.Macro macro = null;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (macro != null) {
+                    if (END_MACRO.matcher(line).matches()) {
+                        macros.put(macro.name, macro);
+                        macro = null;
+                    } else {
+                        macro.body.add(line);
                     }
-                    break;
-                case "percentage":
-                    s = token.get(1);
-                    s = s.substring(0, s.length() - 1);
-                    fillPercentage(Double.parseDouble(s));
-                    break;
-                case "number":
-                    fillInt32(Integer.parseInt(token.get(1)));
-                    break;
-                case "htmlrgb":
-                    fillRGB(token.get(1));
-                    break;
-                case "comment":
-                    // NOP
-                case "arrow":
-                    // NOP
+                    continue;
+                }
+                Matcher definition = MACRO.matcher(line);
+                if (definition.matches()) {
+                    macro = new TnglModules.Macro(definition.group(1), getArguments(definition.group(2)));
+                    macroLine = lineNumber;
+                    continue;
+                }
+                try {
+                    parseLine(line, patterns, 0);
+                } catch (IOException e) {
+                    throw new IOException("line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+            if (macro != null) {
+                throw new IOException("line " + macroLine + ": Missing endMacro of macro " + macro.name);
+            }
+            if (dependencies == null) {
+                fillCommand(END_OF_TNGL_BYTES);
             }
+            output.flush();
+        } finally {
+            /* a failed parse still closes its span, the trace stays well formed */
+            tracer.end("parse");
+        }
+    }
+
+    private void parseLine(String line, Map<String, Pattern> patterns, int depth) throws IOException {
+        Matcher include = INCLUDE.matcher(line);
+        if (include.matches()) {
+            include(include.group(1));
+            return;
+        }
+        String expanded = macros.isEmpty() ? null : expandMacro(line);
+        if (expanded != null) {
+            if (depth >= MAX_MACRO_DEPTH) {
+                throw new IOException("Macros nested deeper than " + MAX_MACRO_DEPTH + " in: " + line);
+            }
+            for (String expandedLine : expanded.split("\n", -1)) {
+                parseLine(expandedLine, patterns, depth + 1);
+            }
+            return;
+        }
+        tracer.begin("lex");
+        ArrayList<ArrayList<String>> tokens;
+        try {
+            tokens = tokenize(line, patterns);
+        } finally {
+            tracer.end("lex");
+        }
+        tracer.begin("emit");
+        try {
+            for (int i = 0; i < tokens.size(); i++) {
+                int before = written;
+                ArrayList<String> token = tokens.get(i);
+                parseToken(token);
+                if (written == before && isCall(tokens, i)) {
+                    /* a misspelled macro would otherwise compile to its bare arguments */
+                    throw new IOException("Unknown function or macro " + token.get(1));
+                }
+            }
+        } finally {
+            tracer.end("emit");
+        }
+    }
+
+    /* a word directly followed by an opening parenthesis */
+    private static boolean isCall(ArrayList<ArrayList<String>> tokens, int index) {
+        ArrayList<String> token = tokens.get(index);
+        if (!"word".equals(token.get(0))) {
+            return false;
+        }
+        for (int i = index + 1; i < tokens.size(); i++) {
+            ArrayList<String> next = tokens.get(i);
+            if (!"whitespace".equals(next.get(0))) {
+                return "punctuation".equals(next.get(0)) && "(".equals(next.get(1));
+            }
+        }
+        return false;
+    }
+
+    /* a scene gets the bytes of each module once, after the modules it includes; a module only records them */
+    private void include(String name) throws IOException {
+        if (modules == null) {
+            throw new IOException("No TNGL modules to include " + name + " from");
+        }
+        TnglModules.Fragment fragment = modules.getFragment(name);
+        if (dependencies != null) {
+            if (!dependencies.contains(fragment)) {
+                dependencies.add(fragment);
+            }
+        } else {
+            fillFragment(fragment);
+        }
+        macros.putAll(fragment.macros);
+    }
+
+    private void fillFragment(TnglModules.Fragment fragment) throws IOException {
+        if (included.contains(fragment.key)) {
+            return;
+        }
+        for (TnglModules.Fragment dependency : fragment.dependencies) {
+            fillFragment(dependency);
+        }
+        included.add(fragment.key);
+        int base = written;
+        fillBytes(fragment.bytecode);
+        for (Map.Entry<String, List<int[]>> slot : fragment.slots.entrySet()) {
+            List<int[]> offsets = slots.get(slot.getKey());
+            if (offsets == null) {
+                offsets = new ArrayList<>();
+                slots.put(slot.getKey(), offsets);
+            }
+            for (int[] use : slot.getValue()) {
+                offsets.add(new int[]{base + use[0], use[1]});
+            }
+        }
+    }
+
+    /* the line with its first macro call replaced by the macro body, null without a call */
+    private String expandMacro(String line) throws IOException {
+        int comment = line.indexOf("//");
+        String code = comment < 0 ? line : line.substring(0, comment);
+        Matcher call = CALL.matcher(code);
+        while (call.find()) {
+            TnglModules.Macro macro = macros.get(call.group(1));
+            if (macro == null) {
+                continue;
+            }
+            int nesting = 1;
+            int end = call.end();
+            while (end < code.length() && nesting > 0) {
+                char c = code.charAt(end++);
+                if (c == '(') {
+                    nesting++;
+                } else if (c == ')') {
+                    nesting--;
+                }
+            }
+            if (nesting > 0) {
+                throw new IOException("Unterminated call of macro " + macro.name + " in: " + line);
+            }
+            List<String> arguments = getArguments(code.substring(call.end(), end - 1));
+            if (arguments.size() != macro.parameters.size()) {
+                throw new IOException("Macro " + macro.name + " takes " + macro.parameters.size()
+                        + " arguments, got " + arguments.size() + " in: " + line);
+            }
+            StringBuilder expanded = new StringBuilder(line.substring(0, call.start()));
+            for (int i = 0; i < macro.body.size(); i++) {
+                expanded.append(i > 0 ? "\n" : "").append(macro.expand(i, arguments));
+            }
+            return expanded.append(line.substring(end)).toString();
+        }
+        return null;
+    }
+
+    /* comma separated, commas inside parentheses belong to the argument */
+    private static List<String> getArguments(String list) {
+        List<String> arguments = new ArrayList<>();
+        if (list.trim().isEmpty()) {
+            return arguments;
+        }
+        int nesting = 0;
+        int start = 0;
+        for (int i = 0; i < list.length(); i++) {
+            char c = list.charAt(i);
+            if (c == '(') {
+                nesting++;
+            } else if (c == ')') {
+                nesting--;
+            } else if (c == ',' && nesting == 0) {
+                arguments.add(list.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        arguments.add(list.substring(start).trim());
+        return arguments;
+    }
+
+    private void parseToken(ArrayList<String> token) throws IOException {
+        switch (token.get(0)) {
+            case "whitespace":
+                return;
+            case "char":
+                fillUInt8(token.get(1).charAt(0));
+                break;
+            case "byte":
+                fillUInt8(Integer.decode(token.get(1)));
+                break;
+            case "string":
+                String s = token.get(1);
+                s = s.substring(1);
+                s = s.substring(0, s.length() - 1);
+                fillString(s);
+                break;
+            case "punctuation":
+                if (token.get(1).equals("}")) {
+                    fillCommand(END_OF_STATEMENT);
+                }
+                break;
+            case "word":
+                switch (token.get(1)) {
+                    // === true, false ===
+                    case "true":
+                        fillUInt8(1);
+                        break;
+                    case "false":
+                        fillUInt8(0);
+                        break;
+                    // === canvas operations ===
+                    case "setDrawing":
+                        fillCommand(DRAWING_SET);
+                        break;
+                    case "addDrawing":
+                        fillCommand(DRAWING_ADD);
+                        break;
+                    case "subDrawing":
+                        fillCommand(DRAWING_SUB);
+                        break;
+                    case "scaDrawing":
+                        fillCommand(DRAWING_SCALE);
+                        break;
+                    case "filDrawing":
+                        fillCommand(DRAWING_FILTER);
+                        break;
+                    case "setWindow":
+                        fillCommand(WINDOW_SET);
+                        break;
+                    case "addWindow":
+                        fillCommand(WINDOW_ADD);
+                        break;
+                    case "subWindow":
+                        fillCommand(WINDOW_SUB);
+                        break;
+                    case "scaWindow":
+                        fillCommand(WINDOW_SCALE);
+                        break;
+                    case "filWindow":
+                        fillCommand(WINDOW_FILTER);
+                        break;
+                    // === time operations ===
+                    case "frame":
+                        fillCommand(FRAME);
+                        break;
+                    // === animations ===
+                    case "animNone":
+                        fillCommand(ANIMATION_NONE);
+                        break;
+                    case "animationDefined":
+                        fillCommand(ANIMATION_DEFINED);
+                        break;
+                    case "animFill":
+                        fillCommand(ANIMATION_FILL);
+                        break;
+                    case "animRainbow":
+                        fillCommand(ANIMATION_RAINBOW);
+                        break;
+                    case "animPlasmaShot":
+                        fillCommand(ANIMATION_PROJECTILE);
+                        break;
+                    case "animLoadingBar":
+                        fillCommand(ANIMATION_LOADING);
+                        break;
+                    case "animFade":
+                        fillCommand(ANIMATION_FADE);
+                        break;
+                    case "animColorRoll":
+                        fillCommand(ANIMATION_COLOR_ROLL);
+                        break;
+                    case "animPaletteRoll":
+                        fillCommand(ANIMATION_PALLETTE_ROLL);
+                        break;
+                    // === handlers ===
+                    case "eventHandler":
+                        fillCommand(HANDLER);
+                        break;
+                    // === clip ===
+                    case "clip":
+                        fillCommand(CLIP);
+                        break;
+                    // === definitions ===
+                    case "defAnimation":
+                        fillCommand(DEFINE_ANIMATION);
+                        break;
+                    case "defDevice1":
+                        fillCommand(DEFINE_DEVICE_1PORT);
+                        break;
+                    case "defDevice2":
+                        fillCommand(DEFINE_DEVICE_2PORT);
+                        break;
+                    case "defDevice4":
+                        fillCommand(DEFINE_DEVICE_4PORT);
+                        break;
+                    case "defDevice8":
+                        fillCommand(DEFINE_DEVICE_8PORT);
+                        break;
+                    case "defTangle":
+                        fillCommand(DEFINE_TANGLE);
+                        break;
+                    case "defGroup":
+                        fillCommand(DEFINE_GROUP);
+                        break;
+                    case "defMarks":
+                        fillCommand(DEFINE_MARKS);
+                        break;
+                    // === sifters ===
+                    case "sifDevices":
+                        fillCommand(SIFT_DEVICE);
+                        break;
+                    case "siftTangles":
+                        fillCommand(SIFT_TANGLE);
+                        break;
+                    case "siftGroups":
+                        fillCommand(SIFT_GROUP);
+                        break;
+                    // === variables ===
+                    case "device":
+                        fillCommand(DEVICE);
+                        break;
+                    case "tangle":
+                        fillCommand(TANGLE);
+                        break;
+                    case "pixels":
+                        fillCommand(PIXELS);
+                        break;
+                    case "port":
+                        fillCommand(PORT);
+                        break;
+                    case "group":
+                        fillCommand(GROUP);
+                        break;
+                    case "mark":
+                        fillCommand(MARK);
+                        break;
+                    case "constant":
+                        fillCommand(CONSTANT);
+                        break;
+                    case "channel":
+                        fillCommand(CHANNEL);
+                        break;
+                    case "event":
+                        fillCommand(EVENT);
+                        break;
+                    // === modifiers ===
+                    case "modifyBrightness":
+                        fillCommand(MODIFIER_BRIGHTNESS);
+                        break;
+                    case "modifyTimeline":
+                        fillCommand(MODIFIER_TIMELINE);
+                        break;
+                    case "modifyFadeIn":
+                        fillCommand(MODIFIER_FADE_IN);
+                        break;
+                    case "modifyFadeOut":
+                        fillCommand(MODIFIER_FADE_OUT);
+                        break;
+                    case "modifyColorSwitch":
+                        fillCommand(MODIFIER_SWITCH_COLORS);
+                        break;
+                    case "modifyTimeLoop":
+                        fillCommand(MODIFIER_TIME_LOOP);
+                        break;
+                    case "modifyTimeScale":
+                        fillCommand(MODIFIER_TIME_SCALE);
+                        break;
+                    case "modifyTimeChange":
+                        fillCommand(MODIFIER_TIME_CHANGE);
+                        break;
+                    // === filters ===
+                    case "filterNone":
+                        fillCommand(FILTER_NONE);
+                        break;
+                    case "filterBlur":
+                        fillCommand(FILTER_BLUR);
+                        break;
+                    case "filterColorShift":
+                        fillCommand(FILTER_COLOR_SHIFT);
+                        break;
+                    case "filterMirror":
+                        fillCommand(FILTER_MIRROR);
+                        break;
+                    case "filterScatter":
+                        fillCommand(FILTER_SCATTER);
+                        break;
+                    // === channels ===
+                    case "writeChannel":
+                        fillCommand(CHANNEL_WRITE);
+                        break;
+                    case "eventParameterValue":
+                        fillCommand(CHANNEL_PARAMETER_VALUE);
+                        break;
+                    case "eventParameterValueSmoothed":
+                        fillCommand(CHANNEL_PARAMETER_VALUE_SMOOTHED);
+                        break;
+                    case "addValues":
+                        fillCommand(CHANNEL_ADD_VALUES);
+                        break;
+                    case "subValues":
+                        fillCommand(CHANNEL_SUB_VALUES);
+                        break;
+                    case "mulValues":
+                        fillCommand(CHANNEL_MUL_VALUES);
+                        break;
+                    case "divValues":
+                        fillCommand(CHANNEL_DIV_VALUES);
+                        break;
+                    case "modValues":
+                        fillCommand(CHANNEL_MOD_VALUES);
+                        break;
+                    case "scaValue":
+                        fillCommand(CHANNEL_SCALE_VALUE);
+                        break;
+                    case "mapValue":
+                        fillCommand(CHANNEL_MAP_VALUE);
+                        break;
+                    // === events ===
+                    case "emitEvent":
+                        fillCommand(EVENT_EMIT);
+                        break;
+                    case "onEvent":
+                        fillCommand(EVENT_ON);
+                        break;
+                    case "setEventParam":
+                        fillCommand(EVENT_SET_PARAM);
+                        break;
+                    // === constants ===
+                    case"MODIFIER_SWITCH_NONE":
+                        fillCommand(MODIFIER_SWITCH_NONE);
+                        break;
+                    case "MODIFIER_SWITCH_RG":
+                        fillCommand(MODIFIER_SWITCH_RG);
+                        break;
+                    case "MODIFIER_SWITCH_GR":
+                        fillCommand(MODIFIER_SWITCH_RG);
+                        break;
+                    case "MODIFIER_SWITCH_GB":
+                        fillCommand(MODIFIER_SWITCH_GB);
+                        break;
+                    case "MODIFIER_SWITCH_BG":
+                        fillCommand(MODIFIER_SWITCH_GB);
+                        break;
+                    case "MODIFIER_SWITCH_BR":
+                        fillCommand(MODIFIER_SWITCH_BR);
+                        break;
+                    case "MODIFIER_SWITCH_RB":
+                        fillCommand(MODIFIER_SWITCH_BR);
+                }
+                break;
+            case "percentage":
+                s = token.get(1);
+                s = s.substring(0, s.length() - 1);
+                fillPercentage(Double.parseDouble(s));
+                break;
+            case "number":
+                fillInt32(Integer.parseInt(token.get(1)));
+                break;
+            case "htmlrgb":
+                fillRGB(token.get(1));
+                break;
+            case "slot":
+                fillSlot(token.get(1));
+                break;
+            case "comment":
+                // NOP
+            case "arrow":
+                // NOP
         }
-        fillCommand(END_OF_TNGL_BYTES);
     }
 }
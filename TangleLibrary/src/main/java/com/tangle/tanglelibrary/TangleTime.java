@@ -0,0 +1,79 @@
+package com.tangle.tanglelibrary;
+
+/**
+ * 32 bit millisecond times as the controller keeps them: the clock wraps every 49.7 days and the
+ * wire carries unsigned 32 bit values.
+ * <p>
+ * Clock times are compared with serial number arithmetic (RFC 1982): a time is later than another
+ * when it is less than 2^31 ms ahead of it, so ordering stays correct across the wrap as long as
+ * the compared times are less than 24.8 days apart. Times exactly 2^31 apart are neither before
+ * nor after each other, RFC 1982 leaves them undefined. Timeline times are signed 32 bit values on
+ * the wire and wrap the same way.
+ */
+public final class TangleTime {
+
+    public static final long MASK = 0xFFFFFFFFL;
+    public static final long PERIOD = 1L << 32;
+
+    private TangleTime() {
+    }
+
+    /* millis of any origin reduced to the 32 bit clock */
+    public static long wrap(long millis) {
+        return millis & MASK;
+    }
+
+    public static long add(long time, long millis) {
+        return (time + millis) & MASK;
+    }
+
+    /* signed distance from from to to, within +-2^31 */
+    public static int diff(long from, long to) {
+        return (int) (to - from);
+    }
+
+    /* time that went by from from until to on a clock that only moves forward, up to 2^32 - 1 */
+    public static long elapsed(long from, long to) {
+        return (to - from) & MASK;
+    }
+
+    public static boolean isBefore(long time, long other) {
+        return diff(time, other) > 0;
+    }
+
+    public static boolean isAfter(long time, long other) {
+        return diff(other, time) > 0;
+    }
+
+    /* only a consistent order for times less than 2^31 apart */
+    public static int compare(long time, long other) {
+        return Integer.signum(diff(other, time));
+    }
+
+    /* little endian uint32, the clock and timeline fields of every record */
+    public static void encode(long time, byte[] bytes, int offset) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (time & 0xFF);
+            time >>= Byte.SIZE;
+        }
+    }
+
+    public static byte[] encode(long time) {
+        byte[] bytes = new byte[4];
+        encode(time, bytes, 0);
+        return bytes;
+    }
+
+    public static long decode(byte[] bytes, int offset) {
+        long time = 0;
+        for (int i = 3; i >= 0; i--) {
+            time = (time << Byte.SIZE) | (bytes[offset + i] & 0xFF);
+        }
+        return time;
+    }
+
+    /* the same field read as a signed timeline time */
+    public static int decodeTimeline(byte[] bytes, int offset) {
+        return (int) decode(bytes, offset);
+    }
+}
@@ -0,0 +1,36 @@
+package com.tangle.tanglelibrary;
+
+/**
+ * Span hooks around the compile and upload stages: lex, parse, emit, frame, enqueue, transmit
+ * and ack. Names are constant strings, so the {@link #NOOP} tracer costs an inlined empty call.
+ */
+public interface TangleTracer {
+
+    TangleTracer NOOP = new TangleTracer() {
+        @Override
+        public void begin(String name) {
+        }
+
+        @Override
+        public void end(String name) {
+        }
+
+        @Override
+        public void asyncBegin(String name, long id) {
+        }
+
+        @Override
+        public void asyncEnd(String name, long id) {
+        }
+    };
+
+    /* span on the calling thread */
+    void begin(String name);
+
+    void end(String name);
+
+    /* span that may end on another thread, e.g. from writing a chunk until its write callback */
+    void asyncBegin(String name, long id);
+
+    void asyncEnd(String name, long id);
+}
@@ -0,0 +1,191 @@
+package com.tangle.tanglelibrary;
+
+/**
+ * Play, pause, seek and rate state of the up to 16 controller timelines. Changes are collected
+ * and sent together as one payload of set timeline records on {@link #flush()}.
+ * <p>
+ * The controller runs every playing timeline at real time, so a timeline with a rate other
+ * than 1 stays dirty and is corrected on every flush.
+ */
+public class TimelineManager {
+
+    static final int FLAG_SET_TIMELINE = 252;
+    static final int RECORD_SIZE = 10;
+    public static final int TIMELINE_COUNT = 16;
+
+    public interface Clock {
+        long getClockTimestamp();
+    }
+
+    public class Timeline {
+        final int index;
+        boolean paused = true;
+        long anchorTime = 0;
+        long anchorClock = 0;
+        float rate = 1;
+        boolean used = false;
+
+        Timeline(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getTime() {
+            synchronized (TimelineManager.this) {
+                return (int) position(clock.getClockTimestamp());
+            }
+        }
+
+        public boolean isPaused() {
+            synchronized (TimelineManager.this) {
+                return paused;
+            }
+        }
+
+        public float getRate() {
+            synchronized (TimelineManager.this) {
+                return rate;
+            }
+        }
+
+        public Timeline play() {
+            synchronized (TimelineManager.this) {
+                update(position(clock.getClockTimestamp()), false);
+            }
+            return this;
+        }
+
+        public Timeline pause() {
+            synchronized (TimelineManager.this) {
+                update(position(clock.getClockTimestamp()), true);
+            }
+            return this;
+        }
+
+        public Timeline seek(int timeline_timestamp) {
+            synchronized (TimelineManager.this) {
+                update(timeline_timestamp, paused);
+            }
+            return this;
+        }
+
+        public Timeline set(int timeline_timestamp, boolean timeline_paused) {
+            synchronized (TimelineManager.this) {
+                update(timeline_timestamp, timeline_paused);
+            }
+            return this;
+        }
+
+        public Timeline setRate(float rate) {
+            synchronized (TimelineManager.this) {
+                update(position(clock.getClockTimestamp()), paused);
+                this.rate = rate;
+            }
+            return this;
+        }
+
+        long position(long clock_timestamp) {
+            if (paused) {
+                return anchorTime;
+            }
+            /* signed distance: exact modulo 2^32 at rate 1, and a wall clock set back a little does not jump */
+            return anchorTime + (long) (TangleTime.diff(anchorClock, clock_timestamp) * (double) rate);
+        }
+
+        private void update(long timeline_timestamp, boolean timeline_paused) {
+            anchorClock = clock.getClockTimestamp();
+            anchorTime = timeline_timestamp;
+            paused = timeline_paused;
+            used = true;
+            dirty |= 1 << index;
+        }
+    }
+
+    private final Clock clock;
+    private final Timeline[] timelines = new Timeline[TIMELINE_COUNT];
+    private int dirty = 0;
+
+    public TimelineManager(Clock clock) {
+        this.clock = clock;
+        for (int i = 0; i < TIMELINE_COUNT; i++) {
+            timelines[i] = new Timeline(i);
+        }
+        timelines[0].used = true;
+    }
+
+    public Timeline get(int timelineIndex) {
+        if (timelineIndex < 0 || timelineIndex >= TIMELINE_COUNT) {
+            throw new IllegalArgumentException("Timeline index " + timelineIndex + " out of 0.." + (TIMELINE_COUNT - 1));
+        }
+        return timelines[timelineIndex];
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty != 0 || isDrifting();
+    }
+
+    private boolean isDrifting() {
+        for (Timeline timeline : timelines) {
+            if (!timeline.paused && timeline.rate != 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* records of the changed timelines, null when nothing changed */
+    public synchronized byte[] flush() {
+        int mask = dirty;
+        for (Timeline timeline : timelines) {
+            if (!timeline.paused && timeline.rate != 1) {
+                mask |= 1 << timeline.index;
+            }
+        }
+        dirty = 0;
+        return mask == 0 ? null : encodeMask(mask);
+    }
+
+    /* records of every timeline in use, for resynchronizing a reconnected controller */
+    public synchronized byte[] encodeAll() {
+        int mask = 0;
+        for (Timeline timeline : timelines) {
+            if (timeline.used) {
+                mask |= 1 << timeline.index;
+            }
+        }
+        dirty = 0;
+        return encodeMask(mask);
+    }
+
+    /* single record of one timeline, clears its pending change */
+    public synchronized byte[] encode(int timelineIndex) {
+        dirty &= ~(1 << timelineIndex);
+        return encodeMask(1 << timelineIndex);
+    }
+
+    private byte[] encodeMask(int mask) {
+        long clock_timestamp = clock.getClockTimestamp();
+        byte[] payload = new byte[Integer.bitCount(mask) * RECORD_SIZE];
+        int offset = 0;
+        for (Timeline timeline : timelines) {
+            if ((mask & (1 << timeline.index)) == 0) {
+                continue;
+            }
+            payload[offset] = (byte) FLAG_SET_TIMELINE;
+            TangleTime.encode(clock_timestamp, payload, offset + 1);
+            TangleTime.encode(timeline.position(clock_timestamp), payload, offset + 5);
+            payload[offset + 9] = getTimelineFlag(timeline.index, timeline.paused);
+            offset += RECORD_SIZE;
+        }
+        return payload;
+    }
+
+    static byte getTimelineFlag(int timelineIndex, boolean timelinePaused) {
+        byte timeline_index = (byte) (timelineIndex & 0b00001111);
+        byte timeline_paused = (byte) (((timelinePaused ? 1 : 0) << 4) & 0b00010000);
+        return (byte) (timeline_paused | timeline_index);
+    }
+}
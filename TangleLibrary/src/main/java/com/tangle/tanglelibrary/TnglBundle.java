@@ -0,0 +1,225 @@
+package com.tangle.tanglelibrary;
+
+import android.content.res.AssetFileDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Container of precompiled TNGL scenes.
+ * <p>
+ * Layout (little endian): magic "TNGB", uint16 version, uint16 scene count, 32 byte SHA-256
+ * of the sources, then per scene uint8 name length, name, uint32 offset, uint32 length,
+ * followed by the bytecode sections. Scenes are handed out as read-only slices of the mapped file.
+ */
+public class TnglBundle {
+
+    static final int MAGIC = 0x42474E54; // "TNGB"
+    static final int VERSION = 1;
+    static final int HASH_SIZE = 32;
+    static final String EXTENSION = ".tngl";
+    static final String MODULE_DIR = "modules";
+
+    private final ByteBuffer buffer;
+    private final byte[] sourceHash = new byte[HASH_SIZE];
+    private final Map<String, int[]> scenes = new LinkedHashMap<>();
+
+    public TnglBundle(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer header = this.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a TNGL bundle");
+            }
+            int version = header.getShort() & 0xFFFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported TNGL bundle version " + version);
+            }
+            int sceneCount = header.getShort() & 0xFFFF;
+            header.get(sourceHash);
+            for (int i = 0; i < sceneCount; i++) {
+                byte[] name = new byte[header.get() & 0xFF];
+                header.get(name);
+                int offset = header.getInt();
+                int length = header.getInt();
+                if (offset < 0 || length < 0 || offset > this.buffer.limit() - length) {
+                    throw new IOException("Corrupted TNGL bundle section");
+                }
+                scenes.put(new String(name, StandardCharsets.UTF_8), new int[]{offset, length});
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted TNGL bundle: " + e);
+        }
+    }
+
+    public static TnglBundle open(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            FileChannel channel = input.getChannel();
+            return new TnglBundle(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /*
+     * The asset has to be stored uncompressed (aaptOptions noCompress) to be opened as a file descriptor.
+     * The stream owns the descriptor and closes it, the mapping stays valid.
+     */
+    public static TnglBundle open(AssetFileDescriptor asset) throws IOException {
+        try (FileInputStream input = asset.createInputStream()) {
+            return new TnglBundle(input.getChannel().map(FileChannel.MapMode.READ_ONLY, asset.getStartOffset(), asset.getLength()));
+        }
+    }
+
+    public Set<String> getSceneNames() {
+        return Collections.unmodifiableSet(scenes.keySet());
+    }
+
+    public byte[] getSourceHash() {
+        return sourceHash.clone();
+    }
+
+    public boolean hasScene(String name) {
+        return scenes.containsKey(name);
+    }
+
+    public ByteBuffer getScene(String name) {
+        int[] section = scenes.get(name);
+        if (section == null) {
+            throw new IllegalArgumentException("Unknown TNGL scene " + name);
+        }
+        ByteBuffer scene = buffer.asReadOnlyBuffer();
+        scene.position(section[0]);
+        scene.limit(section[0] + section[1]);
+        return scene.slice();
+    }
+
+    public static void write(Map<String, byte[]> scenes, byte[] sourceHash, OutputStream out) throws IOException {
+        if (scenes.size() > 0xFFFF) {
+            throw new IOException("Too many scenes in TNGL bundle");
+        }
+        int indexSize = 0;
+        for (String name : scenes.keySet()) {
+            int nameLength = name.getBytes(StandardCharsets.UTF_8).length;
+            if (nameLength > 0xFF) {
+                throw new IOException("TNGL scene name too long: " + name);
+            }
+            indexSize += 1 + nameLength + 8;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8 + HASH_SIZE + indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) scenes.size());
+        header.put(Arrays.copyOf(sourceHash, HASH_SIZE));
+        int offset = header.capacity();
+        for (Map.Entry<String, byte[]> scene : scenes.entrySet()) {
+            byte[] name = scene.getKey().getBytes(StandardCharsets.UTF_8);
+            header.put((byte) name.length);
+            header.put(name);
+            header.putInt(offset);
+            header.putInt(scene.getValue().length);
+            offset += scene.getValue().length;
+        }
+
+        out.write(header.array());
+        for (byte[] bytecode : scenes.values()) {
+            out.write(bytecode);
+        }
+    }
+
+    public static void compile(File sourceDir, File output) throws IOException {
+        compile(sourceDir, output, TangleParse.ANDROID_LOG);
+    }
+
+    /* at build time with TangleParse.STDERR, nothing on the compile path may call into android.jar */
+    public static void compile(File sourceDir, File output, TangleParse.Logger logger) throws IOException {
+        File[] sources = sourceDir.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (sources == null) {
+            throw new IOException("Missing TNGL source directory " + sourceDir);
+        }
+        Arrays.sort(sources);
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        /* modules are only included by scenes, they are not scenes themselves */
+        TnglModules modules = new TnglModules();
+        modules.setLogger(logger);
+        File[] moduleSources = new File(sourceDir, MODULE_DIR).listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (moduleSources != null) {
+            Arrays.sort(moduleSources);
+            for (File source : moduleSources) {
+                String name = source.getName().substring(0, source.getName().length() - EXTENSION.length());
+                byte[] code = readFully(source);
+                digest.update((MODULE_DIR + "/" + name).getBytes(StandardCharsets.UTF_8));
+                digest.update(code);
+                modules.put(name, new String(code, StandardCharsets.UTF_8));
+            }
+        }
+
+        TangleParse parser = new TangleParse();
+        parser.setModules(modules);
+        parser.setLogger(logger);
+        Map<String, byte[]> scenes = new LinkedHashMap<>();
+        for (File source : sources) {
+            String name = source.getName().substring(0, source.getName().length() - EXTENSION.length());
+            byte[] code = readFully(source);
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update(code);
+
+            ByteArrayOutputStream bytecode = new ByteArrayOutputStream();
+            parser.getPayload(new ByteArrayInputStream(code), bytecode);
+            scenes.put(name, bytecode.toByteArray());
+        }
+
+        File parent = output.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        try (OutputStream out = new FileOutputStream(output)) {
+            write(scenes, digest.digest(), out);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+        }
+        return content.toByteArray();
+    }
+
+    /* build time entry point, see the compileTngl tasks in build.gradle */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: TnglBundle <tngl source dir> <output bundle>");
+            System.exit(2);
+        }
+        compile(new File(args[0]), new File(args[1]), TangleParse.STDERR);
+    }
+}
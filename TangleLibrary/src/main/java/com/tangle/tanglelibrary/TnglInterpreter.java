@@ -0,0 +1,769 @@
+package com.tangle.tanglelibrary;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference interpreter for TNGL bytecode, renders a single strip of pixels into an RGB buffer at a
+ * given timeline time without a controller.
+ * <p>
+ * The bytecode is decoded once into a tree of statements; rendering a frame allocates nothing.
+ * Arguments follow the encoding of {@link TangleParse}: numbers and times are int32, percentages
+ * uint8 (100% = 255), colors three bytes and ids single bytes. The layouts below are assumed from
+ * the compiler and its sample scenes:
+ * <pre>
+ * drawing   setDrawing/addDrawing/subDrawing/scaDrawing(start, duration, animation)
+ *           filDrawing(start, duration, animation or filter)
+ * window    setWindow/addWindow/subWindow/scaWindow/filWindow(start, duration, { statements })
+ * animation animNone(duration)                     animFill(duration, color)
+ *           animRainbow(duration, length%)         animFade(duration, from, to)
+ *           animPlasmaShot(duration, color, length%)
+ *           animLoadingBar(duration, fill, background)
+ *           animColorRoll(duration, color1, color2)
+ *           animPaletteRoll(duration, count, color..., length%)
+ *           animationDefined(id, duration)         defAnimation(id, { statements })
+ * modifier  .modifyBrightness(%)  .modifyFadeIn(duration)  .modifyFadeOut(duration)
+ *           .modifyColorSwitch(MODIFIER_SWITCH_*)  .modifyTimeLoop(duration)
+ *           .modifyTimeScale(percent)  .modifyTimeChange(offset)
+ * filter    filterNone  filterBlur(%)  filterColorShift(%)  filterMirror  filterScatter(%)
+ * channel   writeChannel(channel, value), values being constant(n), channel(id),
+ *           eventParameterValue(code), eventParameterValueSmoothed(code),
+ *           addValues/subValues/mulValues/divValues/modValues(a, b), scaValue(value, num, den),
+ *           mapValue(value, inMin, inMax, outMin, outMax)
+ * </pre>
+ * Animations repeat with their duration. Set replaces the canvas, add and sub saturate, scale and
+ * filter with an animation multiply. Anything else (devices, sifters, events, clips) is rejected.
+ */
+public class TnglInterpreter {
+
+    private final int pixelCount;
+    private final int[] canvas;
+    private int[][] layers = new int[0][];
+    private Statement[] program = new Statement[0];
+    private final Map<Integer, Defined> definitions = new HashMap<>();
+    private final int[] channels = new int[256];
+    private final int[] eventParameters = new int[256];
+
+    public TnglInterpreter(int pixelCount) {
+        this.pixelCount = pixelCount;
+        this.canvas = new int[pixelCount * 3];
+    }
+
+    public int getPixelCount() {
+        return pixelCount;
+    }
+
+    public void load(byte[] bytecode) {
+        load(ByteBuffer.wrap(bytecode));
+    }
+
+    /* the TNGL bytes as produced by TangleParse, with or without FLAG_TNGL_BYTES in front */
+    public void load(ByteBuffer bytecode) {
+        ByteBuffer code = bytecode.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        definitions.clear();
+        try {
+            if (code.hasRemaining() && peek(code) == TangleParse.FLAG_TNGL_BYTES) {
+                code.get();
+            }
+            program = parseStatements(code, false);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated TNGL bytecode");
+        }
+        layers = new int[heightOf(program)][pixelCount * 3];
+    }
+
+    public int getChannel(int channel) {
+        return channels[channel];
+    }
+
+    public void setEventParameter(int code, int value) {
+        eventParameters[code] = value;
+    }
+
+    public byte[] render(int time) {
+        byte[] rgb = new byte[pixelCount * 3];
+        render(time, rgb);
+        return rgb;
+    }
+
+    public void render(int time, byte[] rgb) {
+        Arrays.fill(canvas, 0);
+        run(program, time, canvas, 0);
+        for (int i = 0; i < canvas.length; i++) {
+            rgb[i] = (byte) canvas[i];
+        }
+    }
+
+    private void run(Statement[] statements, int time, int[] target, int depth) {
+        for (Statement statement : statements) {
+            statement.execute(time, target, depth);
+        }
+    }
+
+    /* ---- decoding ---- */
+
+    private static int peek(ByteBuffer code) {
+        return code.get(code.position()) & 0xFF;
+    }
+
+    private static int u8(ByteBuffer code) {
+        return code.get() & 0xFF;
+    }
+
+    private static int[] color(ByteBuffer code) {
+        return new int[]{u8(code), u8(code), u8(code)};
+    }
+
+    private static IllegalArgumentException unsupported(int opcode, ByteBuffer code) {
+        return new IllegalArgumentException("Unsupported TNGL opcode " + opcode + " at " + (code.position() - 1));
+    }
+
+    private Statement[] parseStatements(ByteBuffer code, boolean block) {
+        ArrayList<Statement> statements = new ArrayList<>();
+        while (code.hasRemaining()) {
+            int opcode = u8(code);
+            if (opcode == TangleParse.END_OF_STATEMENT && block) {
+                return statements.toArray(new Statement[0]);
+            }
+            if (opcode == TangleParse.END_OF_TNGL_BYTES && !block) {
+                break;
+            }
+            if (opcode >= TangleParse.DRAWING_SET && opcode <= TangleParse.DRAWING_FILTER) {
+                int start = code.getInt();
+                int duration = code.getInt();
+                int source = u8(code);
+                if (opcode == TangleParse.DRAWING_FILTER && source <= TangleParse.FILTER_SCATTER) {
+                    statements.add(new FilterDrawing(start, duration, parseFilter(source, code)));
+                } else {
+                    statements.add(new Drawing(opcode, start, duration, parseAnimation(source, code)));
+                }
+            } else if (opcode >= TangleParse.WINDOW_SET && opcode <= TangleParse.WINDOW_FILTER) {
+                int start = code.getInt();
+                int duration = code.getInt();
+                statements.add(new Window(opcode - TangleParse.WINDOW_SET + TangleParse.DRAWING_SET, start, duration, parseStatements(code, true)));
+            } else if (opcode == TangleParse.DEFINE_ANIMATION) {
+                int id = u8(code);
+                definitions.put(id, new Defined(parseStatements(code, true)));
+            } else if (opcode == TangleParse.CHANNEL_WRITE) {
+                statements.add(new ChannelWrite(u8(code), parseValue(code)));
+            } else {
+                throw unsupported(opcode, code);
+            }
+        }
+        if (block) {
+            throw new IllegalArgumentException("Unterminated TNGL block");
+        }
+        return statements.toArray(new Statement[0]);
+    }
+
+    private Animation parseAnimation(int opcode, ByteBuffer code) {
+        Animation animation;
+        switch (opcode) {
+            case TangleParse.ANIMATION_NONE:
+                animation = new Fill(code.getInt(), new int[3]);
+                break;
+            case TangleParse.ANIMATION_FILL:
+                animation = new Fill(code.getInt(), color(code));
+                break;
+            case TangleParse.ANIMATION_RAINBOW:
+                animation = new Rainbow(code.getInt(), u8(code));
+                break;
+            case TangleParse.ANIMATION_FADE:
+                animation = new Fade(code.getInt(), color(code), color(code));
+                break;
+            case TangleParse.ANIMATION_PROJECTILE:
+                animation = new Projectile(code.getInt(), color(code), u8(code));
+                break;
+            case TangleParse.ANIMATION_LOADING:
+                animation = new Loading(code.getInt(), color(code), color(code));
+                break;
+            case TangleParse.ANIMATION_COLOR_ROLL: {
+                int duration = code.getInt();
+                animation = new PaletteRoll(duration, new int[][]{color(code), color(code)}, 255);
+                break;
+            }
+            case TangleParse.ANIMATION_PALLETTE_ROLL: {
+                int duration = code.getInt();
+                int[][] palette = new int[Math.max(1, u8(code))][];
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = color(code);
+                }
+                animation = new PaletteRoll(duration, palette, u8(code));
+                break;
+            }
+            case TangleParse.ANIMATION_DEFINED: {
+                int id = u8(code);
+                Defined defined = definitions.get(id);
+                if (defined == null) {
+                    throw new IllegalArgumentException("Undefined TNGL animation " + id + " at " + (code.position() - 1));
+                }
+                animation = new DefinedAnimation(code.getInt(), defined);
+                break;
+            }
+            default:
+                throw unsupported(opcode, code);
+        }
+        /* modifiers follow the animation they are chained to */
+        ArrayList<int[]> modifiers = new ArrayList<>();
+        while (code.hasRemaining() && peek(code) >= TangleParse.MODIFIER_BRIGHTNESS && peek(code) <= TangleParse.MODIFIER_TIME_CHANGE) {
+            int modifier = u8(code);
+            switch (modifier) {
+                case TangleParse.MODIFIER_BRIGHTNESS:
+                case TangleParse.MODIFIER_SWITCH_COLORS:
+                    modifiers.add(new int[]{modifier, u8(code)});
+                    break;
+                case TangleParse.MODIFIER_TIMELINE:
+                    throw unsupported(modifier, code);
+                default:
+                    modifiers.add(new int[]{modifier, code.getInt()});
+            }
+        }
+        animation.modifiers = modifiers.toArray(new int[0][]);
+        return animation;
+    }
+
+    private Filter parseFilter(int opcode, ByteBuffer code) {
+        switch (opcode) {
+            case TangleParse.FILTER_NONE:
+                return new Filter(opcode, 0);
+            case TangleParse.FILTER_MIRROR:
+                return new Filter(opcode, 0);
+            case TangleParse.FILTER_BLUR:
+            case TangleParse.FILTER_COLOR_SHIFT:
+            case TangleParse.FILTER_SCATTER:
+                return new Filter(opcode, u8(code));
+            default:
+                throw unsupported(opcode, code);
+        }
+    }
+
+    private Value parseValue(ByteBuffer code) {
+        int opcode = u8(code);
+        switch (opcode) {
+            case TangleParse.CONSTANT: {
+                int constant = code.getInt();
+                return () -> constant;
+            }
+            case TangleParse.CHANNEL: {
+                int channel = u8(code);
+                return () -> channels[channel];
+            }
+            case TangleParse.CHANNEL_PARAMETER_VALUE:
+            case TangleParse.CHANNEL_PARAMETER_VALUE_SMOOTHED: {
+                /* no smoothing, the interpreter has no notion of the event rate */
+                int event = u8(code);
+                return () -> eventParameters[event];
+            }
+            case TangleParse.CHANNEL_ADD_VALUES: {
+                Value a = parseValue(code), b = parseValue(code);
+                return () -> a.get() + b.get();
+            }
+            case TangleParse.CHANNEL_SUB_VALUES: {
+                Value a = parseValue(code), b = parseValue(code);
+                return () -> a.get() - b.get();
+            }
+            case TangleParse.CHANNEL_MUL_VALUES: {
+                Value a = parseValue(code), b = parseValue(code);
+                return () -> a.get() * b.get();
+            }
+            case TangleParse.CHANNEL_DIV_VALUES: {
+                Value a = parseValue(code), b = parseValue(code);
+                return () -> {
+                    int divisor = b.get();
+                    return divisor == 0 ? 0 : a.get() / divisor;
+                };
+            }
+            case TangleParse.CHANNEL_MOD_VALUES: {
+                Value a = parseValue(code), b = parseValue(code);
+                return () -> {
+                    int divisor = b.get();
+                    return divisor == 0 ? 0 : Math.floorMod(a.get(), divisor);
+                };
+            }
+            case TangleParse.CHANNEL_SCALE_VALUE: {
+                Value value = parseValue(code), numerator = parseValue(code), denominator = parseValue(code);
+                return () -> {
+                    int divisor = denominator.get();
+                    return divisor == 0 ? 0 : (int) ((long) value.get() * numerator.get() / divisor);
+                };
+            }
+            case TangleParse.CHANNEL_MAP_VALUE: {
+                Value value = parseValue(code), inMin = parseValue(code), inMax = parseValue(code);
+                Value outMin = parseValue(code), outMax = parseValue(code);
+                return () -> {
+                    int from = inMin.get(), range = inMax.get() - from;
+                    if (range == 0) {
+                        return outMin.get();
+                    }
+                    return outMin.get() + (int) ((long) (value.get() - from) * (outMax.get() - outMin.get()) / range);
+                };
+            }
+            default:
+                throw unsupported(opcode, code);
+        }
+    }
+
+    private static int heightOf(Statement[] statements) {
+        int height = 0;
+        for (Statement statement : statements) {
+            height = Math.max(height, statement.height);
+        }
+        return height;
+    }
+
+    /* ---- rendering ---- */
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static void combine(int opcode, int[] source, int[] target) {
+        switch (opcode) {
+            case TangleParse.DRAWING_SET:
+                System.arraycopy(source, 0, target, 0, target.length);
+                break;
+            case TangleParse.DRAWING_ADD:
+                for (int i = 0; i < target.length; i++) {
+                    target[i] = Math.min(255, target[i] + source[i]);
+                }
+                break;
+            case TangleParse.DRAWING_SUB:
+                for (int i = 0; i < target.length; i++) {
+                    target[i] = Math.max(0, target[i] - source[i]);
+                }
+                break;
+            default:
+                for (int i = 0; i < target.length; i++) {
+                    target[i] = (target[i] * source[i] + 127) / 255;
+                }
+        }
+    }
+
+    /* hue 0..1535, six segments of 256 */
+    private static void hue(int hue, int[] out, int index) {
+        int segment = (hue >> 8) % 6;
+        int rise = hue & 0xFF, fall = 255 - rise;
+        int r, g, b;
+        switch (segment) {
+            case 0: r = 255; g = rise; b = 0; break;
+            case 1: r = fall; g = 255; b = 0; break;
+            case 2: r = 0; g = 255; b = rise; break;
+            case 3: r = 0; g = fall; b = 255; break;
+            case 4: r = rise; g = 0; b = 255; break;
+            default: r = 255; g = 0; b = fall; break;
+        }
+        out[index] = r;
+        out[index + 1] = g;
+        out[index + 2] = b;
+    }
+
+    private static void lerp(int[] from, int[] to, int weight, int[] out, int index) {
+        for (int c = 0; c < 3; c++) {
+            out[index + c] = from[c] + ((to[c] - from[c]) * weight) / 256;
+        }
+    }
+
+    private abstract static class Statement {
+        int height;
+
+        abstract void execute(int time, int[] target, int depth);
+    }
+
+    private class Drawing extends Statement {
+        final int opcode;
+        final int start;
+        final int duration;
+        final Animation animation;
+
+        Drawing(int opcode, int start, int duration, Animation animation) {
+            this.opcode = opcode;
+            this.start = start;
+            this.duration = duration;
+            this.animation = animation;
+            this.height = 1 + animation.height();
+        }
+
+        @Override
+        void execute(int time, int[] target, int depth) {
+            int local = time - start;
+            if (local < 0 || local >= duration) {
+                return;
+            }
+            int[] layer = layers[depth];
+            animation.render(local, layer, depth + 1);
+            combine(opcode, layer, target);
+        }
+    }
+
+    private class Window extends Statement {
+        final int opcode;
+        final int start;
+        final int duration;
+        final Statement[] body;
+
+        Window(int opcode, int start, int duration, Statement[] body) {
+            this.opcode = opcode;
+            this.start = start;
+            this.duration = duration;
+            this.body = body;
+            this.height = 1 + heightOf(body);
+        }
+
+        @Override
+        void execute(int time, int[] target, int depth) {
+            int local = time - start;
+            if (local < 0 || local >= duration) {
+                return;
+            }
+            int[] layer = layers[depth];
+            Arrays.fill(layer, 0);
+            run(body, local, layer, depth + 1);
+            combine(opcode, layer, target);
+        }
+    }
+
+    private class ChannelWrite extends Statement {
+        final int channel;
+        final Value value;
+
+        ChannelWrite(int channel, Value value) {
+            this.channel = channel;
+            this.value = value;
+        }
+
+        @Override
+        void execute(int time, int[] target, int depth) {
+            channels[channel] = value.get();
+        }
+    }
+
+    private interface Value {
+        int get();
+    }
+
+    private static class Defined {
+        final Statement[] body;
+
+        Defined(Statement[] body) {
+            this.body = body;
+        }
+    }
+
+    private abstract class Animation {
+        final int duration;
+        int[][] modifiers = new int[0][];
+
+        Animation(int duration) {
+            this.duration = duration;
+        }
+
+        int height() {
+            return 0;
+        }
+
+        void render(int time, int[] out, int depth) {
+            for (int[] modifier : modifiers) {
+                switch (modifier[0]) {
+                    case TangleParse.MODIFIER_TIME_LOOP:
+                        time = modifier[1] > 0 ? Math.floorMod(time, modifier[1]) : time;
+                        break;
+                    case TangleParse.MODIFIER_TIME_SCALE:
+                        time = (int) ((long) time * modifier[1] / 100);
+                        break;
+                    case TangleParse.MODIFIER_TIME_CHANGE:
+                        time += modifier[1];
+                        break;
+                }
+            }
+            int cycle = duration > 0 ? Math.floorMod(time, duration) : 0;
+            draw(cycle, out, depth);
+            for (int[] modifier : modifiers) {
+                switch (modifier[0]) {
+                    case TangleParse.MODIFIER_BRIGHTNESS:
+                        scale(out, modifier[1], 255);
+                        break;
+                    case TangleParse.MODIFIER_FADE_IN:
+                        if (cycle < modifier[1]) {
+                            scale(out, cycle, modifier[1]);
+                        }
+                        break;
+                    case TangleParse.MODIFIER_FADE_OUT:
+                        if (duration - cycle < modifier[1]) {
+                            scale(out, duration - cycle, modifier[1]);
+                        }
+                        break;
+                    case TangleParse.MODIFIER_SWITCH_COLORS:
+                        switchColors(out, modifier[1]);
+                        break;
+                }
+            }
+        }
+
+        /* time within the cycle, 0 .. duration - 1 */
+        abstract void draw(int time, int[] out, int depth);
+
+        /* position in the cycle, 0 .. 65535 */
+        int phase(int time) {
+            return duration > 0 ? (int) (((long) time << 16) / duration) : 0;
+        }
+    }
+
+    private static void scale(int[] out, int numerator, int denominator) {
+        for (int i = 0; i < out.length; i++) {
+            out[i] = out[i] * numerator / denominator;
+        }
+    }
+
+    private static void switchColors(int[] out, int mode) {
+        int a, b;
+        switch (mode) {
+            case TangleParse.MODIFIER_SWITCH_RG: a = 0; b = 1; break;
+            case TangleParse.MODIFIER_SWITCH_GB: a = 1; b = 2; break;
+            case TangleParse.MODIFIER_SWITCH_BR: a = 2; b = 0; break;
+            default: return;
+        }
+        for (int i = 0; i < out.length; i += 3) {
+            int swap = out[i + a];
+            out[i + a] = out[i + b];
+            out[i + b] = swap;
+        }
+    }
+
+    private class Fill extends Animation {
+        final int[] color;
+
+        Fill(int duration, int[] color) {
+            super(duration);
+            this.color = color;
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            for (int i = 0; i < out.length; i += 3) {
+                out[i] = color[0];
+                out[i + 1] = color[1];
+                out[i + 2] = color[2];
+            }
+        }
+    }
+
+    /* one full hue cycle spans length% of the strip and moves along it once per duration */
+    private class Rainbow extends Animation {
+        final int length;
+
+        Rainbow(int duration, int length) {
+            super(duration);
+            this.length = Math.max(1, length);
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            long span = (long) pixelCount * length;
+            int offset = (int) (((long) phase(time) * 1536) >> 16);
+            for (int i = 0; i < pixelCount; i++) {
+                int position = (int) (i * 255L * 1536 / span);
+                hue((position + offset) % 1536, out, i * 3);
+            }
+        }
+    }
+
+    private class Fade extends Animation {
+        final int[] from;
+        final int[] to;
+
+        Fade(int duration, int[] from, int[] to) {
+            super(duration);
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            int weight = phase(time) >> 8;
+            for (int i = 0; i < out.length; i += 3) {
+                lerp(from, to, weight, out, i);
+            }
+        }
+    }
+
+    /* a shot of length% of the strip with a fading tail, flies over the strip once per duration */
+    private class Projectile extends Animation {
+        final int[] color;
+        final int length;
+
+        Projectile(int duration, int[] color, int length) {
+            super(duration);
+            this.color = color;
+            this.length = length;
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            int tail = Math.max(1, pixelCount * length / 255);
+            int head = (int) ((long) phase(time) * (pixelCount + tail) >> 16);
+            for (int i = 0; i < pixelCount; i++) {
+                int behind = head - i;
+                int intensity = behind >= 0 && behind < tail ? 255 - behind * 255 / tail : 0;
+                for (int c = 0; c < 3; c++) {
+                    out[i * 3 + c] = color[c] * intensity / 255;
+                }
+            }
+        }
+    }
+
+    private class Loading extends Animation {
+        final int[] fill;
+        final int[] background;
+
+        Loading(int duration, int[] fill, int[] background) {
+            super(duration);
+            this.fill = fill;
+            this.background = background;
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            int filled = (int) ((long) phase(time) * pixelCount >> 16);
+            for (int i = 0; i < pixelCount; i++) {
+                int[] color = i < filled ? fill : background;
+                out[i * 3] = color[0];
+                out[i * 3 + 1] = color[1];
+                out[i * 3 + 2] = color[2];
+            }
+        }
+    }
+
+    /* the palette blends around a loop spanning length% of the strip, rolling once per duration */
+    private class PaletteRoll extends Animation {
+        final int[][] palette;
+        final int length;
+
+        PaletteRoll(int duration, int[][] palette, int length) {
+            super(duration);
+            this.palette = palette;
+            this.length = Math.max(1, length);
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            long span = (long) pixelCount * length;
+            int offset = phase(time);
+            for (int i = 0; i < pixelCount; i++) {
+                int position = ((int) (i * 255L * 65536 / span) + offset) & 0xFFFF;
+                int scaled = position * palette.length;
+                int index = scaled >> 16;
+                lerp(palette[index], palette[(index + 1) % palette.length], (scaled & 0xFFFF) >> 8, out, i * 3);
+            }
+        }
+    }
+
+    private class DefinedAnimation extends Animation {
+        final Defined defined;
+
+        DefinedAnimation(int duration, Defined defined) {
+            super(duration);
+            this.defined = defined;
+        }
+
+        @Override
+        int height() {
+            return heightOf(defined.body);
+        }
+
+        @Override
+        void draw(int time, int[] out, int depth) {
+            Arrays.fill(out, 0);
+            run(defined.body, time, out, depth);
+        }
+    }
+
+    private class FilterDrawing extends Statement {
+        final int start;
+        final int duration;
+        final Filter filter;
+
+        FilterDrawing(int start, int duration, Filter filter) {
+            this.start = start;
+            this.duration = duration;
+            this.filter = filter;
+            this.height = 1;
+        }
+
+        @Override
+        void execute(int time, int[] target, int depth) {
+            int local = time - start;
+            if (local < 0 || local >= duration) {
+                return;
+            }
+            filter.apply(local, target, layers[depth]);
+        }
+    }
+
+    private class Filter {
+        final int opcode;
+        final int amount;
+        final int[] rotation = new int[9];
+
+        Filter(int opcode, int amount) {
+            this.opcode = opcode;
+            this.amount = amount;
+            /* hue rotation matrix in 1/1024 steps for the color shift */
+            double angle = amount / 255.0 * 2 * Math.PI;
+            double cos = Math.cos(angle), sin = Math.sin(angle), third = 1 / 3.0, root = Math.sqrt(third);
+            double[] m = {
+                    cos + (1 - cos) * third, third * (1 - cos) - root * sin, third * (1 - cos) + root * sin,
+                    third * (1 - cos) + root * sin, cos + third * (1 - cos), third * (1 - cos) - root * sin,
+                    third * (1 - cos) - root * sin, third * (1 - cos) + root * sin, cos + third * (1 - cos)};
+            for (int i = 0; i < 9; i++) {
+                rotation[i] = (int) Math.round(m[i] * 1024);
+            }
+        }
+
+        void apply(int time, int[] target, int[] scratch) {
+            switch (opcode) {
+                case TangleParse.FILTER_BLUR:
+                    System.arraycopy(target, 0, scratch, 0, target.length);
+                    for (int i = 0; i < target.length; i++) {
+                        int left = i >= 3 ? scratch[i - 3] : scratch[i];
+                        int right = i + 3 < target.length ? scratch[i + 3] : scratch[i];
+                        int blurred = (left + scratch[i] + right) / 3;
+                        target[i] = scratch[i] + (blurred - scratch[i]) * amount / 255;
+                    }
+                    break;
+                case TangleParse.FILTER_COLOR_SHIFT:
+                    for (int i = 0; i < target.length; i += 3) {
+                        int r = target[i], g = target[i + 1], b = target[i + 2];
+                        for (int c = 0; c < 3; c++) {
+                            target[i + c] = clamp((rotation[c * 3] * r + rotation[c * 3 + 1] * g + rotation[c * 3 + 2] * b + 512) >> 10);
+                        }
+                    }
+                    break;
+                case TangleParse.FILTER_MIRROR:
+                    for (int i = 0; i < pixelCount / 2; i++) {
+                        System.arraycopy(target, i * 3, target, (pixelCount - 1 - i) * 3, 3);
+                    }
+                    break;
+                case TangleParse.FILTER_SCATTER: {
+                    /* every pixel takes the color of a neighbour up to amount% of the strip away, reshuffled every 50 ms */
+                    System.arraycopy(target, 0, scratch, 0, target.length);
+                    int reach = pixelCount * amount / 255 + 1;
+                    int seed = time / 50;
+                    for (int i = 0; i < pixelCount; i++) {
+                        int hash = (i * 0x9E3779B1) ^ (seed * 0x85EBCA6B);
+                        hash ^= hash >>> 15;
+                        hash *= 0x2C1B3C6D;
+                        hash ^= hash >>> 12;
+                        int source = Math.floorMod(i + Math.floorMod(hash, 2 * reach - 1) - (reach - 1), pixelCount);
+                        System.arraycopy(scratch, source * 3, target, i * 3, 3);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.tangle.tanglelibrary;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Named TNGL modules for {@code include "name"} lines, with their compiled bytecode fragments
+ * cached by content hash.
+ * <p>
+ * TNGL bytecode has no addresses, a module compiles to the same bytes wherever it is included, so
+ * a scene is assembled from the cached fragments of its includes followed by its own code. A
+ * module is emitted once per scene, after the modules it includes. Macros defined in a module are
+ * available to everything that includes it.
+ * <p>
+ * The hash of a fragment covers the module source and the hashes of its includes, editing a
+ * module recompiles it and the modules including it, nothing else.
+ */
+public class TnglModules {
+
+    static final int MAX_FRAGMENTS = 256;
+
+    /* macro name(parameters) on its own line, the body follows up to an endMacro line */
+    static class Macro {
+        final String name;
+        final List<String> parameters;
+        final Pattern parameterPattern;
+        final List<String> body = new ArrayList<>();
+
+        Macro(String name, List<String> parameters) {
+            this.name = name;
+            this.parameters = parameters;
+            StringBuilder words = new StringBuilder();
+            for (String parameter : parameters) {
+                words.append(words.length() > 0 ? "|" : "").append(Pattern.quote(parameter));
+            }
+            this.parameterPattern = Pattern.compile("\\b(" + words + ")\\b");
+        }
+
+        /* parameters are replaced as whole words, like a C preprocessor macro */
+        String expand(int line, List<String> arguments) {
+            if (parameters.isEmpty()) {
+                return body.get(line);
+            }
+            Matcher matcher = parameterPattern.matcher(body.get(line));
+            StringBuffer expanded = new StringBuffer();
+            while (matcher.find()) {
+                matcher.appendReplacement(expanded, Matcher.quoteReplacement(arguments.get(parameters.indexOf(matcher.group(1)))));
+            }
+            matcher.appendTail(expanded);
+            return expanded.toString();
+        }
+    }
+
+    static class Fragment {
+        final String key;
+        final byte[] bytecode;
+        final Map<String, List<int[]>> slots;
+        final Map<String, Macro> macros;
+        final List<Fragment> dependencies;
+
+        Fragment(String key, byte[] bytecode, Map<String, List<int[]>> slots, Map<String, Macro> macros, List<Fragment> dependencies) {
+            this.key = key;
+            this.bytecode = bytecode;
+            this.slots = slots;
+            this.macros = macros;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Map<String, String> sources = new HashMap<>();
+    /* fragment of every module by name until a source changes, includes then skip hashing too */
+    private final Map<String, Fragment> resolved = new HashMap<>();
+    private final Map<String, Fragment> fragments = new LinkedHashMap<String, Fragment>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+            return size() > MAX_FRAGMENTS;
+        }
+    };
+    private final ArrayDeque<String> compiling = new ArrayDeque<>();
+    private TangleTracer tracer = TangleTracer.NOOP;
+    private TangleParse.Logger logger = TangleParse.ANDROID_LOG;
+    private int compiled;
+
+    public synchronized void setTracer(TangleTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public synchronized void setLogger(TangleParse.Logger logger) {
+        this.logger = logger;
+    }
+
+    /* a changed source only gets a new fragment, the old one ages out of the cache */
+    public synchronized void put(String name, String source) {
+        sources.put(name, source);
+        resolved.clear();
+    }
+
+    public synchronized boolean remove(String name) {
+        resolved.clear();
+        return sources.remove(name) != null;
+    }
+
+    public synchronized boolean contains(String name) {
+        return sources.containsKey(name);
+    }
+
+    /* modules compiled so far, cache hits do not count */
+    public synchronized int getCompileCount() {
+        return compiled;
+    }
+
+    public synchronized void clearCache() {
+        fragments.clear();
+        resolved.clear();
+    }
+
+    synchronized Fragment getFragment(String name) throws IOException {
+        Fragment fragment = resolved.get(name);
+        if (fragment != null) {
+            return fragment;
+        }
+        String source = sources.get(name);
+        if (source == null) {
+            throw new IOException("Unknown TNGL module " + name);
+        }
+        if (compiling.contains(name)) {
+            throw new IOException("TNGL include cycle: " + name + " includes itself through " + compiling);
+        }
+        compiling.push(name);
+        try {
+            List<Fragment> dependencies = new ArrayList<>();
+            for (String include : getIncludes(source)) {
+                dependencies.add(getFragment(include));
+            }
+            String key = getKey(source, dependencies);
+            fragment = fragments.get(key);
+            if (fragment == null) {
+                fragment = compile(key, source);
+                fragments.put(key, fragment);
+            }
+            resolved.put(name, fragment);
+            return fragment;
+        } finally {
+            compiling.pop();
+        }
+    }
+
+    private Fragment compile(String key, String source) throws IOException {
+        tracer.begin("module");
+        try {
+            TangleParse parser = new TangleParse();
+            parser.setTracer(tracer);
+            parser.setLogger(logger);
+            parser.setModules(this);
+            UploadPipeline.PayloadBuffer bytecode = new UploadPipeline.PayloadBuffer(1024);
+            List<Fragment> dependencies = parser.getFragment(new StringReader(source), bytecode);
+            compiled++;
+            return new Fragment(key, bytecode.toByteArray(), parser.slots,
+                    Collections.unmodifiableMap(parser.macros), Collections.unmodifiableList(dependencies));
+        } finally {
+            tracer.end("module");
+        }
+    }
+
+    private static List<String> getIncludes(String source) throws IOException {
+        List<String> includes = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(source));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            Matcher matcher = TangleParse.INCLUDE.matcher(line);
+            if (matcher.matches()) {
+                includes.add(matcher.group(1));
+            }
+        }
+        return includes;
+    }
+
+    private static String getKey(String source, List<Fragment> dependencies) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(source.getBytes(StandardCharsets.UTF_8));
+        for (Fragment dependency : dependencies) {
+            digest.update(dependency.key.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package com.tangle.tanglelibrary;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * TNGL compiled once with parameter slots, specialized per device by patching the slots in a copy
+ * of the bytecode instead of compiling the script again.
+ * <p>
+ * Slots are written as {@code $name} or {@code $name:type} where a TNGL value would go, e.g.
+ * {@code device($dev)} or {@code animFill(1000, $color:rgb)}. Types are u8 (default, ids and
+ * bytes), i32 (numbers and times) and rgb (colors given as 0xRRGGBB). A slot may be used more than
+ * once, every use is patched.
+ */
+public class TnglTemplate {
+
+    public static final int SLOT_U8 = 0;
+    public static final int SLOT_I32 = 1;
+    public static final int SLOT_RGB = 2;
+
+    private final byte[] bytecode;
+    private final Map<String, int[][]> slots = new LinkedHashMap<>();
+
+    TnglTemplate(byte[] bytecode, Map<String, List<int[]>> slots) {
+        this.bytecode = bytecode;
+        for (Map.Entry<String, List<int[]>> slot : slots.entrySet()) {
+            this.slots.put(slot.getKey(), slot.getValue().toArray(new int[0][]));
+        }
+    }
+
+    public static TnglTemplate compile(String code) throws IOException {
+        return compile(new StringReader(code));
+    }
+
+    public static TnglTemplate compile(Reader code) throws IOException {
+        return compile(code, null);
+    }
+
+    /* slots of included modules are patched like the template's own */
+    public static TnglTemplate compile(Reader code, TnglModules modules) throws IOException {
+        TangleParse parser = new TangleParse();
+        parser.setModules(modules);
+        UploadPipeline.PayloadBuffer bytecode = new UploadPipeline.PayloadBuffer(4096);
+        parser.getPayload(code, bytecode);
+        return new TnglTemplate(bytecode.toByteArray(), parser.slots);
+    }
+
+    static int getSlotType(String type) {
+        if (type == null || type.equals("u8")) {
+            return SLOT_U8;
+        }
+        return type.equals("i32") ? SLOT_I32 : SLOT_RGB;
+    }
+
+    static int getSlotSize(int type) {
+        switch (type) {
+            case SLOT_I32:
+                return 4;
+            case SLOT_RGB:
+                return 3;
+            default:
+                return 1;
+        }
+    }
+
+    public Set<String> getSlotNames() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+
+    public int getSize() {
+        return bytecode.length;
+    }
+
+    /* every slot needs a value, a missing one is a provisioning error rather than a silent zero */
+    public byte[] specialize(Map<String, Integer> values) {
+        byte[] specialized = bytecode.clone();
+        for (Map.Entry<String, int[][]> slot : slots.entrySet()) {
+            Integer value = values.get(slot.getKey());
+            if (value == null) {
+                throw new IllegalArgumentException("Missing value for TNGL slot $" + slot.getKey());
+            }
+            for (int[] use : slot.getValue()) {
+                patch(specialized, use[0], use[1], value);
+            }
+        }
+        return specialized;
+    }
+
+    /* one copy per device, patched on the executor; results keep the order of the values */
+    public List<byte[]> specialize(List<Map<String, Integer>> values, ExecutorService executor) throws InterruptedException, ExecutionException {
+        List<Callable<byte[]>> tasks = new ArrayList<>(values.size());
+        for (Map<String, Integer> device : values) {
+            tasks.add(() -> specialize(device));
+        }
+        List<byte[]> specialized = new ArrayList<>(values.size());
+        for (Future<byte[]> future : executor.invokeAll(tasks)) {
+            specialized.add(future.get());
+        }
+        return specialized;
+    }
+
+    private static void patch(byte[] bytes, int offset, int type, int value) {
+        switch (type) {
+            case SLOT_I32:
+                for (int i = 0; i < 4; i++) {
+                    bytes[offset + i] = (byte) (value & 0xFF);
+                    value >>= Byte.SIZE;
+                }
+                break;
+            case SLOT_RGB:
+                bytes[offset] = (byte) (value >> 16);
+                bytes[offset + 1] = (byte) (value >> 8);
+                bytes[offset + 2] = (byte) value;
+                break;
+            default:
+                bytes[offset] = (byte) value;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.tangle.tanglelibrary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes when the controller acknowledged the last chunk of a payload, or exceptionally with an
+ * IOException when it was not delivered, a TimeoutException after withTimeout or a
+ * CancellationException after cancel. Cancelling, also by a timeout, withdraws the payload from the
+ * pipeline when nothing else waits for it.
+ * <p>
+ * Operations compose without blocking, e.g.
+ * {@code service.uploadTngl(...).thenCompose(v -> service.setTimeline(0, false)).thenCompose(v -> service.emitEvent(...))}.
+ * Dependent stages and progress listeners run on the Bluetooth callback thread unless the *Async
+ * variants are used, so they must not block. Payloads they write never wait for room in the
+ * transmit queue.
+ */
+public class UploadFuture extends CompletableFuture<Void> implements UploadPipeline.UploadCallback {
+
+    public interface ProgressListener {
+        void onProgress(int acknowledged, int length);
+    }
+
+    public interface Scheduler {
+        /* false when the task was dropped, e.g. the connection is closed */
+        boolean postDelayed(Runnable task, long delayMillis);
+    }
+
+    private final Scheduler scheduler;
+    private final List<ProgressListener> progressListeners = new ArrayList<>(1);
+    private Runnable canceller;
+    private CompletableFuture<Void> prerequisite;
+
+    public UploadFuture(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public static UploadFuture completed(Scheduler scheduler) {
+        UploadFuture future = new UploadFuture(scheduler);
+        future.complete(null);
+        return future;
+    }
+
+    /* how the payload is withdrawn once the future is cancelled */
+    synchronized void setCanceller(Runnable canceller) {
+        this.canceller = canceller;
+    }
+
+    /* a skipped duplicate program is delivered only once the upload that sends the program is */
+    synchronized void after(CompletableFuture<Void> upload) {
+        this.prerequisite = upload;
+    }
+
+    public UploadFuture addProgressListener(ProgressListener listener) {
+        synchronized (progressListeners) {
+            progressListeners.add(listener);
+        }
+        return this;
+    }
+
+    /* java 8 has no orTimeout, the timeout runs on the scheduler instead */
+    public UploadFuture withTimeout(long timeoutMillis) {
+        boolean scheduled = scheduler.postDelayed(() -> {
+            if (completeExceptionally(new TimeoutException("Upload timed out after " + timeoutMillis + " ms"))) {
+                withdraw();
+            }
+        }, timeoutMillis);
+        /* a timeout that never runs would leave the caller waiting for good */
+        if (!scheduled && completeExceptionally(new IOException("Upload timeout could not be scheduled, the connection is closed"))) {
+            withdraw();
+        }
+        return this;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            withdraw();
+        }
+        return cancelled;
+    }
+
+    private void withdraw() {
+        Runnable withdraw;
+        synchronized (this) {
+            withdraw = canceller;
+        }
+        if (withdraw != null) {
+            withdraw.run();
+        }
+    }
+
+    @Override
+    public void onUploadDone(boolean delivered) {
+        CompletableFuture<Void> waitFor;
+        synchronized (this) {
+            waitFor = prerequisite;
+        }
+        if (!delivered) {
+            completeExceptionally(new IOException("Upload was not delivered"));
+        } else if (waitFor == null) {
+            complete(null);
+        } else {
+            waitFor.whenComplete((result, error) -> {
+                if (error == null) {
+                    complete(null);
+                } else {
+                    completeExceptionally(new IOException("Program was not delivered", error));
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onUploadProgress(int acknowledged, int length) {
+        ProgressListener[] listeners;
+        synchronized (progressListeners) {
+            listeners = progressListeners.toArray(new ProgressListener[0]);
+        }
+        for (ProgressListener listener : listeners) {
+            listener.onProgress(acknowledged, length);
+        }
+    }
+}
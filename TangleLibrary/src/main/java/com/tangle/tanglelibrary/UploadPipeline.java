@@ -0,0 +1,785 @@
+package com.tangle.tanglelibrary;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Overlaps the upload stages: payloads are compiled on the compile executor, framed one frame
+ * ahead of the radio and transmitted as soon as the previous frame is acknowledged.
+ * <p>
+ * Uploads keep the order in which they were submitted, a payload that is still compiling holds
+ * back the ones behind it. When {@code capacity} uploads are waiting, submitting blocks, is refused
+ * or drops the oldest waiting upload, depending on the backpressure policy.
+ * <p>
+ * The pipeline starts paused and is resumed once the link is synchronized. When the link drops it
+ * is paused again: uploads that were not completely acknowledged are rewound and sent again from
+ * their first frame once the pipeline is resumed.
+ * <p>
+ * The payload id in the frame header is the CRC32 of the payload, a resent payload keeps its id.
+ * A program submitted with {@link #submitProgram} that is identical to one still waiting in the
+ * queue is coalesced into it. Other uploads, e.g. events or timeline records that are meant to
+ * repeat, are always sent.
+ * <p>
+ * Threads that deliver upload callbacks or run the connection's timers never wait for room, waiting
+ * there would stall what makes room. Their uploads are admitted over the capacity instead.
+ * <p>
+ * A frame the radio refuses, e.g. while another GATT operation is outstanding, is written again
+ * after a doubling backoff on the retry scheduler. After {@code MAX_REFUSALS} refusals its upload
+ * fails.
+ */
+public class UploadPipeline {
+    private final String TAG = UploadPipeline.class.getName();
+
+    public static final int TARGET_TERMINAL = 0;
+    public static final int TARGET_SYNC = 1;
+
+    public static final int BACKPRESSURE_BLOCK = 0;
+    public static final int BACKPRESSURE_REJECT = 1;
+    public static final int BACKPRESSURE_DROP_OLDEST = 2;
+
+    static final int HEADER_SIZE = 12;
+    static final int MAX_RETRIES = 3;
+    static final int MAX_REFUSALS = 5;
+    static final long REFUSAL_BACKOFF_MILLIS = 10;
+
+    public interface FrameWriter {
+        /* returns false when the frame could not be handed over to the radio */
+        boolean writeFrame(int target, byte[] frame);
+    }
+
+    public interface Scheduler {
+        void postDelayed(Runnable task, long delayMillis);
+    }
+
+    public interface ActivityListener {
+        /* busy from the first queued upload until the last frame is acknowledged, called with the pipeline locked */
+        void onActivityChanged(boolean busy);
+    }
+
+    public interface UploadCallback {
+        /* delivered is false when a frame ran out of retries or the upload was failed, cleared or dropped */
+        void onUploadDone(boolean delivered);
+
+        /* bytes of the payload acknowledged so far, after every frame */
+        default void onUploadProgress(int acknowledged, int length) {
+        }
+    }
+
+    /* set on threads that must never wait for room, see forbidWaiting */
+    private static final ThreadLocal<Boolean> WAIT_FORBIDDEN = new ThreadLocal<>();
+
+    private final FrameWriter writer;
+    private final Executor compileExecutor;
+    private final int capacity;
+    private int packetSize = 512;
+    private int backpressure = BACKPRESSURE_BLOCK;
+    private TangleMetrics metrics = new TangleMetrics();
+    private TangleTracer tracer = TangleTracer.NOOP;
+    private ActivityListener activityListener;
+    private Scheduler retryScheduler;
+    private boolean active;
+    private long frameSequence = 0;
+
+    private final LinkedList<Upload> queue = new LinkedList<>();
+    private final ArrayList<Upload> started = new ArrayList<>();
+    private Upload current;
+    private Frame pending;
+    private Frame inFlight;
+    private boolean paused = true;
+    /* bumped by clear(), submissions waiting for room when the connection closes are refused */
+    private int clears;
+    /* bumped by hold(), a refused frame scheduled for retry before is gone */
+    private int holds;
+    private boolean backingOff;
+    private Thread resyncThread;
+    private int resyncIndex;
+
+    public UploadPipeline(FrameWriter writer, Executor compileExecutor, int capacity) {
+        this.writer = writer;
+        this.compileExecutor = compileExecutor;
+        this.capacity = capacity;
+    }
+
+    public synchronized void setPacketSize(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    /* refused and dropped uploads are completed as not delivered */
+    public synchronized void setBackpressure(int policy) {
+        this.backpressure = policy;
+    }
+
+    public synchronized void setMetrics(TangleMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized void setTracer(TangleTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public synchronized void setActivityListener(ActivityListener listener) {
+        this.activityListener = listener;
+    }
+
+    /* without one, a refused frame is written again on the next submission or acknowledgement */
+    public synchronized void setRetryScheduler(Scheduler scheduler) {
+        this.retryScheduler = scheduler;
+    }
+
+    /* for the looper threads of the connection, from now on the calling thread never waits for room */
+    static void forbidWaiting() {
+        WAIT_FORBIDDEN.set(Boolean.TRUE);
+    }
+
+    static void runWithoutWaiting(Runnable task) {
+        Boolean forbidden = WAIT_FORBIDDEN.get();
+        WAIT_FORBIDDEN.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            if (forbidden == null) {
+                WAIT_FORBIDDEN.remove();
+            }
+        }
+    }
+
+    public void submit(ByteBuffer... parts) throws InterruptedException {
+        submit((UploadCallback) null, parts);
+    }
+
+    public void submit(UploadCallback callback, ByteBuffer... parts) throws InterruptedException {
+        Upload upload = new Upload(TARGET_TERMINAL, false, callback);
+        upload.setParts(parts);
+        enqueue(upload, true);
+    }
+
+    /* never blocks, refused when the queue is full or the link is down; dropped instead of replayed after a dropout */
+    public boolean offer(ByteBuffer... parts) {
+        Upload upload = new Upload(TARGET_TERMINAL, false, null);
+        upload.droppable = true;
+        upload.setParts(parts);
+        synchronized (this) {
+            if (paused || queue.size() >= capacity) {
+                return false;
+            }
+            upload.submittedNanos = metrics.now();
+            queue.add(upload);
+            metrics.setQueueDepth(queue.size());
+        }
+        pump();
+        return true;
+    }
+
+    /* the compile stage runs on the compile executor while earlier uploads are on the air */
+    public void submit(Callable<ByteBuffer[]> compiler) throws InterruptedException {
+        submit(null, compiler);
+    }
+
+    public void submit(UploadCallback callback, Callable<ByteBuffer[]> compiler) throws InterruptedException {
+        compile(new Upload(TARGET_TERMINAL, false, callback), compiler);
+    }
+
+    /* like submit, but once compiled an identical program still waiting in the queue takes over the callback */
+    public void submitProgram(UploadCallback callback, Callable<ByteBuffer[]> compiler) throws InterruptedException {
+        Upload upload = new Upload(TARGET_TERMINAL, false, callback);
+        upload.coalescable = true;
+        compile(upload, compiler);
+    }
+
+    private void compile(Upload upload, Callable<ByteBuffer[]> compiler) throws InterruptedException {
+        enqueue(upload, true);
+        if (upload.cancelled) {
+            return;
+        }
+        compileExecutor.execute(() -> {
+            ByteBuffer[] parts = null;
+            try {
+                parts = compiler.call();
+            } catch (Exception e) {
+                Log.e(TAG, "Compilation failed: " + e);
+            }
+            synchronized (UploadPipeline.this) {
+                if (upload.cancelled) {
+                    return;
+                }
+                if (parts != null) {
+                    upload.setParts(parts);
+                    if (upload.coalescable) {
+                        coalesce(upload);
+                    }
+                } else {
+                    upload.failed = true;
+                }
+            }
+            if (upload.failed) {
+                upload.complete(false);
+            }
+            pump();
+        });
+    }
+
+    /* single unframed value, e.g. for the sync characteristic, does not count against the capacity */
+    public void submitRaw(int target, byte[] value) {
+        submitRaw(target, value, null);
+    }
+
+    public void submitRaw(int target, byte[] value, UploadCallback callback) {
+        Upload upload = new Upload(target, true, callback);
+        upload.setParts(ByteBuffer.wrap(value));
+        try {
+            enqueue(upload, false);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueue(Upload upload, boolean bounded) throws InterruptedException {
+        boolean mayWait = WAIT_FORBIDDEN.get() == null;
+        TangleTracer tracer = getTracer();
+        Upload refused = null;
+        tracer.begin("enqueue");
+        try {
+            synchronized (this) {
+                upload.submittedNanos = metrics.now();
+                if (resyncThread == Thread.currentThread()) {
+                    /* resync writes go in front of everything that is held back */
+                    queue.add(resyncIndex++, upload);
+                } else if (bounded && queue.size() >= capacity && backpressure == BACKPRESSURE_REJECT) {
+                    refused = upload;
+                    /* never compiled, nothing will take it out of the queue */
+                    upload.cancelled = true;
+                } else {
+                    if (bounded && queue.size() >= capacity && backpressure == BACKPRESSURE_DROP_OLDEST) {
+                        refused = dropOldest();
+                    }
+                    int cleared = clears;
+                    while (bounded && mayWait && queue.size() >= capacity && clears == cleared) {
+                        wait();
+                    }
+                    if (clears != cleared) {
+                        refused = upload;
+                        upload.cancelled = true;
+                    } else {
+                        queue.add(upload);
+                    }
+                }
+                if (refused != null) {
+                    metrics.onUploadDropped();
+                }
+                metrics.setQueueDepth(queue.size());
+            }
+        } finally {
+            /* also when interrupted while waiting for room */
+            tracer.end("enqueue");
+        }
+        if (refused != null) {
+            refused.complete(false);
+        }
+        if (refused != upload) {
+            pump();
+        }
+    }
+
+    /* raw writes are kept, the sync sequence must not lose a part */
+    private Upload dropOldest() {
+        for (Iterator<Upload> it = queue.iterator(); it.hasNext(); ) {
+            Upload queued = it.next();
+            if (!queued.raw) {
+                it.remove();
+                queued.cancelled = true;
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /* an identical program still waiting in the queue takes over the callbacks, returns it or null */
+    private Upload coalesce(Upload upload) {
+        for (Upload queued : queue) {
+            if (queued == upload) {
+                break;
+            }
+            if (queued.coalescable && queued.parts != null && queued.sameContent(upload)) {
+                synchronized (queued) {
+                    queued.callbacks.addAll(upload.callbacks);
+                }
+                queue.remove(upload);
+                metrics.onUploadCoalesced();
+                metrics.setQueueDepth(queue.size());
+                notifyAll();
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The callback no longer hears from its upload. An upload nobody waits for any more is taken out
+     * of the queue, or stops after the frame on the air when it was already being sent.
+     */
+    public void cancel(UploadCallback callback) {
+        synchronized (this) {
+            Upload upload = find(callback);
+            if (upload == null) {
+                return;
+            }
+            synchronized (upload) {
+                upload.callbacks.remove(callback);
+                if (!upload.callbacks.isEmpty()) {
+                    return;
+                }
+            }
+            upload.cancelled = true;
+            if (queue.remove(upload)) {
+                metrics.setQueueDepth(queue.size());
+                notifyAll();
+            }
+            started.remove(upload);
+            if (current == upload) {
+                current = null;
+            }
+            pending = withoutCancelled(pending);
+        }
+        pump();
+    }
+
+    private Upload find(UploadCallback callback) {
+        for (Upload upload : started) {
+            if (upload.callbacks.contains(callback)) {
+                return upload;
+            }
+        }
+        for (Upload upload : queue) {
+            if (upload.callbacks.contains(callback)) {
+                return upload;
+            }
+        }
+        return null;
+    }
+
+    private static Frame withoutCancelled(Frame frame) {
+        while (frame != null && frame.upload.cancelled) {
+            frame = frame.next;
+        }
+        if (frame != null) {
+            frame.next = withoutCancelled(frame.next);
+        }
+        return frame;
+    }
+
+    public void onFrameWritten(boolean success) {
+        Upload done = null;
+        Upload progressed = null;
+        int acknowledged = 0;
+        synchronized (this) {
+            if (inFlight == null) {
+                return;
+            }
+            if (inFlight.upload.cancelled) {
+                /* nobody waits for it, neither retried nor reported */
+                tracer.asyncEnd("ack", inFlight.sequence);
+            } else if (!success && inFlight.retries < MAX_RETRIES) {
+                inFlight.retries++;
+                metrics.onRetry();
+                pending = inFlight.retryBefore(pending);
+            } else {
+                if (!success) {
+                    inFlight.upload.incomplete = true;
+                }
+                tracer.asyncEnd("ack", inFlight.sequence);
+                metrics.onChunkAcknowledged(inFlight.sentNanos);
+                progressed = inFlight.upload;
+                acknowledged = progressed.acknowledged += inFlight.bytes.length - (progressed.raw ? 0 : HEADER_SIZE);
+                if (inFlight.last) {
+                    done = inFlight.upload;
+                    started.remove(done);
+                    if (!done.raw) {
+                        metrics.onUploadDone(done.submittedNanos);
+                    }
+                }
+            }
+            inFlight = null;
+        }
+        if (progressed != null) {
+            progressed.progress(acknowledged);
+        }
+        if (done != null) {
+            done.complete(!done.incomplete);
+        }
+        pump();
+    }
+
+    /* link lost: hold everything back, unacknowledged uploads are rewound, stale raw and offered writes are dropped */
+    public void pause() {
+        for (Upload dropped : hold()) {
+            dropped.complete(false);
+        }
+    }
+
+    private synchronized List<Upload> hold() {
+        List<Upload> dropped = new ArrayList<>();
+        paused = true;
+        holds++;
+        backingOff = false;
+        for (int i = started.size() - 1; i >= 0; i--) {
+            Upload upload = started.get(i);
+            if (!upload.raw && !upload.droppable) {
+                upload.rewind();
+                queue.addFirst(upload);
+            } else {
+                dropped.add(upload);
+            }
+        }
+        started.clear();
+        current = null;
+        pending = null;
+        inFlight = null;
+        for (Iterator<Upload> it = queue.iterator(); it.hasNext(); ) {
+            Upload upload = it.next();
+            if (upload.raw || upload.droppable) {
+                dropped.add(upload);
+                it.remove();
+            }
+        }
+        metrics.setQueueDepth(queue.size());
+        notifyAll();
+        return dropped;
+    }
+
+    /* connection closed on purpose, nothing is held back for it */
+    public void clear() {
+        List<Upload> dropped;
+        synchronized (this) {
+            dropped = hold();
+            dropped.addAll(queue);
+            queue.clear();
+            clears++;
+            metrics.setQueueDepth(0);
+            updateActivity();
+        }
+        for (Upload upload : dropped) {
+            upload.complete(false);
+        }
+    }
+
+    /* everything the resync task submits from its thread is sent before the held back uploads */
+    public void resume(Runnable resync) {
+        synchronized (this) {
+            resyncThread = Thread.currentThread();
+            resyncIndex = 0;
+        }
+        try {
+            resync.run();
+        } finally {
+            synchronized (this) {
+                resyncThread = null;
+                paused = false;
+            }
+        }
+        pump();
+    }
+
+    private synchronized TangleTracer getTracer() {
+        return tracer;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && current == null && pending == null && inFlight == null;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void pump() {
+        Upload failed;
+        do {
+            synchronized (this) {
+                failed = transmit();
+                updateActivity();
+            }
+            if (failed != null) {
+                failed.complete(false);
+            }
+        } while (failed != null);
+    }
+
+    private synchronized void updateActivity() {
+        boolean busy = !isIdle();
+        if (busy != active) {
+            active = busy;
+            if (activityListener != null) {
+                activityListener.onActivityChanged(busy);
+            }
+        }
+    }
+
+    /* with the pipeline locked, returns the upload that failed because its frame was refused too often */
+    private Upload transmit() {
+        if (paused || inFlight != null || backingOff) {
+            return null;
+        }
+        if (pending == null) {
+            pending = nextFrame();
+        }
+        if (pending == null) {
+            return null;
+        }
+        inFlight = pending;
+        pending = pending.next;
+        inFlight.next = null;
+        tracer.begin("transmit");
+        boolean written = writer.writeFrame(inFlight.target, inFlight.bytes);
+        tracer.end("transmit");
+        if (!written) {
+            Frame refused = inFlight;
+            inFlight = null;
+            return refuse(refused);
+        }
+        inFlight.sentNanos = metrics.now();
+        inFlight.sequence = frameSequence++;
+        tracer.asyncBegin("ack", inFlight.sequence);
+        metrics.onChunkSent(inFlight.bytes.length);
+        /* frame the next chunk while the radio is busy with this one */
+        if (pending == null) {
+            pending = nextFrame();
+        }
+        return null;
+    }
+
+    private Upload refuse(Frame frame) {
+        if (++frame.refusals > MAX_REFUSALS) {
+            Log.w(TAG, "Frame was refused " + MAX_REFUSALS + " times, upload failed");
+            Upload failed = frame.upload;
+            failed.cancelled = true;
+            started.remove(failed);
+            if (current == failed) {
+                current = null;
+            }
+            pending = withoutCancelled(pending);
+            return failed;
+        }
+        Log.w(TAG, "Frame was not written");
+        metrics.onRetry();
+        pending = frame.retryBefore(pending);
+        if (retryScheduler != null) {
+            final int held = holds;
+            backingOff = true;
+            retryScheduler.postDelayed(() -> {
+                synchronized (UploadPipeline.this) {
+                    if (held != holds) {
+                        return;
+                    }
+                    backingOff = false;
+                }
+                pump();
+            }, REFUSAL_BACKOFF_MILLIS << (frame.refusals - 1));
+        }
+        return null;
+    }
+
+    private Frame nextFrame() {
+        while (current == null) {
+            Upload head = queue.peek();
+            if (head == null || (head.parts == null && !head.failed)) {
+                return null;
+            }
+            queue.poll();
+            metrics.setQueueDepth(queue.size());
+            notifyAll();
+            if (!head.failed) {
+                current = head;
+                started.add(head);
+            }
+        }
+        tracer.begin("frame");
+        Frame frame = current.nextFrame(packetSize);
+        tracer.end("frame");
+        if (current.isFramed()) {
+            frame.last = true;
+            current = null;
+        }
+        return frame;
+    }
+
+    static class Frame {
+        final Upload upload;
+        final int target;
+        final byte[] bytes;
+        boolean last;
+        int retries;
+        int refusals;
+        long sentNanos;
+        long sequence;
+        Frame next;
+
+        Frame(Upload upload, byte[] bytes) {
+            this.upload = upload;
+            this.target = upload.target;
+            this.bytes = bytes;
+        }
+
+        Frame retryBefore(Frame following) {
+            next = following;
+            return this;
+        }
+    }
+
+    static class Upload {
+        final int target;
+        final boolean raw;
+        final List<UploadCallback> callbacks = new ArrayList<>(1);
+        long payloadUuid;
+        long submittedNanos;
+        ByteBuffer[] source;
+        ByteBuffer[] parts;
+        boolean failed;
+        boolean droppable;
+        boolean coalescable;
+        boolean incomplete;
+        boolean cancelled;
+        int length;
+        int acknowledged;
+        int offset;
+        int partIndex;
+
+        Upload(int target, boolean raw, UploadCallback callback) {
+            this.target = target;
+            this.raw = raw;
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        void setParts(ByteBuffer... parts) {
+            CRC32 crc = new CRC32();
+            this.length = 0;
+            for (ByteBuffer part : parts) {
+                this.length += part.remaining();
+                crc.update(part.duplicate());
+            }
+            this.payloadUuid = crc.getValue();
+            this.source = parts;
+            rewind();
+        }
+
+        /* the id is only a checksum, equal ids are confirmed byte by byte */
+        boolean sameContent(Upload other) {
+            if (payloadUuid != other.payloadUuid || length != other.length) {
+                return false;
+            }
+            int partIndex = 0, otherIndex = 0;
+            ByteBuffer part = null, otherPart = null;
+            for (int i = 0; i < length; i++) {
+                while (part == null || !part.hasRemaining()) {
+                    part = source[partIndex++].duplicate();
+                }
+                while (otherPart == null || !otherPart.hasRemaining()) {
+                    otherPart = other.source[otherIndex++].duplicate();
+                }
+                if (part.get() != otherPart.get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /* called without the pipeline lock held, what the callbacks submit does not wait for room */
+        void progress(int acknowledged) {
+            UploadCallback[] listening;
+            synchronized (this) {
+                listening = callbacks.toArray(new UploadCallback[0]);
+            }
+            runWithoutWaiting(() -> {
+                for (UploadCallback callback : listening) {
+                    callback.onUploadProgress(acknowledged, length);
+                }
+            });
+        }
+
+        void complete(boolean delivered) {
+            UploadCallback[] done;
+            synchronized (this) {
+                done = callbacks.toArray(new UploadCallback[0]);
+                callbacks.clear();
+            }
+            runWithoutWaiting(() -> {
+                for (UploadCallback callback : done) {
+                    callback.onUploadDone(delivered);
+                }
+            });
+        }
+
+        void rewind() {
+            parts = new ByteBuffer[source.length];
+            for (int i = 0; i < source.length; i++) {
+                parts[i] = source[i].duplicate();
+            }
+            offset = 0;
+            partIndex = 0;
+            acknowledged = 0;
+            incomplete = false;
+        }
+
+        boolean isFramed() {
+            return offset >= length;
+        }
+
+        Frame nextFrame(int packetSize) {
+            int header = raw ? 0 : HEADER_SIZE;
+            int chunkSize = raw ? length : Math.min(packetSize - HEADER_SIZE, length - offset);
+
+            byte[] bytes = new byte[header + chunkSize];
+            if (!raw) {
+                putUInt32(bytes, 0, payloadUuid);
+                putUInt32(bytes, 4, offset);
+                putUInt32(bytes, 8, length);
+            }
+            /* copy straight from the parts, the payload itself is never assembled */
+            int filled = 0;
+            while (filled < chunkSize) {
+                ByteBuffer part = parts[partIndex];
+                if (!part.hasRemaining()) {
+                    partIndex++;
+                    continue;
+                }
+                int count = Math.min(part.remaining(), chunkSize - filled);
+                part.get(bytes, header + filled, count);
+                filled += count;
+            }
+            offset += chunkSize;
+            return new Frame(this, bytes);
+        }
+
+        private static void putUInt32(byte[] bytes, int index, long value) {
+            for (int i = 0; i < 4; i++) {
+                bytes[index + i] = (byte) (value & 0xFF);
+                value >>= Byte.SIZE;
+            }
+        }
+    }
+
+    /* compile output that is handed over to the pipeline without another copy */
+    public static class PayloadBuffer extends ByteArrayOutputStream {
+        public PayloadBuffer(int size) {
+            super(size);
+        }
+
+        public synchronized ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChannelStreamerTest {
+
+    private static final int DEVICE = 0xff;
+    private static final int CODE = 7;
+
+    private long nanos;
+    private int timeline = 1000;
+    private boolean refuse;
+    private final List<byte[]> payloads = new ArrayList<>();
+
+    /* 50 Hz, a frame is 20 ms */
+    private ChannelStreamer streamer(int samplesPerFrame) {
+        ChannelStreamer streamer = new ChannelStreamer(payload -> {
+            payloads.add(payload);
+            return !refuse;
+        }, () -> timeline, () -> nanos, DEVICE, CODE, 50, samplesPerFrame);
+        /* quantized samples are the values themselves */
+        streamer.setRange(0, 255);
+        return streamer;
+    }
+
+    private void at(int millis) {
+        nanos = millis * 1000000L;
+    }
+
+    /* "parameter@timeline" of every record of a payload */
+    private static List<String> records(byte[] payload) {
+        assertEquals(0, payload.length % ChannelStreamer.RECORD_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        List<String> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            assertEquals(ChannelStreamer.FLAG_EMIT_EVENT, buffer.get() & 0xff);
+            assertEquals(DEVICE, buffer.get() & 0xff);
+            assertEquals(CODE, buffer.get());
+            int parameter = buffer.get() & 0xff;
+            records.add(parameter + "@" + buffer.getInt());
+        }
+        return records;
+    }
+
+    @Test
+    public void valuesAreDecimatedToSlots() {
+        ChannelStreamer streamer = streamer(4);
+        at(0);
+        streamer.offer(10);
+        at(1);
+        streamer.offer(20);
+        at(6);
+        streamer.offer(100);
+        /* nothing in the third slot, it keeps the value of the second one */
+        at(19);
+        streamer.offer(200);
+        at(20);
+        streamer.tick();
+
+        assertEquals(1, payloads.size());
+        assertEquals(Arrays.asList("15@1100", "100@1105", "200@1115"), records(payloads.get(0)));
+        assertEquals(3, streamer.getSamplesSent());
+        assertEquals(1, streamer.getSamplesFiltered());
+        assertEquals(1, streamer.getFramesSent());
+    }
+
+    @Test
+    public void valuesOutsideTheRangeAreClamped() {
+        ChannelStreamer streamer = streamer(1);
+        streamer.setRange(-1, 1);
+        streamer.offer(-3);
+        streamer.tick();
+        streamer.offer(0);
+        streamer.tick();
+        streamer.offer(5);
+        streamer.tick();
+        assertEquals(Arrays.asList("0@1100"), records(payloads.get(0)));
+        assertEquals(Arrays.asList("128@1100"), records(payloads.get(1)));
+        assertEquals(Arrays.asList("255@1100"), records(payloads.get(2)));
+    }
+
+    @Test
+    public void smallMovesAreFilteredByTheDeadband() {
+        ChannelStreamer streamer = streamer(1);
+        streamer.setDeadband(10);
+        for (int value : new int[]{100, 105, 91, 110, 120}) {
+            streamer.offer(value);
+            streamer.tick();
+        }
+        /* an unchanged value sends nothing at all */
+        streamer.offer(120);
+        streamer.tick();
+
+        assertEquals(3, payloads.size());
+        assertEquals(Arrays.asList("100@1100"), records(payloads.get(0)));
+        assertEquals(Arrays.asList("110@1100"), records(payloads.get(1)));
+        assertEquals(Arrays.asList("120@1100"), records(payloads.get(2)));
+        assertEquals(3, streamer.getSamplesFiltered());
+    }
+
+    @Test
+    public void samplesArePlayedOutEvenlyAhead() {
+        ChannelStreamer streamer = streamer(4);
+        streamer.setPlayoutDelay(250);
+        streamer.setDeadband(0);
+        timeline = 5000;
+        /* a late tick still spaces the samples by the frame period */
+        at(27);
+        streamer.offer(1);
+        streamer.tick();
+        assertEquals(Arrays.asList("1@5250", "1@5255", "1@5260", "1@5265"), records(payloads.get(0)));
+    }
+
+    @Test
+    public void sourceIsPolledWhenNothingWasOffered() {
+        ChannelStreamer streamer = streamer(2);
+        float[] level = {40};
+        streamer.setSource(() -> level[0]);
+        streamer.tick();
+        level[0] = 80;
+        streamer.offer(60);
+        streamer.tick();
+        assertEquals(Arrays.asList("40@1100"), records(payloads.get(0)));
+        /* an offered value wins over the source */
+        assertEquals(Arrays.asList("60@1100"), records(payloads.get(1)));
+    }
+
+    @Test
+    public void refusedFrameIsDroppedAndItsValueSentAgain() {
+        ChannelStreamer streamer = streamer(1);
+        refuse = true;
+        streamer.offer(50);
+        streamer.tick();
+        assertEquals(1, streamer.getFramesDropped());
+        assertEquals(0, streamer.getFramesSent());
+        assertEquals(0, streamer.getSamplesSent());
+
+        /* unchanged, but the controller never got it */
+        refuse = false;
+        streamer.offer(50);
+        streamer.tick();
+        assertEquals(2, payloads.size());
+        assertEquals(Arrays.asList("50@1100"), records(payloads.get(1)));
+        assertEquals(1, streamer.getFramesSent());
+        assertEquals(1, streamer.getSamplesSent());
+        assertEquals(0, streamer.getSamplesFiltered());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroFrameRateIsRejected() {
+        new ChannelStreamer(payload -> true, () -> timeline, () -> nanos, DEVICE, CODE, 0, 4);
+    }
+
+    /* a frame would be shorter than the 1 ms the timeline resolves */
+    @Test(expected = IllegalArgumentException.class)
+    public void frameRateAboveAKilohertzIsRejected() {
+        new ChannelStreamer(payload -> true, () -> timeline, () -> nanos, DEVICE, CODE, 1001, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void frameWithoutSamplesIsRejected() {
+        streamer(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyRangeIsRejected() {
+        streamer(4).setRange(1, 1);
+    }
+}
@@ -0,0 +1,207 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionStateMachineTest {
+
+    /* link calls and states in order, delayed tasks are run by the test */
+    private final List<String> calls = new ArrayList<>();
+    private final List<Long> delays = new ArrayList<>();
+    private final List<Runnable> delayed = new ArrayList<>();
+
+    private final ConnectionStateMachine connection = new ConnectionStateMachine(new ConnectionStateMachine.Link() {
+        @Override
+        public void connect() {
+            calls.add("connect");
+        }
+
+        @Override
+        public void discoverServices() {
+            calls.add("discover");
+        }
+
+        @Override
+        public void resync() {
+            calls.add("resync");
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            delays.add(delayMillis);
+            delayed.add(task);
+        }
+
+        @Override
+        public void abort() {
+            calls.add("abort");
+        }
+
+        @Override
+        public void onStateChanged(int state) {
+            calls.add("state " + state);
+        }
+    });
+
+    private void runDelayed() {
+        List<Runnable> tasks = new ArrayList<>(delayed);
+        delayed.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    private void connectToReady() {
+        connection.connect();
+        connection.onConnected();
+        connection.onServicesDiscovered(true);
+        connection.onSynchronized();
+        assertTrue(connection.isReady());
+        calls.clear();
+        delays.clear();
+        delayed.clear();
+    }
+
+    @Test
+    public void setupRunsInOrderToReady() {
+        connection.connect();
+        connection.onConnected();
+        connection.onServicesDiscovered(true);
+        connection.onSynchronized();
+
+        assertEquals(Arrays.asList(
+                "state " + ConnectionStateMachine.STATE_CONNECTING, "connect",
+                "state " + ConnectionStateMachine.STATE_CONNECTED, "discover",
+                "resync",
+                "state " + ConnectionStateMachine.STATE_READY), calls);
+        assertTrue(connection.isReady());
+    }
+
+    @Test
+    public void dropoutReconnectsWithDoublingBackoff() {
+        connection.setBackoff(100, 1000);
+        /* leave the connect timeout out */
+        connection.setConnectTimeout(0);
+        connectToReady();
+        for (int attempt = 0; attempt < 6; attempt++) {
+            connection.onDisconnected();
+            assertEquals(ConnectionStateMachine.STATE_RECONNECTING, connection.getState());
+            runDelayed();
+        }
+        assertEquals(Arrays.asList(100L, 200L, 400L, 800L, 1000L, 1000L), delays);
+        assertEquals(6, calls.stream().filter("connect"::equals).count());
+
+        /* a completed setup starts the backoff over */
+        connection.onConnected();
+        connection.onServicesDiscovered(true);
+        connection.onSynchronized();
+        assertEquals(0, connection.getAttempts());
+        connection.onDisconnected();
+        assertEquals(100L, (long) delays.get(delays.size() - 1));
+    }
+
+    @Test
+    public void failedDiscoveryIsRetried() {
+        connection.connect();
+        connection.onConnected();
+        calls.clear();
+        /* leave the setup watchdog out */
+        delayed.clear();
+        connection.onServicesDiscovered(false);
+        assertEquals(0, calls.size());
+        runDelayed();
+        assertEquals(Arrays.asList("discover"), calls);
+    }
+
+    @Test
+    public void disconnectEndsTheConnectionForGood() {
+        connectToReady();
+        connection.onDisconnected();
+        connection.disconnect();
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTING, connection.getState());
+        /* the reconnect scheduled before is void */
+        runDelayed();
+        assertFalse(calls.contains("connect"));
+
+        connection.onDisconnected();
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, connection.getState());
+        connection.onConnected();
+        connection.onSynchronized();
+        assertEquals(ConnectionStateMachine.STATE_DISCONNECTED, connection.getState());
+    }
+
+    @Test
+    public void lateCallbacksOfAnotherPhaseAreIgnored() {
+        connection.connect();
+        connection.onSynchronized();
+        connection.onServicesDiscovered(true);
+        assertEquals(ConnectionStateMachine.STATE_CONNECTING, connection.getState());
+        assertFalse(calls.contains("resync"));
+    }
+
+    @Test
+    public void setupThatNeverGetsReadyIsAborted() {
+        connection.setSetupTimeout(3000);
+        connection.setConnectTimeout(2000);
+        connection.connect();
+        connection.onConnected();
+        assertEquals(Arrays.asList(2000L, 3000L), delays);
+        calls.clear();
+        /* the connect timeout ended with the attempt */
+        runDelayed();
+        assertEquals(Arrays.asList("abort"), calls);
+
+        connection.onDisconnected();
+        assertEquals(ConnectionStateMachine.STATE_RECONNECTING, connection.getState());
+    }
+
+    @Test
+    public void watchdogOfAReadySetupDoesNothing() {
+        connection.connect();
+        connection.onConnected();
+        connection.onServicesDiscovered(true);
+        connection.onSynchronized();
+        calls.clear();
+        runDelayed();
+        assertEquals(0, calls.size());
+        assertTrue(connection.isReady());
+    }
+
+    @Test
+    public void connectAttemptThatHangsIsAborted() {
+        connection.setConnectTimeout(2000);
+        connection.connect();
+        assertEquals(Arrays.asList(2000L), delays);
+        calls.clear();
+        runDelayed();
+        assertEquals(Arrays.asList("abort"), calls);
+
+        /* the reconnect gets a timeout of its own */
+        connection.onDisconnected();
+        assertEquals(ConnectionStateMachine.STATE_RECONNECTING, connection.getState());
+        calls.clear();
+        runDelayed();
+        assertEquals(Arrays.asList("connect"), calls);
+        calls.clear();
+        runDelayed();
+        assertEquals(Arrays.asList("abort"), calls);
+    }
+
+    @Test
+    public void connectTimeoutOfAFailedAttemptDoesNothing() {
+        connection.setConnectTimeout(2000);
+        connection.connect();
+        connection.onDisconnected();
+        calls.clear();
+        /* the stale timeout and the reconnect */
+        runDelayed();
+        assertEquals(Arrays.asList("connect"), calls);
+    }
+}
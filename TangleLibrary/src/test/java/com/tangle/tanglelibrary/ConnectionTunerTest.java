@@ -0,0 +1,141 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@link ConnectionTuner} policy against {@link SimulatedLink}, whose write callbacks
+ * take as long as the connection interval of the current phase.
+ */
+public class ConnectionTunerTest {
+
+    private static final int CAPACITY = 4;
+    private static final long BALANCED_DELAY = 1000;
+    private static final long LOW_POWER_DELAY = 30000;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final SimulatedLink link = new SimulatedLink(clock, 7, CAPACITY);
+
+    private ConnectionTuner connect(boolean tuned) {
+        ConnectionTuner tuner = null;
+        if (tuned) {
+            tuner = link.attachTuner();
+            tuner.setDelays(BALANCED_DELAY, LOW_POWER_DELAY);
+        } else {
+            /* an untuned link keeps the balanced interval it was connected with */
+            link.setPhase(ConnectionTuner.PHASE_BALANCED);
+        }
+        link.getConnection().connect();
+        clock.runFor(LOW_POWER_DELAY + 1000);
+        assertTrue(link.getConnection().isReady());
+        return tuner;
+    }
+
+    /* submits count payloads of size bytes as fast as the queue takes them, returns when the last was acknowledged */
+    private long upload(int count, int size) {
+        long start = clock.millis();
+        long[] done = {-1};
+        int[] submitted = {0};
+        Runnable[] feed = new Runnable[1];
+        feed[0] = () -> {
+            while (submitted[0] < count && link.getPipeline().getQueueDepth() < CAPACITY) {
+                final boolean last = ++submitted[0] == count;
+                ByteBuffer payload = ByteBuffer.allocate(size).putInt(0, submitted[0]);
+                try {
+                    link.getPipeline().submit(delivered -> {
+                        if (last) {
+                            done[0] = clock.millis();
+                        }
+                    }, payload);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            if (submitted[0] < count) {
+                clock.schedule(1, feed[0]);
+            }
+        };
+        feed[0].run();
+        for (int i = 0; i < 1000000 && done[0] < 0 && clock.runNext(); i++) {
+            // run
+        }
+        assertTrue("upload did not finish", done[0] >= 0);
+        return done[0] - start;
+    }
+
+    @Test
+    public void bulkWhileUploadingThenBalancedThenLowPower() {
+        ConnectionTuner tuner = connect(true);
+        assertEquals(ConnectionTuner.PHASE_LOW_POWER, tuner.getPhase());
+        link.getPhases().clear();
+
+        upload(20, 4096);
+        assertEquals(ConnectionTuner.PHASE_BULK, tuner.getPhase());
+        assertEquals(Arrays.asList(ConnectionTuner.PHASE_BULK), link.getPhases());
+
+        clock.runFor(BALANCED_DELAY - 10);
+        assertEquals(ConnectionTuner.PHASE_BULK, tuner.getPhase());
+        clock.runFor(20);
+        assertEquals(ConnectionTuner.PHASE_BALANCED, tuner.getPhase());
+        clock.runFor(LOW_POWER_DELAY - BALANCED_DELAY);
+        assertEquals(ConnectionTuner.PHASE_LOW_POWER, tuner.getPhase());
+        assertEquals(Arrays.asList(ConnectionTuner.PHASE_BULK, ConnectionTuner.PHASE_BALANCED, ConnectionTuner.PHASE_LOW_POWER),
+                link.getPhases());
+
+        TangleMetrics.Snapshot snapshot = link.getMetrics().snapshot();
+        assertEquals(ConnectionTuner.PHASE_LOW_POWER, snapshot.connectionPhase);
+        assertTrue(snapshot.phaseChanges >= 6);
+        assertTrue(snapshot.bulkMillis > 0);
+        assertTrue(snapshot.balancedMillis >= 2 * (LOW_POWER_DELAY - BALANCED_DELAY));
+        assertTrue(snapshot.lowPowerMillis > 0);
+    }
+
+    @Test
+    public void tunedUploadsAreFaster() {
+        long untuned = new ConnectionTunerTest().uploadTime(false);
+        long tuned = new ConnectionTunerTest().uploadTime(true);
+        assertTrue("tuned " + tuned + " ms, untuned " + untuned + " ms", tuned * 4 < untuned);
+    }
+
+    private long uploadTime(boolean tuned) {
+        connect(tuned);
+        return upload(20, 4096);
+    }
+
+    @Test
+    public void eventStreamStaysInBulk() {
+        ConnectionTuner tuner = connect(true);
+        link.getPhases().clear();
+        for (int event = 0; event < 100; event++) {
+            clock.schedule(event * 200L, () -> assertTrue(link.getPipeline().offer(ByteBuffer.wrap(new byte[8]))));
+        }
+        clock.runFor(100 * 200);
+        assertEquals(Arrays.asList(ConnectionTuner.PHASE_BULK), link.getPhases());
+        clock.runFor(BALANCED_DELAY + 10);
+        assertEquals(ConnectionTuner.PHASE_BALANCED, tuner.getPhase());
+    }
+
+    @Test
+    public void dropoutTunesTheNewConnection() {
+        ConnectionTuner tuner = connect(true);
+        link.getConnection().setBackoff(100, 2000);
+        link.getPhases().clear();
+        link.scheduleDisconnect(clock.millis() + 100, 500);
+        clock.runFor(200);
+        assertEquals(ConnectionTuner.PHASE_NONE, tuner.getPhase());
+        assertFalse(link.getConnection().isReady());
+
+        clock.runFor(5000);
+        assertTrue(link.getConnection().isReady());
+        assertEquals(ConnectionTuner.PHASE_BALANCED, tuner.getPhase());
+        assertTrue(link.getPhases().contains(ConnectionTuner.PHASE_BULK));
+        clock.runFor(LOW_POWER_DELAY);
+        assertEquals(ConnectionTuner.PHASE_LOW_POWER, tuner.getPhase());
+    }
+}
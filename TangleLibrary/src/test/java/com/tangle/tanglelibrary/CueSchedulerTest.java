@@ -0,0 +1,170 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CueSchedulerTest {
+
+    /* the timeline clock follows the timeline cues, like a Stopwatch updated by the sender */
+    private int now;
+    private final List<String> sent = new ArrayList<>();
+
+    /* futures that are completed already never need a timer */
+    private static final UploadFuture.Scheduler NO_TIMERS = (task, delayMillis) -> false;
+
+    private final CueScheduler.Sender sender = new CueScheduler.Sender() {
+        @Override
+        public UploadFuture emitEvent(int device_id, int code, int parameter, int timeline_timestamp) {
+            sent.add("event " + code + " at " + timeline_timestamp);
+            return UploadFuture.completed(NO_TIMERS);
+        }
+
+        @Override
+        public UploadFuture setTimeline(int timeline_timestamp, boolean timeline_paused) {
+            sent.add("timeline " + timeline_timestamp + (timeline_paused ? " paused" : ""));
+            now = timeline_timestamp;
+            return UploadFuture.completed(NO_TIMERS);
+        }
+    };
+
+    private CueScheduler scheduler(int lookAheadMillis, CueScheduler.Cue... cues) {
+        CueScheduler scheduler = new CueScheduler(sender, () -> now, lookAheadMillis);
+        scheduler.setCues(Arrays.asList(cues));
+        return scheduler;
+    }
+
+    private int pollAt(CueScheduler scheduler, int time) {
+        now = time;
+        return scheduler.poll();
+    }
+
+    @Test
+    public void eventsGoOutAheadStampedWithTheirTime() {
+        /* given out of order, sent in order */
+        CueScheduler scheduler = scheduler(600,
+                CueScheduler.Cue.event(3000, 0xff, 3, 0),
+                CueScheduler.Cue.event(1000, 0xff, 1, 0),
+                CueScheduler.Cue.event(1500, 0xff, 2, 0));
+
+        assertEquals(0, pollAt(scheduler, 0));
+        assertEquals(1, pollAt(scheduler, 500));
+        assertEquals(0, pollAt(scheduler, 800));
+        assertEquals(1, pollAt(scheduler, 1000));
+        assertFalse(scheduler.isFinished());
+        assertEquals(1, pollAt(scheduler, 2500));
+        assertTrue(scheduler.isFinished());
+        assertEquals(0, pollAt(scheduler, 4000));
+        assertEquals(Arrays.asList("event 1 at 1000", "event 2 at 1500", "event 3 at 3000"), sent);
+    }
+
+    @Test
+    public void timelineCueIsSentWhenDueAndHoldsBackLaterCues() {
+        CueScheduler scheduler = scheduler(500,
+                CueScheduler.Cue.event(900, 0xff, 1, 0),
+                CueScheduler.Cue.timeline(1000, 5000, false),
+                CueScheduler.Cue.event(1100, 0xff, 2, 0),
+                CueScheduler.Cue.event(5200, 0xff, 3, 0));
+
+        /* the jump is not due yet, nothing behind it goes out */
+        assertEquals(1, pollAt(scheduler, 600));
+        assertEquals(Arrays.asList("event 1 at 900"), sent);
+
+        /* 30 ms late: the jump carries the lateness, the cue it jumped over is never sent */
+        assertEquals(2, pollAt(scheduler, 1030));
+        assertEquals(Arrays.asList("event 1 at 900", "timeline 5030", "event 3 at 5200"), sent);
+        assertTrue(scheduler.isFinished());
+    }
+
+    @Test
+    public void cuesTheLatenessSkippedAreSentRightAway() {
+        CueScheduler scheduler = scheduler(100,
+                CueScheduler.Cue.timeline(1000, 5000, false),
+                CueScheduler.Cue.event(5000, 0xff, 1, 0),
+                CueScheduler.Cue.event(5020, 0xff, 2, 0),
+                CueScheduler.Cue.event(5300, 0xff, 3, 0));
+
+        assertEquals(3, pollAt(scheduler, 1040));
+        assertEquals(Arrays.asList("timeline 5040", "event 1 at 5000", "event 2 at 5020"), sent);
+    }
+
+    @Test
+    public void loopingShowResendsTheLoopStartOnEveryPass() {
+        CueScheduler scheduler = scheduler(100,
+                CueScheduler.Cue.event(0, 0xff, 1, 0),
+                CueScheduler.Cue.event(500, 0xff, 2, 0),
+                CueScheduler.Cue.timeline(1000, 0, false));
+
+        assertEquals(1, pollAt(scheduler, 0));
+        for (int pass = 0; pass < 3; pass++) {
+            sent.clear();
+            assertEquals(1, pollAt(scheduler, 450));
+            /* the jump back comes a little late every time */
+            assertEquals(2, pollAt(scheduler, 1000 + 10 * pass));
+            assertEquals(Arrays.asList("event 2 at 500", "timeline " + 10 * pass, "event 1 at 0"), sent);
+        }
+        assertFalse(scheduler.isFinished());
+    }
+
+    @Test
+    public void pausingTimelineCueIsSentPaused() {
+        CueScheduler scheduler = scheduler(500,
+                CueScheduler.Cue.timeline(1000, 1000, true),
+                CueScheduler.Cue.event(1200, 0xff, 1, 0));
+
+        assertEquals(0, pollAt(scheduler, 900));
+        /* on time and in place, the cursor just moves on */
+        assertEquals(2, pollAt(scheduler, 1000));
+        assertEquals(Arrays.asList("timeline 1000 paused", "event 1 at 1200"), sent);
+    }
+
+    @Test
+    public void timelineGoingBackMakesCuesDueAgain() {
+        CueScheduler scheduler = scheduler(50,
+                CueScheduler.Cue.event(100, 0xff, 1, 0),
+                CueScheduler.Cue.event(200, 0xff, 2, 0));
+
+        assertEquals(2, pollAt(scheduler, 250));
+        assertTrue(scheduler.isFinished());
+        assertEquals(1, pollAt(scheduler, 150));
+        assertEquals(Arrays.asList("event 1 at 100", "event 2 at 200", "event 2 at 200"), sent);
+    }
+
+    @Test
+    public void newCuesStartOver() {
+        CueScheduler scheduler = scheduler(100, CueScheduler.Cue.event(100, 0xff, 1, 0));
+        assertEquals(1, pollAt(scheduler, 50));
+        scheduler.setCues(Arrays.asList(CueScheduler.Cue.event(100, 0xff, 2, 0)));
+        assertFalse(scheduler.isFinished());
+        assertEquals(1, pollAt(scheduler, 50));
+        assertEquals(Arrays.asList("event 1 at 100", "event 2 at 100"), sent);
+    }
+
+    @Test
+    public void windowDoesNotOverflowAtTheEndOfTheTimeline() {
+        CueScheduler scheduler = scheduler(1000, CueScheduler.Cue.event(Integer.MAX_VALUE - 10, 0xff, 1, 0));
+        assertEquals(1, pollAt(scheduler, Integer.MAX_VALUE - 100));
+        assertTrue(scheduler.isFinished());
+    }
+
+    @Test
+    public void cuesAcrossTheWrapKeepTheirOrder() {
+        CueScheduler scheduler = scheduler(200,
+                CueScheduler.Cue.event(Integer.MIN_VALUE + 50, 0xff, 2, 0),
+                CueScheduler.Cue.event(Integer.MAX_VALUE - 50, 0xff, 1, 0));
+
+        assertEquals(2, pollAt(scheduler, Integer.MAX_VALUE - 100));
+        assertEquals(Arrays.asList("event 1 at " + (Integer.MAX_VALUE - 50), "event 2 at " + (Integer.MIN_VALUE + 50)), sent);
+
+        /* past the wrap and back before it */
+        assertEquals(0, pollAt(scheduler, Integer.MIN_VALUE + 60));
+        assertEquals(2, pollAt(scheduler, Integer.MAX_VALUE - 60));
+        assertEquals(4, sent.size());
+    }
+}
@@ -0,0 +1,156 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static void assertWithin(long expected, long actual, double error) {
+        assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected * error);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < LatencyHistogram.EXACT; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.bucketValue((int) value));
+        }
+        assertEquals(LatencyHistogram.EXACT, LatencyHistogram.bucketIndex(LatencyHistogram.EXACT));
+    }
+
+    /* every power of two opens a new group of sub buckets, the last bucket takes Long.MAX_VALUE */
+    @Test
+    public void bucketBoundaries() {
+        for (int bit = 6; bit < 63; bit++) {
+            long power = 1L << bit;
+            int index = LatencyHistogram.bucketIndex(power);
+            assertEquals((index - LatencyHistogram.EXACT) % LatencyHistogram.SUB_BUCKETS, 0);
+            assertEquals(index - 1, LatencyHistogram.bucketIndex(power - 1));
+            assertEquals(index + LatencyHistogram.SUB_BUCKETS - 1, LatencyHistogram.bucketIndex(power * 2 - 1));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void bucketValuesStayWithinTheError() {
+        int last = -1;
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 2; value = value * 5 / 4 + 1) {
+            int index = LatencyHistogram.bucketIndex(value);
+            assertTrue(index >= last && index < LatencyHistogram.BUCKETS);
+            assertWithin(value, LatencyHistogram.bucketValue(index), 0.03);
+            last = index;
+        }
+        for (int index = 1; index < LatencyHistogram.BUCKETS; index++) {
+            assertTrue(LatencyHistogram.bucketValue(index) > LatencyHistogram.bucketValue(index - 1));
+        }
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Long> values = new ArrayList<>();
+        for (long value = 1; value <= 10000; value++) {
+            values.add(value);
+        }
+        /* the order of recording makes no difference */
+        Collections.shuffle(values, new Random(31));
+        for (long value : values) {
+            histogram.record(value);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(10000, histogram.getMax());
+        assertEquals(5000.5, histogram.getMean(), 1e-9);
+        assertWithin(5000, histogram.getPercentile(50), 0.03);
+        assertWithin(9000, histogram.getPercentile(90), 0.03);
+        assertWithin(9900, histogram.getPercentile(99), 0.03);
+        assertEquals(10000, histogram.getPercentile(100));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+    @Test
+    public void percentilesOfABimodalDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(40);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(20000);
+        }
+        assertEquals(40, histogram.getPercentile(50));
+        assertEquals(40, histogram.getPercentile(90));
+        assertWithin(20000, histogram.getPercentile(91), 0.03);
+        /* never above the largest value recorded */
+        assertEquals(20000, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void outOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(2, histogram.getCount());
+        assertWithin(Long.MAX_VALUE, histogram.getPercentile(99), 0.03);
+
+        /* the sum of these overflows a long */
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE * 2.0 / 3, histogram.getMean(), Long.MAX_VALUE * 1e-9);
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean(), 0);
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(99));
+        histogram.record(10);
+        assertEquals(10, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void snapshotIsACopy() {
+        long[] now = {0};
+        TangleMetrics metrics = new TangleMetrics(() -> now[0]);
+        List<TangleMetrics.Snapshot> published = new ArrayList<>();
+        metrics.addListener(published::add);
+
+        metrics.onChunkSent(20);
+        metrics.setQueueDepth(3);
+        metrics.setQueueDepth(1);
+        now[0] = 2000000;
+        metrics.onChunkAcknowledged(0);
+        TangleMetrics.Snapshot snapshot = metrics.publish();
+        assertEquals(1, published.size());
+        assertEquals(snapshot, published.get(0));
+        assertEquals(2000000, snapshot.timestampNanos);
+        assertEquals(20, snapshot.bytesSent);
+        assertEquals(3, snapshot.maxQueueDepth);
+        assertEquals(1, snapshot.chunkRoundTrip.count);
+        assertEquals(2000, snapshot.chunkRoundTrip.max);
+        assertTrue(snapshot.toText().contains("tangle_chunk_rtt_us_max 2000\n"));
+
+        /* a reset leaves the snapshot taken before alone and keeps the queue as it is */
+        metrics.reset();
+        assertEquals(20, snapshot.bytesSent);
+        assertEquals(1, snapshot.chunkRoundTrip.count);
+        TangleMetrics.Snapshot after = metrics.snapshot();
+        assertEquals(0, after.bytesSent);
+        assertEquals(0, after.chunkRoundTrip.count);
+        assertEquals(1, after.queueDepth);
+        assertEquals(1, after.maxQueueDepth);
+    }
+}
@@ -0,0 +1,214 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the upload pipeline and the connection state machine against {@link SimulatedLink} in
+ * virtual time, hours of traffic take a fraction of a second.
+ */
+public class LinkSoakTest {
+
+    private static final int CAPACITY = 4;
+
+    private static class Run {
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedLink link;
+        final List<byte[]> submitted = new ArrayList<>();
+        final Random payloads;
+        long maxPendingTasks;
+
+        Run(long seed) {
+            link = new SimulatedLink(clock, seed, CAPACITY);
+            link.getConnection().setBackoff(100, 2000);
+            payloads = new Random(seed + 2);
+        }
+
+        /* offers a new payload every intervalMillis until count were accepted, then drains */
+        void run(int count, long intervalMillis, int maxSize) {
+            link.getConnection().connect();
+            schedule(count, intervalMillis, maxSize);
+            /* bounded so a livelock fails the test instead of hanging it */
+            for (int i = 0; i < 10000000 && clock.runNext(); i++) {
+                maxPendingTasks = Math.max(maxPendingTasks, clock.pending());
+            }
+            assertEquals(0, clock.pending());
+        }
+
+        private void schedule(int count, long intervalMillis, int maxSize) {
+            clock.schedule(intervalMillis, () -> {
+                if (submitted.size() >= count) {
+                    return;
+                }
+                byte[] payload = payload(submitted.size(), maxSize);
+                if (link.trySubmit(payload)) {
+                    submitted.add(payload);
+                }
+                schedule(count, intervalMillis, maxSize);
+            });
+        }
+
+        /* chained, so the pending task count only reflects what the pipeline and the link keep */
+        void dropouts(long everyMillis, long untilMillis) {
+            long at = clock.millis() + everyMillis;
+            if (at >= untilMillis) {
+                return;
+            }
+            clock.schedule(everyMillis, () -> {
+                link.scheduleDisconnect(at, 1000 + (at / everyMillis) * 100);
+                dropouts(everyMillis, untilMillis);
+            });
+        }
+
+        private byte[] payload(int sequence, int maxSize) {
+            byte[] payload = new byte[4 + payloads.nextInt(maxSize - 4)];
+            payloads.nextBytes(payload);
+            ByteBuffer.wrap(payload).putInt(sequence);
+            return payload;
+        }
+
+        void assertDeliveredInOrder() {
+            List<byte[]> delivered = link.getDelivered();
+            assertEquals(submitted.size(), delivered.size());
+            for (int i = 0; i < submitted.size(); i++) {
+                assertArrayEquals("payload " + i, submitted.get(i), delivered.get(i));
+            }
+        }
+
+        void assertBounded() {
+            assertTrue(link.getPipeline().isIdle());
+            assertTrue(link.getMaxQueueDepth() <= CAPACITY);
+            assertEquals(0, link.getPartialPayloads());
+            assertTrue("scheduled tasks " + maxPendingTasks, maxPendingTasks < 16);
+        }
+    }
+
+    @Test
+    public void cleanLinkDeliversEverythingInOrder() {
+        Run run = new Run(1);
+        run.run(500, 200, 3000);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        assertEquals(0, run.link.getDuplicateFrames());
+        assertEquals(ConnectionStateMachine.STATE_READY, run.link.getConnection().getState());
+
+        /* at most 6 frames of up to 10 ms each, nothing ever waits in the queue */
+        TangleMetrics.Snapshot snapshot = run.link.getMetrics().snapshot();
+        assertEquals(500, snapshot.uploadLatency.count);
+        assertTrue(snapshot.uploadLatency.max < 70000);
+        assertEquals(0, snapshot.retries);
+    }
+
+    @Test
+    public void smallMtuSplitsIntoMoreFrames() {
+        Run run = new Run(2);
+        run.link.setMtu(23);
+        run.run(100, 1000, 600);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        assertTrue(run.link.getFramesReceived() > 100 * 10);
+    }
+
+    @Test
+    public void lossyLinkWithDropoutsSoak() {
+        Run run = new Run(3);
+        run.link.lossRate = 0.02;
+        run.link.ackLossRate = 0.02;
+        run.link.reorderRate = 0.05;
+        run.link.minCallbackMillis = 2;
+        run.link.maxCallbackMillis = 40;
+        run.link.connectFailureRate = 0.3;
+        run.link.busyRate = 0.05;
+        /* a dropout every 90 s over a simulated hour */
+        run.dropouts(90000, 3600000);
+        run.run(6000, 600, 4000);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        assertTrue(run.clock.millis() >= 3600000);
+        assertEquals(39, run.link.getDisconnects());
+        assertTrue(run.link.getDuplicateFrames() > 0);
+        assertEquals(ConnectionStateMachine.STATE_READY, run.link.getConnection().getState());
+
+        TangleMetrics.Snapshot snapshot = run.link.getMetrics().snapshot();
+        assertTrue(snapshot.retries > 0);
+        /* uploads caught by a dropout wait for the reconnect, everything else goes out right away */
+        assertTrue(snapshot.uploadLatency.p50 < 200000);
+        assertTrue(snapshot.uploadLatency.max < 10000000);
+    }
+
+    /* writes refused while the radio is busy go out after a backoff, nothing is lost or reordered */
+    @Test
+    public void busyRadioRefusesWrites() {
+        Run run = new Run(7);
+        run.link.busyRate = 0.3;
+        run.run(500, 100, 2000);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        assertTrue(run.link.getRefusedWrites() > 100);
+        assertEquals(0, run.link.getDisconnects());
+        assertEquals(run.link.getRefusedWrites(), run.link.getMetrics().snapshot().retries);
+    }
+
+    @Test
+    public void reconnectsWithBackoffAfterLongOutage() {
+        Run run = new Run(4);
+        run.link.scheduleDisconnect(1000, 30000);
+        run.run(100, 500, 1000);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        /* 100, 200, ... capped at 2000 ms between attempts while the controller is away */
+        int reconnecting = 0;
+        for (int state : run.link.getStates()) {
+            if (state == ConnectionStateMachine.STATE_RECONNECTING) {
+                reconnecting++;
+            }
+        }
+        assertTrue("reconnect attempts " + reconnecting, reconnecting > 5 && reconnecting < 25);
+    }
+
+    /* a discovery and then a sync write that never call back, each setup is aborted and retried */
+    @Test
+    public void stalledSetupIsAbortedAndRetried() {
+        Run run = new Run(6);
+        run.link.getConnection().setSetupTimeout(3000);
+        run.link.stalledDiscoveries = 1;
+        run.link.stalledSyncs = 1;
+        run.run(50, 200, 1000);
+
+        run.assertDeliveredInOrder();
+        run.assertBounded();
+        assertEquals(2, run.link.getDisconnects());
+        assertTrue(run.link.getConnection().isReady());
+        assertTrue(run.link.getStates().contains(ConnectionStateMachine.STATE_RECONNECTING));
+    }
+
+    @Test
+    public void sameSeedReproducesRun() {
+        Run first = new Run(5);
+        Run second = new Run(5);
+        for (Run run : new Run[]{first, second}) {
+            run.link.lossRate = 0.05;
+            run.link.reorderRate = 0.1;
+            run.link.maxCallbackMillis = 30;
+            run.link.scheduleDisconnect(20000, 500);
+            run.run(200, 150, 2000);
+        }
+
+        assertEquals(first.clock.millis(), second.clock.millis());
+        assertEquals(first.link.getFramesReceived(), second.link.getFramesReceived());
+        assertEquals(first.link.getMetrics().snapshot().toText(), second.link.getMetrics().snapshot().toText());
+    }
+}
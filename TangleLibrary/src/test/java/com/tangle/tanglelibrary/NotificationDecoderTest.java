@@ -0,0 +1,117 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class NotificationDecoderTest {
+
+    @Test
+    public void decodesRecordsBackToBack() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        List<String> received = new ArrayList<>();
+        decoder.addListener(new NotificationDecoder.Listener() {
+            @Override
+            public void onAck(NotificationDecoder.Ack ack) {
+                received.add("ack " + Long.toHexString(ack.payloadUuid) + " " + ack.received);
+            }
+
+            @Override
+            public void onSyncReply(NotificationDecoder.SyncReply reply) {
+                received.add("sync " + reply.echoedClock + " " + reply.controllerClock);
+            }
+
+            @Override
+            public void onDeviceStatus(NotificationDecoder.DeviceStatus status) {
+                received.add("status " + status.deviceId + " " + status.battery + " " + status.temperature + " " + status.uptime);
+            }
+
+            @Override
+            public void onEvent(NotificationDecoder.ControllerEvent event) {
+                received.add("event " + event.deviceId + " " + event.code + " " + event.parameter + " " + event.timelineTime);
+            }
+        });
+
+        byte[] value = new byte[10 + 10 + 9 + 9];
+        value[0] = (byte) NotificationDecoder.FLAG_ACK;
+        value[1] = 8;
+        TangleTime.encode(0xFFFFFFFEL, value, 2);
+        TangleTime.encode(1500, value, 6);
+        value[10] = (byte) NotificationDecoder.FLAG_SYNC_REPLY;
+        value[11] = 8;
+        TangleTime.encode(1000, value, 12);
+        TangleTime.encode(TangleTime.MASK, value, 16);
+        value[20] = (byte) NotificationDecoder.FLAG_DEVICE_STATUS;
+        value[21] = 7;
+        value[22] = 3;
+        value[23] = 87;
+        value[24] = -5;
+        TangleTime.encode(60000, value, 25);
+        value[29] = (byte) NotificationDecoder.FLAG_EMIT_EVENT;
+        value[30] = 7;
+        value[31] = (byte) 255;
+        value[32] = 42;
+        value[33] = (byte) 200;
+        TangleTime.encode(-250, value, 34);
+
+        assertEquals(4, decoder.decode(value));
+        assertEquals("ack fffffffe 1500", received.get(0));
+        assertEquals("sync 1000 " + TangleTime.MASK, received.get(1));
+        assertEquals("status 3 87 -5 60000", received.get(2));
+        assertEquals("event 255 42 200 -250", received.get(3));
+    }
+
+    @Test
+    public void skipsUnknownRecordsAndStopsAtTruncatedOnes() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        List<NotificationDecoder.SyncReply> replies = new ArrayList<>();
+        decoder.addListener(new NotificationDecoder.Listener() {
+            @Override
+            public void onSyncReply(NotificationDecoder.SyncReply reply) {
+                replies.add(reply);
+            }
+        });
+        assertEquals(0, decoder.decode(null));
+        assertEquals(0, decoder.decode(new byte[]{(byte) NotificationDecoder.FLAG_ACK, 8, 1, 2}));
+        assertEquals(0, decoder.decode(new byte[]{(byte) NotificationDecoder.FLAG_ACK}));
+
+        /* an unknown flag, then a CHANNEL_SCALE_VALUE echo sharing the sync reply flag, then a sync reply */
+        byte[] value = new byte[5 + 4 + 10];
+        value[0] = 17;
+        value[1] = 3;
+        value[5] = (byte) NotificationDecoder.FLAG_SYNC_REPLY;
+        value[6] = 2;
+        value[9] = (byte) NotificationDecoder.FLAG_SYNC_REPLY;
+        value[10] = 8;
+        TangleTime.encode(77, value, 11);
+        assertEquals(1, decoder.decode(value));
+        assertEquals(1, replies.size());
+        assertEquals(77, replies.get(0).echoedClock);
+    }
+
+    @Test
+    public void reusesMessageObjects() {
+        NotificationDecoder decoder = new NotificationDecoder();
+        List<NotificationDecoder.Ack> acks = new ArrayList<>();
+        decoder.addListener(new NotificationDecoder.Listener() {
+            @Override
+            public void onAck(NotificationDecoder.Ack ack) {
+                acks.add(ack);
+            }
+        });
+        byte[] value = new byte[20];
+        value[0] = (byte) NotificationDecoder.FLAG_ACK;
+        value[1] = 8;
+        value[10] = (byte) NotificationDecoder.FLAG_ACK;
+        value[11] = 8;
+        TangleTime.encode(7, value, 12);
+
+        assertEquals(2, decoder.decode(value));
+        assertSame(acks.get(0), acks.get(1));
+        assertEquals(7, acks.get(1).payloadUuid);
+    }
+}
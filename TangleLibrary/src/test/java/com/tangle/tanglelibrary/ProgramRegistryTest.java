@@ -0,0 +1,214 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Program uploads the way the service makes them, against {@link SimulatedLink} with a compile
+ * executor that only runs when the test says so.
+ */
+public class ProgramRegistryTest {
+
+    private static final int CAPACITY = 4;
+    private static final byte[] HEADER = {(byte) 252, 0, 0, 0, 0, 0};
+    private static final byte[] PROGRAM = {(byte) 251, 1, 2, 3, 4, 5, 6, 7, (byte) 255};
+
+    private final VirtualClock clock = new VirtualClock();
+    private final UploadFuture.Scheduler scheduler = (task, delayMillis) -> {
+        clock.schedule(delayMillis, task);
+        return true;
+    };
+    private final List<Runnable> compiles = new ArrayList<>();
+    private final SimulatedLink link = new SimulatedLink(clock, 17, CAPACITY, compiles::add);
+
+    private UploadFuture upload(byte[] program) throws InterruptedException {
+        UploadFuture future = new UploadFuture(scheduler);
+        future.setCanceller(() -> link.getPipeline().cancel(future));
+        link.getPipeline().submitProgram(future, link.getPrograms().compile(SimulatedLink.DEVICE, ByteBuffer.wrap(HEADER),
+                () -> ByteBuffer.wrap(program), future, link.getMetrics()));
+        return future;
+    }
+
+    private void compile() {
+        while (!compiles.isEmpty()) {
+            compiles.remove(0).run();
+        }
+    }
+
+    private void connect() {
+        link.getConnection().connect();
+        clock.runFor(1000);
+        assertTrue(link.getConnection().isReady());
+    }
+
+    private boolean holdsProgram() {
+        return link.getPrograms().isConfirmed(SimulatedLink.DEVICE, ProgramRegistry.getProgramId(ByteBuffer.wrap(PROGRAM)));
+    }
+
+    private byte[] lastDelivered() {
+        List<byte[]> delivered = link.getDelivered();
+        return delivered.get(delivered.size() - 1);
+    }
+
+    private static byte[] withHeader(byte[] program) {
+        return ByteBuffer.allocate(HEADER.length + program.length).put(HEADER).put(program).array();
+    }
+
+    @Test
+    public void programTheDeviceHoldsIsSkipped() throws InterruptedException {
+        connect();
+        UploadFuture first = upload(PROGRAM);
+        compile();
+        clock.runFor(1000);
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertArrayEquals(withHeader(PROGRAM), lastDelivered());
+        assertTrue(holdsProgram());
+
+        UploadFuture second = upload(PROGRAM);
+        compile();
+        clock.runFor(1000);
+        assertTrue(second.isDone() && !second.isCompletedExceptionally());
+        assertArrayEquals(HEADER, lastDelivered());
+        assertEquals(1, link.getMetrics().snapshot().uploadsSkipped);
+    }
+
+    @Test
+    public void cancelledDuringCompileClaimsNothing() throws InterruptedException {
+        connect();
+        UploadFuture cancelled = upload(PROGRAM);
+        assertTrue(cancelled.cancel(false));
+        compile();
+        clock.runFor(1000);
+        assertEquals(0, link.getDelivered().size());
+
+        UploadFuture timedOut = upload(PROGRAM).withTimeout(10);
+        clock.runFor(20);
+        assertTrue(timedOut.isCompletedExceptionally());
+        compile();
+        clock.runFor(1000);
+        assertEquals(0, link.getDelivered().size());
+
+        UploadFuture again = upload(PROGRAM);
+        compile();
+        clock.runFor(1000);
+        assertTrue(again.isDone() && !again.isCompletedExceptionally());
+        assertArrayEquals(withHeader(PROGRAM), lastDelivered());
+        assertTrue(holdsProgram());
+    }
+
+    @Test
+    public void droppedUploadReleasesItsClaim() throws InterruptedException {
+        link.getPipeline().setBackpressure(UploadPipeline.BACKPRESSURE_DROP_OLDEST);
+        UploadFuture dropped = upload(PROGRAM);
+        compile();
+        for (int i = 0; i < CAPACITY; i++) {
+            link.getPipeline().submit(ByteBuffer.wrap(new byte[]{(byte) i}));
+        }
+        assertTrue(dropped.isCompletedExceptionally());
+
+        UploadFuture again = upload(PROGRAM);
+        compile();
+        connect();
+        clock.runFor(1000);
+        assertTrue(again.isDone() && !again.isCompletedExceptionally());
+        assertArrayEquals(withHeader(PROGRAM), lastDelivered());
+    }
+
+    @Test
+    public void rebootForgetsWhatTheDeviceHeld() throws InterruptedException {
+        connect();
+        upload(PROGRAM);
+        compile();
+        clock.runFor(1000);
+        assertTrue(holdsProgram());
+
+        link.scheduleReboot(clock.millis() + 10, 500);
+        clock.runFor(5000);
+        assertTrue(link.getConnection().isReady());
+        assertFalse(holdsProgram());
+
+        upload(PROGRAM);
+        compile();
+        clock.runFor(1000);
+        assertArrayEquals(withHeader(PROGRAM), lastDelivered());
+        assertTrue(holdsProgram());
+    }
+
+    /* the header alone does not give the device a program whose upload failed */
+    @Test
+    public void duplicateFailsWithTheUploadItWaitsFor() throws InterruptedException {
+        UploadFuture original = upload(PROGRAM);
+        UploadFuture duplicate = upload(PROGRAM);
+        compile();
+        assertEquals(1, link.getMetrics().snapshot().uploadsSkipped);
+        assertTrue(original.cancel(false));
+
+        connect();
+        clock.runFor(1000);
+        assertArrayEquals(HEADER, lastDelivered());
+        assertTrue(duplicate.isCompletedExceptionally());
+        try {
+            duplicate.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertFalse(holdsProgram());
+    }
+
+    @Test
+    public void duplicateCompletesWithTheUploadItWaitsFor() throws InterruptedException {
+        List<String> done = new ArrayList<>();
+        upload(PROGRAM).thenRun(() -> done.add("original"));
+        upload(PROGRAM).thenRun(() -> done.add("duplicate"));
+        compile();
+        connect();
+        clock.runFor(1000);
+        assertEquals(Arrays.asList("original", "duplicate"), done);
+        assertTrue(holdsProgram());
+    }
+
+    /* programs with the same CRC32 are still different programs */
+    @Test
+    public void checksumCollisionIsNotSkipped() throws InterruptedException {
+        Random random = new Random(5);
+        Map<Long, byte[]> seen = new HashMap<>();
+        byte[] first = null;
+        byte[] second = null;
+        while (second == null) {
+            byte[] candidate = new byte[8];
+            random.nextBytes(candidate);
+            CRC32 crc = new CRC32();
+            crc.update(candidate);
+            first = seen.put(crc.getValue(), candidate);
+            if (first != null && !Arrays.equals(first, candidate)) {
+                second = candidate;
+            }
+        }
+        connect();
+        upload(first);
+        compile();
+        clock.runFor(1000);
+        /* the controller takes the same payload uuid twice in a row for a retransmit */
+        link.getPipeline().submit(ByteBuffer.wrap(new byte[]{0}));
+        upload(second);
+        compile();
+        clock.runFor(1000);
+        assertArrayEquals(withHeader(second), lastDelivered());
+        assertEquals(0, link.getMetrics().snapshot().uploadsSkipped);
+    }
+}
@@ -0,0 +1,114 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferTracerTest {
+
+    private static final Pattern EVENT = Pattern.compile(
+            "\\{\"name\":\"(\\w+)\",\"ph\":\"([BEbe])\",\"ts\":(\\d+\\.\\d{3}),\"pid\":0,\"tid\":(\\d+)(,\"cat\":\"tangle\",\"id\":(\\d+))?\\}");
+
+    private long now;
+    private final RingBufferTracer tracer = new RingBufferTracer(4, () -> now += 1500);
+
+    /* checks the whole export is a list of trace events and returns them as "name phase ts" */
+    private static List<String> events(String trace) {
+        assertTrue(trace, trace.startsWith("{\"traceEvents\":[") && trace.endsWith("]}"));
+        String body = trace.substring("{\"traceEvents\":[".length(), trace.length() - 2);
+        List<String> events = new ArrayList<>();
+        Matcher matcher = EVENT.matcher(body);
+        int position = 0;
+        while (position < body.length()) {
+            if (position > 0) {
+                assertEquals(',', body.charAt(position++));
+            }
+            matcher.region(position, body.length());
+            assertTrue(body.substring(position), matcher.lookingAt());
+            assertEquals(String.valueOf(Thread.currentThread().getId()), matcher.group(4));
+            String event = matcher.group(1) + " " + matcher.group(2) + " " + matcher.group(3);
+            events.add(matcher.group(6) == null ? event : event + " " + matcher.group(6));
+            position = matcher.end();
+        }
+        return events;
+    }
+
+    @Test
+    public void emptyTraceIsWellFormed() {
+        assertEquals("{\"traceEvents\":[]}", tracer.toChromeTrace());
+        assertEquals(0, tracer.size());
+    }
+
+    @Test
+    public void eventsAreExportedInOrder() {
+        tracer.begin("parse");
+        tracer.asyncBegin("ack", 7);
+        tracer.end("parse");
+        assertEquals(3, tracer.size());
+        assertEquals(Arrays.asList("parse B 1.500", "ack b 3.000 7", "parse E 4.500"), events(tracer.toChromeTrace()));
+    }
+
+    @Test
+    public void oldestEventsAreOverwritten() {
+        for (int i = 0; i < 3; i++) {
+            tracer.begin("frame");
+            tracer.end("frame");
+        }
+        tracer.asyncEnd("ack", 9);
+        assertEquals(4, tracer.size());
+        /* the last four of seven events, oldest first */
+        assertEquals(Arrays.asList("frame E 6.000", "frame B 7.500", "frame E 9.000", "ack e 10.500 9"),
+                events(tracer.toChromeTrace()));
+
+        tracer.clear();
+        assertEquals(0, tracer.size());
+        tracer.begin("lex");
+        assertEquals(Arrays.asList("lex B 12.000"), events(tracer.toChromeTrace()));
+    }
+
+    /* threads racing around the ring never share a slot, each keeps its begin end order */
+    @Test
+    public void concurrentEventsKeepTheirOrder() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        RingBufferTracer shared = new RingBufferTracer(64, clock::incrementAndGet);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    shared.begin("work");
+                    shared.end("work");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * 20000, clock.get());
+        assertEquals(64, shared.size());
+
+        Matcher matcher = EVENT.matcher(shared.toChromeTrace());
+        Map<String, String> lastPhases = new HashMap<>();
+        double last = 0;
+        int count = 0;
+        while (matcher.find()) {
+            double timestamp = Double.parseDouble(matcher.group(3));
+            assertTrue(timestamp > last);
+            last = timestamp;
+            String phase = lastPhases.put(matcher.group(4), matcher.group(2));
+            assertTrue(phase == null || !phase.equals(matcher.group(2)));
+            count++;
+        }
+        assertEquals(64, count);
+    }
+}
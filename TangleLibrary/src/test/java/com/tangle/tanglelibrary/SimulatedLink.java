@@ -0,0 +1,396 @@
+package com.tangle.tanglelibrary;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * BLE link and Tangle controller model driven by a {@link VirtualClock}, wired to the upload
+ * pipeline and the connection state machine the same way TangleBluetoothLeService wires them.
+ * <p>
+ * Every random decision comes from one seeded {@link Random}, so a run is reproduced exactly by its
+ * seed. The controller reassembles framed payloads by their header and reports every completed
+ * payload once.
+ */
+public class SimulatedLink implements UploadPipeline.FrameWriter, ConnectionStateMachine.Link, ConnectionTuner.Radio {
+
+    /* device key of the simulated controller in the program registry */
+    public static final String DEVICE = "00:00:00:00:00:01";
+
+    /* probability that a write is lost on the air, the controller never sees it */
+    public double lossRate = 0;
+    /* probability that the controller gets a write but its acknowledgement is reported as failed */
+    public double ackLossRate = 0;
+    /* probability that the controller processes a frame only after the next frame of the same payload */
+    public double reorderRate = 0;
+    public long minCallbackMillis = 5;
+    public long maxCallbackMillis = 10;
+    public long connectMillis = 50;
+    public long discoveryMillis = 30;
+    /* probability that the radio is busy with another GATT operation and refuses a write */
+    public double busyRate = 0;
+    /* probability that a connection attempt fails */
+    public double connectFailureRate = 0;
+    /* service discoveries, and after them sync writes, whose callback never comes */
+    public int stalledDiscoveries = 0;
+    public int stalledSyncs = 0;
+    /* write callback delays per ConnectionTuner phase as {min, max}, the bulk phase runs at 2M PHY */
+    public long[][] phaseCallbackMillis = {{5, 10}, {4, 8}, {30, 50}, {100, 125}};
+
+    private final VirtualClock clock;
+    private final Random random;
+    private final int capacity;
+    private final TangleMetrics metrics;
+    private final UploadPipeline pipeline;
+    private final ConnectionStateMachine connection;
+    private final ProgramRegistry programs = new ProgramRegistry();
+    private ConnectionTuner tuner;
+    private final List<Integer> phases = new ArrayList<>();
+
+    private boolean connected;
+    private boolean writeOutstanding;
+    private int linkGeneration;
+    private long downUntilMillis;
+    private byte[] heldBack;
+
+    private final Map<Long, Reassembly> partial = new HashMap<>();
+    private long lastCompleted = -1;
+    private final List<byte[]> delivered = new ArrayList<>();
+    private final List<Integer> states = new ArrayList<>();
+    private int framesReceived;
+    private int refusedWrites;
+    private int duplicateFrames;
+    private int disconnects;
+    private int maxQueueDepth;
+
+    public SimulatedLink(VirtualClock clock, long seed, int capacity) {
+        this(clock, seed, capacity, Runnable::run);
+    }
+
+    public SimulatedLink(VirtualClock clock, long seed, int capacity, Executor compileExecutor) {
+        this.clock = clock;
+        this.random = new Random(seed);
+        this.capacity = capacity;
+        this.metrics = new TangleMetrics(clock);
+        this.pipeline = new UploadPipeline(this, compileExecutor, capacity);
+        this.connection = new ConnectionStateMachine(this);
+        pipeline.setMetrics(metrics);
+        pipeline.setRetryScheduler((task, delayMillis) -> clock.schedule(delayMillis, task));
+    }
+
+    public UploadPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public ConnectionStateMachine getConnection() {
+        return connection;
+    }
+
+    public TangleMetrics getMetrics() {
+        return metrics;
+    }
+
+    ProgramRegistry getPrograms() {
+        return programs;
+    }
+
+    /* the tuner follows the pipeline and the connection, its phases set the callback delays */
+    public ConnectionTuner attachTuner() {
+        tuner = new ConnectionTuner(this);
+        tuner.setMetrics(metrics);
+        pipeline.setActivityListener(tuner);
+        return tuner;
+    }
+
+    public List<Integer> getPhases() {
+        return phases;
+    }
+
+    @Override
+    public void setPhase(int phase) {
+        phases.add(phase);
+        minCallbackMillis = phaseCallbackMillis[phase][0];
+        maxCallbackMillis = phaseCallbackMillis[phase][1];
+    }
+
+    /* negotiated ATT MTU, the pipeline frames to the usable write size */
+    public void setMtu(int mtu) {
+        pipeline.setPacketSize(mtu - 3);
+    }
+
+    /* schedules a supervision timeout at the given time, the controller stays unreachable for downMillis */
+    public void scheduleDisconnect(long atMillis, long downMillis) {
+        clock.schedule(atMillis - clock.millis(), () -> dropLink(downMillis));
+    }
+
+    /* like scheduleDisconnect, but the controller is power cycled and forgets everything it received */
+    public void scheduleReboot(long atMillis, long downMillis) {
+        clock.schedule(atMillis - clock.millis(), () -> {
+            lastCompleted = -1;
+            dropLink(downMillis);
+        });
+    }
+
+    /* submits only while there is room, the simulation runs on one thread and must never block */
+    public boolean trySubmit(byte[] payload) {
+        if (pipeline.getQueueDepth() >= capacity) {
+            return false;
+        }
+        try {
+            pipeline.submit(ByteBuffer.wrap(payload));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        trackQueueDepth();
+        return true;
+    }
+
+    public List<byte[]> getDelivered() {
+        return delivered;
+    }
+
+    public List<Integer> getStates() {
+        return states;
+    }
+
+    public int getFramesReceived() {
+        return framesReceived;
+    }
+
+    public int getRefusedWrites() {
+        return refusedWrites;
+    }
+
+    public int getDuplicateFrames() {
+        return duplicateFrames;
+    }
+
+    public int getDisconnects() {
+        return disconnects;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public int getPartialPayloads() {
+        return partial.size();
+    }
+
+    @Override
+    public boolean writeFrame(int target, byte[] frame) {
+        if (!connected) {
+            return false;
+        }
+        if (writeOutstanding) {
+            throw new AssertionError("second write while one is outstanding");
+        }
+        if (busyRate > 0 && random.nextDouble() < busyRate) {
+            refusedWrites++;
+            return false;
+        }
+        writeOutstanding = true;
+        if (target == UploadPipeline.TARGET_SYNC && frame.length == 1 && stalledSyncs > 0) {
+            stalledSyncs--;
+            return true;
+        }
+        final int generation = linkGeneration;
+        final boolean lost = random.nextDouble() < lossRate;
+        final boolean ackLost = !lost && random.nextDouble() < ackLossRate;
+        final boolean reorder = !lost && target == UploadPipeline.TARGET_TERMINAL && random.nextDouble() < reorderRate;
+        long delay = minCallbackMillis + (long) (random.nextDouble() * (maxCallbackMillis - minCallbackMillis));
+        clock.schedule(delay, () -> {
+            if (generation != linkGeneration) {
+                return;
+            }
+            if (!lost) {
+                receive(target, frame, reorder);
+            }
+            writeOutstanding = false;
+            pipeline.onFrameWritten(!lost && !ackLost);
+            trackQueueDepth();
+        });
+        return true;
+    }
+
+    private void receive(int target, byte[] frame, boolean reorder) {
+        framesReceived++;
+        if (target == UploadPipeline.TARGET_SYNC) {
+            if (frame.length == 1 && frame[0] == 0) {
+                /* the service reports the link as synchronized once the sync write is acknowledged */
+                final int generation = linkGeneration;
+                clock.schedule(0, () -> {
+                    if (generation == linkGeneration) {
+                        connection.onSynchronized();
+                    }
+                });
+            }
+            return;
+        }
+        byte[] previous = heldBack;
+        heldBack = null;
+        if (reorder && previous == null && !isLastFrame(frame)) {
+            heldBack = frame;
+        } else {
+            assemble(frame);
+        }
+        if (previous != null) {
+            assemble(previous);
+        }
+    }
+
+    /* reordering stays within a payload, the last frame is never held back */
+    private static boolean isLastFrame(byte[] frame) {
+        ByteBuffer header = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = header.getInt(4);
+        int length = header.getInt(8);
+        return offset + frame.length - UploadPipeline.HEADER_SIZE >= length;
+    }
+
+    private void assemble(byte[] frame) {
+        ByteBuffer header = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        long payloadUuid = header.getInt() & 0xFFFFFFFFL;
+        int offset = header.getInt();
+        int length = header.getInt();
+        /* like the controller, only the last completed payload is remembered */
+        if (payloadUuid == lastCompleted) {
+            duplicateFrames++;
+            return;
+        }
+        Reassembly reassembly = partial.get(payloadUuid);
+        if (reassembly == null) {
+            reassembly = new Reassembly(length);
+            partial.put(payloadUuid, reassembly);
+        }
+        if (!reassembly.put(offset, frame, UploadPipeline.HEADER_SIZE)) {
+            duplicateFrames++;
+        }
+        if (reassembly.isComplete()) {
+            partial.remove(payloadUuid);
+            lastCompleted = payloadUuid;
+            delivered.add(reassembly.bytes);
+        }
+    }
+
+    private void dropLink(long downMillis) {
+        disconnects++;
+        downUntilMillis = clock.millis() + downMillis;
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        writeOutstanding = false;
+        linkGeneration++;
+        /* the controller throws away partial payloads and anything it held back */
+        partial.clear();
+        heldBack = null;
+        pipeline.pause();
+        connection.onDisconnected();
+    }
+
+    private void trackQueueDepth() {
+        maxQueueDepth = Math.max(maxQueueDepth, pipeline.getQueueDepth());
+    }
+
+    @Override
+    public void connect() {
+        final int generation = linkGeneration;
+        clock.schedule(connectMillis, () -> {
+            if (generation != linkGeneration || connected) {
+                return;
+            }
+            if (clock.millis() < downUntilMillis || random.nextDouble() < connectFailureRate) {
+                connection.onDisconnected();
+                return;
+            }
+            connected = true;
+            connection.onConnected();
+        });
+    }
+
+    @Override
+    public void discoverServices() {
+        if (stalledDiscoveries > 0) {
+            stalledDiscoveries--;
+            return;
+        }
+        final int generation = linkGeneration;
+        clock.schedule(discoveryMillis, () -> {
+            if (generation == linkGeneration && connected) {
+                connection.onServicesDiscovered(true);
+            }
+        });
+    }
+
+    @Override
+    public void resync() {
+        pipeline.resume(() -> {
+            byte[] timestamp = new byte[4];
+            ByteBuffer.wrap(timestamp).order(ByteOrder.LITTLE_ENDIAN).putInt((int) clock.millis());
+            pipeline.submitRaw(UploadPipeline.TARGET_SYNC, timestamp);
+            pipeline.submitRaw(UploadPipeline.TARGET_SYNC, new byte[]{0});
+        });
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+        clock.schedule(delayMillis, task);
+    }
+
+    @Override
+    public void abort() {
+        dropLink(0);
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        if (state == ConnectionStateMachine.STATE_RECONNECTING || state == ConnectionStateMachine.STATE_DISCONNECTED) {
+            programs.forget(DEVICE);
+        }
+        if (tuner != null && state == ConnectionStateMachine.STATE_CONNECTED) {
+            tuner.onConnected();
+        } else if (tuner != null && state != ConnectionStateMachine.STATE_READY) {
+            tuner.onDisconnected();
+        }
+        if (state == ConnectionStateMachine.STATE_DISCONNECTED) {
+            pipeline.clear();
+        }
+        states.add(state);
+    }
+
+    private static class Reassembly {
+        final byte[] bytes;
+        final boolean[] received;
+        int remaining;
+
+        Reassembly(int length) {
+            bytes = new byte[length];
+            received = new boolean[length];
+            remaining = length;
+        }
+
+        /* returns false when the chunk had been received already */
+        boolean put(int offset, byte[] frame, int from) {
+            int count = frame.length - from;
+            boolean fresh = false;
+            for (int i = 0; i < count; i++) {
+                if (!received[offset + i]) {
+                    received[offset + i] = true;
+                    bytes[offset + i] = frame[from + i];
+                    remaining--;
+                    fresh = true;
+                }
+            }
+            return fresh;
+        }
+
+        boolean isComplete() {
+            return remaining == 0;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class TangleGattProfileTest {
+
+    @Test
+    public void missingClientIsReportedAsNotConnected() {
+        try {
+            TangleGattProfile.resolve(null);
+            fail();
+        } catch (TangleGattException expected) {
+            assertEquals(TangleGattException.REASON_NOT_CONNECTED, expected.getReason());
+            assertNull(expected.getUuid());
+        }
+    }
+
+    @Test
+    public void exceptionCarriesTheMissingUuid() {
+        TangleGattException exception = new TangleGattException(TangleGattException.REASON_CHARACTERISTIC_MISSING,
+                TangleGattProfile.SYNC_CHARACTERISTIC_UUID, "Characteristic not found");
+        assertEquals(TangleGattException.REASON_CHARACTERISTIC_MISSING, exception.getReason());
+        assertEquals(TangleGattProfile.SYNC_CHARACTERISTIC_UUID, exception.getUuid());
+        assertEquals("Characteristic not found", exception.getMessage());
+    }
+}
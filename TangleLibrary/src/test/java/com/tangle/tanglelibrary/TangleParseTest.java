@@ -0,0 +1,72 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TangleParseTest {
+
+    private static final String SCRIPT = "defDevice1(0x00, 0x01, 0x02, 0x03, 0x04);\n"
+            + "// a comment line\n"
+            + "defAnimation(0x05, {\n"
+            + "  addDrawing(0, 1000, animFill(1000, #ff8000));\n"
+            + "  addDrawing(1000, 500, animRainbow(500, 50%));\n"
+            + "});\n"
+            + "setDrawing(0, 5000, animationDefined(0x05));\n";
+
+    /* what the compiler produced before it streamed, lexing the whole source as one string */
+    private static final byte[] BYTECODE = bytes(251, 223, 0, 1, 2, 3, 4, 230, 5, 32, 0, 0, 0, 0, 232, 3, 0, 0, 55,
+            232, 3, 0, 0, 255, 128, 0, 32, 232, 3, 0, 0, 244, 1, 0, 0, 56, 244, 1, 0, 0, 127, 254, 31, 0, 0, 0, 0,
+            136, 19, 0, 0, 63, 5, 255);
+
+    private static byte[] bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void stringCompileIsUnchanged() {
+        assertArrayEquals(BYTECODE, new TangleParse().getPayload(SCRIPT));
+    }
+
+    @Test
+    public void readerStreamsTheSameBytecode() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TangleParse().getPayload(new StringReader(SCRIPT), out);
+        assertArrayEquals(BYTECODE, out.toByteArray());
+    }
+
+    @Test
+    public void inputStreamIsReadAsUtf8() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TangleParse().getPayload(new ByteArrayInputStream(SCRIPT.getBytes(StandardCharsets.UTF_8)), out);
+        assertArrayEquals(BYTECODE, out.toByteArray());
+    }
+
+    /* lexed line by line, the line endings make no difference */
+    @Test
+    public void windowsLineEndingsCompileTheSame() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TangleParse().getPayload(new StringReader(SCRIPT.replace("\n", "\r\n")), out);
+        assertArrayEquals(BYTECODE, out.toByteArray());
+    }
+
+    @Test
+    public void parserIsReusable() throws IOException {
+        TangleParse parser = new TangleParse();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        parser.getPayload(new StringReader(SCRIPT), out);
+        assertArrayEquals(BYTECODE, parser.getPayload(SCRIPT));
+        assertArrayEquals(BYTECODE, parser.getPayload(SCRIPT));
+        assertArrayEquals(BYTECODE, out.toByteArray());
+    }
+}
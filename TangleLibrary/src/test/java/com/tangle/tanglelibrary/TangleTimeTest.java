@@ -0,0 +1,100 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TangleTimeTest {
+
+    private static final long HALF = 1L << 31;
+    private static final long[] BOUNDARIES = {0, 1, HALF - 1, HALF, HALF + 1, TangleTime.MASK - 1, TangleTime.MASK};
+
+    @Test
+    public void orderAroundEveryBoundary() {
+        for (long base : BOUNDARIES) {
+            for (long ahead = -1000; ahead <= 1000; ahead++) {
+                long later = TangleTime.add(base, ahead);
+                assertEquals(ahead, TangleTime.diff(base, later));
+                assertEquals(ahead > 0, TangleTime.isBefore(base, later));
+                assertEquals(ahead > 0, TangleTime.isAfter(later, base));
+                assertEquals(ahead < 0, TangleTime.isAfter(base, later));
+                assertEquals(Long.signum(-ahead), TangleTime.compare(base, later));
+            }
+        }
+    }
+
+    @Test
+    public void orderNearHalfTheRange() {
+        for (long base : BOUNDARIES) {
+            for (long distance = HALF - 1000; distance < HALF; distance++) {
+                long later = TangleTime.add(base, distance);
+                assertTrue(TangleTime.isBefore(base, later));
+                assertTrue(TangleTime.isAfter(later, base));
+                assertEquals(distance, TangleTime.diff(base, later));
+            }
+            long opposite = TangleTime.add(base, HALF);
+            assertFalse(TangleTime.isBefore(base, opposite));
+            assertFalse(TangleTime.isAfter(base, opposite));
+        }
+    }
+
+    @Test
+    public void elapsedAcrossTheWrap() {
+        for (long base : BOUNDARIES) {
+            for (long millis = 0; millis <= 2000; millis++) {
+                assertEquals(millis, TangleTime.elapsed(base, TangleTime.add(base, millis)));
+            }
+            assertEquals(TangleTime.MASK, TangleTime.elapsed(base, TangleTime.add(base, TangleTime.MASK)));
+        }
+    }
+
+    @Test
+    public void encodeDecodeRoundTrip() {
+        byte[] bytes = new byte[6];
+        for (long base : BOUNDARIES) {
+            for (long offset = -300; offset <= 300; offset++) {
+                long time = TangleTime.add(base, offset);
+                TangleTime.encode(time, bytes, 1);
+                assertEquals(time, TangleTime.decode(bytes, 1));
+                assertEquals((int) time, TangleTime.decodeTimeline(bytes, 1));
+            }
+        }
+        /* every single byte value in every position */
+        for (int position = 0; position < 4; position++) {
+            for (int value = 0; value < 256; value++) {
+                long time = (long) value << (position * 8);
+                assertEquals(time, TangleTime.decode(TangleTime.encode(time), 0));
+            }
+        }
+        assertEquals(0x78, TangleTime.encode(0x12345678L)[0]);
+        assertEquals(0x12, TangleTime.encode(0x12345678L)[3]);
+        assertEquals(TangleTime.MASK, TangleTime.decode(TangleTime.encode(-1), 0));
+    }
+
+    @Test
+    public void wrapReducesAnyOrigin() {
+        assertEquals(0, TangleTime.wrap(TangleTime.PERIOD));
+        assertEquals(TangleTime.MASK, TangleTime.wrap(-1));
+        assertEquals(5, TangleTime.wrap(3 * TangleTime.PERIOD + 5));
+        assertEquals(1, TangleTime.add(TangleTime.MASK, 2));
+        assertEquals(TangleTime.MASK, TangleTime.add(0, -1));
+    }
+
+    @Test
+    public void timelineKeepsPlayingAcrossClockWrap() {
+        long[] clock = {TangleTime.MASK - 500};
+        TimelineManager timelines = new TimelineManager(() -> clock[0]);
+        timelines.get(0).set(10000, false);
+
+        for (int step = 0; step <= 1000; step++) {
+            clock[0] = TangleTime.add(TangleTime.MASK - 500, step);
+            assertEquals(10000 + step, timelines.get(0).getTime());
+        }
+
+        byte[] record = timelines.encode(0);
+        assertEquals(clock[0], TangleTime.decode(record, 1));
+        assertEquals(11000, TangleTime.decodeTimeline(record, 5));
+    }
+}
@@ -0,0 +1,121 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TimelineManagerTest {
+
+    private long clockTimestamp = 1000;
+    private final TimelineManager timelines = new TimelineManager(() -> clockTimestamp);
+
+    /* index, paused and position of every record in the payload */
+    private static String decode(byte[] payload) {
+        assertEquals(0, payload.length % TimelineManager.RECORD_SIZE);
+        StringBuilder records = new StringBuilder();
+        for (int offset = 0; offset < payload.length; offset += TimelineManager.RECORD_SIZE) {
+            assertEquals((byte) TimelineManager.FLAG_SET_TIMELINE, payload[offset]);
+            int flag = payload[offset + 9];
+            if (records.length() > 0) {
+                records.append(", ");
+            }
+            records.append(flag & 0x0F)
+                    .append((flag & 0x10) != 0 ? " paused at " : " playing at ")
+                    .append(TangleTime.decodeTimeline(payload, offset + 5));
+        }
+        return records.toString();
+    }
+
+    @Test
+    public void onlyTheDefaultTimelineIsInUse() {
+        assertEquals("0 paused at 0", decode(timelines.encodeAll()));
+        assertFalse(timelines.isDirty());
+        assertNull(timelines.flush());
+    }
+
+    @Test
+    public void playingTimelineFollowsTheClock() {
+        TimelineManager.Timeline timeline = timelines.get(0).play();
+        clockTimestamp += 500;
+        assertEquals(500, timeline.getTime());
+        timeline.pause();
+        clockTimestamp += 500;
+        assertEquals(500, timeline.getTime());
+        assertTrue(timeline.isPaused());
+
+        timeline.seek(2000);
+        assertEquals(2000, timeline.getTime());
+        assertTrue(timeline.isPaused());
+        timeline.set(-300, false);
+        clockTimestamp += 100;
+        assertEquals(-200, timeline.getTime());
+    }
+
+    @Test
+    public void flushSendsOnlyTheChangedTimelines() {
+        timelines.get(3).seek(1000);
+        timelines.get(5).play();
+        assertTrue(timelines.isDirty());
+        clockTimestamp += 40;
+        assertEquals("3 paused at 1000, 5 playing at 40", decode(timelines.flush()));
+
+        /* at rate 1 the controller keeps up by itself */
+        clockTimestamp += 1000;
+        assertFalse(timelines.isDirty());
+        assertNull(timelines.flush());
+
+        timelines.get(3).play();
+        assertEquals("3 playing at 1000", decode(timelines.encode(3)));
+        assertFalse(timelines.isDirty());
+    }
+
+    @Test
+    public void otherRateStaysDirtyWhilePlaying() {
+        TimelineManager.Timeline timeline = timelines.get(2).play().setRate(2);
+        clockTimestamp += 100;
+        assertEquals(200, timeline.getTime());
+        assertEquals("2 playing at 200", decode(timelines.flush()));
+        assertTrue(timelines.isDirty());
+        clockTimestamp += 100;
+        assertEquals("2 playing at 400", decode(timelines.flush()));
+
+        timeline.pause();
+        assertEquals("2 paused at 400", decode(timelines.flush()));
+        assertFalse(timelines.isDirty());
+        assertNull(timelines.flush());
+    }
+
+    @Test
+    public void encodeAllResendsEveryUsedTimeline() {
+        timelines.get(7).seek(70);
+        timelines.flush();
+        timelines.get(1).play();
+        assertEquals("0 paused at 0, 1 playing at 0, 7 paused at 70", decode(timelines.encodeAll()));
+        assertFalse(timelines.isDirty());
+    }
+
+    @Test
+    public void positionIsExactAcrossTheClockWrap() {
+        clockTimestamp = TangleTime.MASK - 100;
+        TimelineManager.Timeline timeline = timelines.get(0).play();
+        clockTimestamp = TangleTime.add(clockTimestamp, 300);
+        assertEquals(300, timeline.getTime());
+        byte[] record = timelines.flush();
+        assertEquals(clockTimestamp, TangleTime.decode(record, 1));
+        assertEquals("0 playing at 300", decode(record));
+    }
+
+    @Test
+    public void indexOutOfRangeIsRefused() {
+        try {
+            timelines.get(TimelineManager.TIMELINE_COUNT);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // refused
+        }
+    }
+}
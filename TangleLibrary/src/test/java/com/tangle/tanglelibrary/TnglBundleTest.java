@@ -0,0 +1,160 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The build time path: sources compiled into a bundle file with a JVM logger, opened again and
+ * looked up the way the app does.
+ */
+public class TnglBundleTest {
+
+    private static final String DEVICES = "defDevice1(0x00, 0x01, 0x02, 0x03, 0x04);\n";
+    private static final String RED = "include \"devices\"\naddDrawing(0, 1000, animFill(1000, #ff0000));\n";
+    private static final String BLUE = "include \"devices\"\naddDrawing(0, 2000, animFill(2000, #0000ff));\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeSource(File file, String code) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(code.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private File sources() throws IOException {
+        File sourceDir = folder.newFolder("tngl");
+        File moduleDir = new File(sourceDir, "modules");
+        assertTrue(moduleDir.mkdir());
+        writeSource(new File(moduleDir, "devices.tngl"), DEVICES);
+        writeSource(new File(sourceDir, "red.tngl"), RED);
+        writeSource(new File(sourceDir, "blue.tngl"), BLUE);
+        return sourceDir;
+    }
+
+    private static byte[] compile(String code) throws IOException {
+        TnglModules modules = new TnglModules();
+        modules.put("devices", DEVICES);
+        TangleParse parser = new TangleParse();
+        parser.setModules(modules);
+        UploadPipeline.PayloadBuffer bytecode = new UploadPipeline.PayloadBuffer(256);
+        parser.getPayload(new StringReader(code), bytecode);
+        return bytecode.toByteArray();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void compiledBundleOpensWithEveryScene() throws IOException {
+        File output = new File(folder.getRoot(), "debug/assets/tngl.tnglb");
+        TnglBundle.compile(sources(), output, TangleParse.STDERR);
+
+        TnglBundle bundle = TnglBundle.open(output);
+        assertEquals(new HashSet<>(Arrays.asList("red", "blue")), bundle.getSceneNames());
+        assertTrue(bundle.hasScene("red"));
+        assertFalse(bundle.hasScene("devices"));
+        assertArrayEquals(compile(RED), toArray(bundle.getScene("red")));
+        assertArrayEquals(compile(BLUE), toArray(bundle.getScene("blue")));
+        assertFalse(Arrays.equals(new byte[bundle.getSourceHash().length], bundle.getSourceHash()));
+
+        try {
+            bundle.getScene("green");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("green"));
+        }
+    }
+
+    @Test
+    public void writtenScenesAreReadBack() throws IOException {
+        Map<String, byte[]> scenes = new LinkedHashMap<>();
+        scenes.put("empty", new byte[0]);
+        scenes.put("sc\u00e8ne", new byte[]{1, 2, 3});
+        byte[] hash = new byte[TnglBundle.HASH_SIZE];
+        hash[0] = 42;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TnglBundle.write(scenes, hash, out);
+
+        TnglBundle bundle = new TnglBundle(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(scenes.keySet(), bundle.getSceneNames());
+        assertEquals(0, bundle.getScene("empty").remaining());
+        assertArrayEquals(new byte[]{1, 2, 3}, toArray(bundle.getScene("sc\u00e8ne")));
+        assertArrayEquals(hash, bundle.getSourceHash());
+        assertTrue(bundle.getScene("sc\u00e8ne").isReadOnly());
+    }
+
+    @Test
+    public void changedSourcesChangeTheHash() throws IOException {
+        File sourceDir = sources();
+        File first = folder.newFile("first.tnglb");
+        TnglBundle.compile(sourceDir, first, TangleParse.STDERR);
+        writeSource(new File(sourceDir, "modules/devices.tngl"), "defDevice1(0x00, 0x01, 0x02, 0x03, 0x05);\n");
+        File second = folder.newFile("second.tnglb");
+        TnglBundle.compile(sourceDir, second, TangleParse.STDERR);
+
+        assertFalse(Arrays.equals(TnglBundle.open(first).getSourceHash(), TnglBundle.open(second).getSourceHash()));
+    }
+
+    @Test
+    public void corruptBundleIsRefused() throws IOException {
+        File output = folder.newFile("tngl.tnglb");
+        TnglBundle.compile(sources(), output, TangleParse.STDERR);
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        File truncated = folder.newFile("truncated.tnglb");
+        try (OutputStream out = new FileOutputStream(truncated)) {
+            out.write(bytes, 0, bytes.length / 2);
+        }
+        try {
+            TnglBundle.open(truncated);
+            fail();
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+
+    /* offset + length wraps to a negative int, which used to pass the bounds check */
+    @Test
+    public void sectionPastTheEndIsRefused() throws IOException {
+        Map<String, byte[]> scenes = new LinkedHashMap<>();
+        scenes.put("a", new byte[]{1, 2, 3});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TnglBundle.write(scenes, new byte[TnglBundle.HASH_SIZE], out);
+        ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        /* magic, version, count and hash, then the name length and name of the scene */
+        int section = 4 + 2 + 2 + TnglBundle.HASH_SIZE + 1 + 1;
+        bytes.putInt(section, Integer.MAX_VALUE - 1);
+        bytes.putInt(section + 4, 3);
+        try {
+            new TnglBundle(bytes);
+            fail();
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+}
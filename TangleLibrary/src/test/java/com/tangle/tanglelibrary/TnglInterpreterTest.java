@@ -0,0 +1,90 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TnglInterpreterTest {
+
+    private static TnglInterpreter load(int pixels, String tngl) {
+        TnglInterpreter interpreter = new TnglInterpreter(pixels);
+        interpreter.load(new TangleParse().getPayload(tngl));
+        return interpreter;
+    }
+
+    private static byte[] strip(int pixels, int r, int g, int b) {
+        byte[] rgb = new byte[pixels * 3];
+        for (int i = 0; i < rgb.length; i += 3) {
+            rgb[i] = (byte) r;
+            rgb[i + 1] = (byte) g;
+            rgb[i + 2] = (byte) b;
+        }
+        return rgb;
+    }
+
+    @Test
+    public void drawingsFollowTheTimeline() {
+        TnglInterpreter interpreter = load(4, "setDrawing(0, 1000, animFill(1000, #ff0000));\n"
+                + "addDrawing(500, 1000, animFill(1000, #0000ff));\n");
+
+        assertArrayEquals(strip(4, 255, 0, 0), interpreter.render(250));
+        assertArrayEquals(strip(4, 255, 0, 255), interpreter.render(750));
+        assertArrayEquals(strip(4, 0, 0, 255), interpreter.render(1200));
+        assertArrayEquals(strip(4, 0, 0, 0), interpreter.render(2000));
+    }
+
+    @Test
+    public void windowsShiftTimeAndModifiersApply() {
+        TnglInterpreter interpreter = load(3, "setWindow(1000, 1000, {\n"
+                + "  setDrawing(0, 1000, animFill(1000, #c8c8c8).modifyBrightness(50%));\n"
+                + "  subDrawing(500, 500, animFill(500, #0a0a0a));\n"
+                + "});\n");
+
+        assertArrayEquals(strip(3, 0, 0, 0), interpreter.render(500));
+        assertArrayEquals(strip(3, 99, 99, 99), interpreter.render(1200));
+        assertArrayEquals(strip(3, 89, 89, 89), interpreter.render(1700));
+    }
+
+    @Test
+    public void definedAnimationsRenderTheirBody() {
+        TnglInterpreter interpreter = load(10, "defAnimation(0x01, {\n"
+                + "  setDrawing(0, 1000, animLoadingBar(1000, #ffffff, #000000));\n"
+                + "});\n"
+                + "setDrawing(0, 4000, animationDefined(0x01, 1000).modifyColorSwitch(MODIFIER_SWITCH_NONE));\n");
+
+        byte[] frame = interpreter.render(2500);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("pixel " + i, i < 5 ? (byte) 255 : 0, frame[i * 3]);
+        }
+    }
+
+    @Test
+    public void rainbowGoldenFrame() {
+        TnglInterpreter interpreter = load(6, "setDrawing(0, 600, animRainbow(600, 100%));");
+
+        assertArrayEquals(new byte[]{
+                (byte) 255, 0, 0,
+                (byte) 255, (byte) 255, 0,
+                0, (byte) 255, 0,
+                0, (byte) 255, (byte) 255,
+                0, 0, (byte) 255,
+                (byte) 255, 0, (byte) 255}, interpreter.render(0));
+    }
+
+    @Test
+    public void channelsEvaluateValues() {
+        TnglInterpreter interpreter = load(1, "writeChannel(0x01, addValues(constant(2), constant(3)));\n"
+                + "writeChannel(0x02, mulValues(channel(0x01), eventParameterValue(0x05)));\n");
+        interpreter.setEventParameter(5, 7);
+        interpreter.render(0);
+
+        assertEquals(5, interpreter.getChannel(1));
+        assertEquals(35, interpreter.getChannel(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedOpcodesAreRejected() {
+        load(1, "defDevice1(0x01, 0x00, 120);");
+    }
+}
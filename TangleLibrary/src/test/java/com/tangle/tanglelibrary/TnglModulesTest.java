@@ -0,0 +1,156 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TnglModulesTest {
+
+    private static final String DEVICES = "defDevice1(0x00, 0x01, 0x02, 0x03, 0x04);\n";
+    private static final String GROUPS = "defGroup(0x01, device(0x00));\n";
+    private static final String ANIMATIONS = "defAnimation(0x05, {\n  addDrawing(0, 1000, animFill(1000, #ff0000));\n});\n";
+
+    private static byte[] compile(String code, TnglModules modules) throws IOException {
+        TangleParse parser = new TangleParse();
+        parser.setModules(modules);
+        UploadPipeline.PayloadBuffer bytecode = new UploadPipeline.PayloadBuffer(256);
+        parser.getPayload(new StringReader(code), bytecode);
+        return bytecode.toByteArray();
+    }
+
+    private static TnglModules library() {
+        TnglModules modules = new TnglModules();
+        modules.put("devices", DEVICES);
+        modules.put("groups", "include \"devices\"\n" + GROUPS);
+        modules.put("animations", "include \"devices\"\n" + ANIMATIONS);
+        return modules;
+    }
+
+    @Test
+    public void includedModulesCompileLikeInlineCode() throws IOException {
+        String scene = "addDrawing(0, 5000, animationDefined(0x05));\n";
+        byte[] inline = compile(DEVICES + GROUPS + ANIMATIONS + scene, null);
+        byte[] included = compile("include \"groups\"\ninclude \"animations\"\n" + scene, library());
+        assertArrayEquals(inline, included);
+    }
+
+    @Test
+    public void fragmentsAreCompiledOnce() throws IOException {
+        TnglModules modules = library();
+        compile("include \"groups\"\ninclude \"animations\"\n", modules);
+        assertEquals(3, modules.getCompileCount());
+        for (int scene = 0; scene < 10; scene++) {
+            compile("include \"animations\"\ninclude \"groups\"\nsetDrawing(" + scene + ", 100, animNone());\n", modules);
+        }
+        assertEquals(3, modules.getCompileCount());
+
+        /* only the changed module and the ones including it */
+        modules.put("devices", "defDevice1(0x00, 0x01, 0x02, 0x03, 0x09);\n");
+        compile("include \"groups\"\ninclude \"animations\"\n", modules);
+        assertEquals(6, modules.getCompileCount());
+        modules.put("groups", "include \"devices\"\n" + GROUPS + GROUPS);
+        compile("include \"groups\"\ninclude \"animations\"\n", modules);
+        assertEquals(7, modules.getCompileCount());
+
+        /* reverting hits the cache again */
+        modules.put("devices", DEVICES);
+        modules.put("groups", "include \"devices\"\n" + GROUPS);
+        compile("include \"groups\"\ninclude \"animations\"\n", modules);
+        assertEquals(7, modules.getCompileCount());
+    }
+
+    @Test
+    public void macrosExpandWithArguments() throws IOException {
+        TnglModules modules = new TnglModules();
+        modules.put("macros", "macro flash(color, duration)\n"
+                + "  addDrawing(0, duration, animFill(duration, color));\n"
+                + "  addDrawing(duration, duration, animFill(duration, #000000));\n"
+                + "endMacro\n"
+                + "macro flashRed(duration)\n"
+                + "  flash(#ff0000, duration)\n"
+                + "endMacro\n");
+        byte[] expanded = compile("include \"macros\"\nsetDrawing(0, 100, animNone()); flashRed(500) // red\n", modules);
+        byte[] inline = compile("setDrawing(0, 100, animNone()); addDrawing(0, 500, animFill(500, #ff0000));\n"
+                + "  addDrawing(500, 500, animFill(500, #000000));\n", null);
+        assertArrayEquals(inline, expanded);
+    }
+
+    @Test
+    public void slotsInModulesArePatched() throws IOException {
+        TnglModules modules = new TnglModules();
+        modules.put("device", "defDevice1($id, 0x01, 0x02, 0x03, 0x04);\n");
+        TnglTemplate template = TnglTemplate.compile(new StringReader("include \"device\"\nsetDrawing(0, 100, animNone());\n"), modules);
+        byte[] specialized = template.specialize(Collections.singletonMap("id", 7));
+        assertArrayEquals(compile("defDevice1(0x07, 0x01, 0x02, 0x03, 0x04);\nsetDrawing(0, 100, animNone());\n", null), specialized);
+    }
+
+    @Test
+    public void reportsMistakes() {
+        TnglModules modules = new TnglModules();
+        modules.put("a", "include \"b\"\n");
+        modules.put("b", "include \"a\"\n");
+        modules.put("open", "macro open(x)\n  animFill(x, #ffffff)\n");
+        modules.put("arity", "macro pair(a, b)\nanimFill(a, b)\nendMacro\npair(1)\n");
+        modules.put("deep", "macro deep(x)\ndeep(x)\nendMacro\n");
+        for (String code : new String[]{"include \"a\"\n", "include \"missing\"\n", "include \"open\"\n", "include \"arity\"\n",
+                "include \"deep\"\ndeep(1)\n", "addDrawing(0, 100, flsh(#ff0000, 100));\n"}) {
+            try {
+                compile(code, modules);
+                fail("Compiled " + code);
+            } catch (IOException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void stringCompileThrowsWithTheLine() {
+        try {
+            new TangleParse().getPayload("setDrawing(0, 100, animNone());\n\naddDrawing(0, 100, flash(#ff0000, 100));\n");
+            fail("Compiled an unknown macro");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("line 3"));
+        }
+    }
+
+    @Test
+    public void failedCompileClosesItsSpans() {
+        ArrayDeque<String> open = new ArrayDeque<>();
+        TangleParse parser = new TangleParse();
+        parser.setTracer(new TangleTracer() {
+            @Override
+            public void begin(String name) {
+                open.push(name);
+            }
+
+            @Override
+            public void end(String name) {
+                assertEquals(open.pop(), name);
+            }
+
+            @Override
+            public void asyncBegin(String name, long id) {
+            }
+
+            @Override
+            public void asyncEnd(String name, long id) {
+            }
+        });
+        parser.setModules(new TnglModules());
+        try {
+            parser.getPayload(new StringReader("setDrawing(0, 100, animNone());\ninclude \"missing\"\n"),
+                    new UploadPipeline.PayloadBuffer(64));
+            fail("Compiled a missing include");
+        } catch (IOException expected) {
+            assertTrue(open.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TnglTemplateTest {
+
+    private static final String TEMPLATE = "defDevice1($dev, 0x01, 0x02, 0x03, 0x04);\n"
+            + "addDrawing($start:i32, 2000, animFill(2000, $color:rgb));\n"
+            + "addDrawing(2000, 2000, animFill(2000, $color:rgb));\n";
+
+    private static byte[] compile(int device, int start, String color) throws IOException {
+        String code = String.format("defDevice1(0x%02x, 0x01, 0x02, 0x03, 0x04);\n", device)
+                + "addDrawing(" + start + ", 2000, animFill(2000, " + color + "));\n"
+                + "addDrawing(2000, 2000, animFill(2000, " + color + "));\n";
+        UploadPipeline.PayloadBuffer bytecode = new UploadPipeline.PayloadBuffer(256);
+        new TangleParse().getPayload(new StringReader(code), bytecode);
+        return bytecode.toByteArray();
+    }
+
+    private static Map<String, Integer> values(int device, int start, int color) {
+        Map<String, Integer> values = new HashMap<>();
+        values.put("dev", device);
+        values.put("start", start);
+        values.put("color", color);
+        return values;
+    }
+
+    @Test
+    public void specializedBytecodeMatchesTheLiteralScript() throws IOException {
+        TnglTemplate template = TnglTemplate.compile(TEMPLATE);
+        assertEquals(Arrays.asList("dev", "start", "color"), new ArrayList<>(template.getSlotNames()));
+        assertEquals(compile(7, 0, "#000000").length, template.getSize());
+
+        assertArrayEquals(compile(7, 500, "#ff8000"), template.specialize(values(7, 500, 0xff8000)));
+        /* the template itself is left alone, a second device gets its own values */
+        assertArrayEquals(compile(0xfe, -250, "#0080ff"), template.specialize(values(0xfe, -250, 0x0080ff)));
+    }
+
+    @Test
+    public void missingValueIsRefused() throws IOException {
+        TnglTemplate template = TnglTemplate.compile(TEMPLATE);
+        Map<String, Integer> values = values(7, 500, 0xff8000);
+        values.remove("color");
+        try {
+            template.specialize(values);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage().contains("$color"));
+        }
+    }
+
+    @Test
+    public void specializingOnAnExecutorKeepsTheOrder() throws Exception {
+        TnglTemplate template = TnglTemplate.compile(TEMPLATE);
+        List<Map<String, Integer>> devices = new ArrayList<>();
+        for (int device = 0; device < 16; device++) {
+            devices.add(values(device, device * 100, device * 0x010101));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<byte[]> specialized = template.specialize(devices, executor);
+            assertEquals(devices.size(), specialized.size());
+            for (int device = 0; device < devices.size(); device++) {
+                assertArrayEquals(template.specialize(devices.get(device)), specialized.get(device));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void missingValueFailsTheBatch() throws Exception {
+        TnglTemplate template = TnglTemplate.compile(TEMPLATE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            template.specialize(Arrays.asList(values(1, 0, 0), new HashMap<>()), executor);
+            fail();
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cancelling and timing out uploads the way the service wires its futures, against
+ * {@link SimulatedLink} in virtual time.
+ */
+public class UploadFutureTest {
+
+    private static final int CAPACITY = 4;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final UploadFuture.Scheduler scheduler = (task, delayMillis) -> {
+        clock.schedule(delayMillis, task);
+        return true;
+    };
+    private final SimulatedLink link = new SimulatedLink(clock, 23, CAPACITY);
+
+    private static byte[] payload(int id, int size) {
+        byte[] payload = new byte[size];
+        payload[0] = (byte) id;
+        return payload;
+    }
+
+    private UploadFuture upload(byte[] payload) throws InterruptedException {
+        UploadFuture future = new UploadFuture(scheduler);
+        future.setCanceller(() -> link.getPipeline().cancel(future));
+        link.getPipeline().submit(future, ByteBuffer.wrap(payload));
+        return future;
+    }
+
+    private UploadFuture uploadProgram(byte[] program) throws InterruptedException {
+        UploadFuture future = new UploadFuture(scheduler);
+        future.setCanceller(() -> link.getPipeline().cancel(future));
+        link.getPipeline().submitProgram(future, () -> new ByteBuffer[]{ByteBuffer.wrap(program)});
+        return future;
+    }
+
+    private void connect() {
+        link.getConnection().connect();
+        clock.runFor(1000);
+        assertTrue(link.getConnection().isReady());
+    }
+
+    private static Throwable failure(UploadFuture future) throws InterruptedException {
+        try {
+            future.get();
+            throw new AssertionError("completed normally");
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void cancelledUploadIsNeverSent() throws InterruptedException {
+        UploadFuture cancelled = upload(payload(1, 100));
+        UploadFuture kept = upload(payload(2, 100));
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, link.getPipeline().getQueueDepth());
+
+        connect();
+        assertTrue(cancelled.isCancelled());
+        assertTrue(kept.isDone() && !kept.isCompletedExceptionally());
+        assertEquals(1, link.getDelivered().size());
+        assertArrayEquals(payload(2, 100), link.getDelivered().get(0));
+    }
+
+    @Test
+    public void timeoutWithdrawsTheUpload() throws InterruptedException {
+        UploadFuture timedOut = upload(payload(1, 100)).withTimeout(200);
+        clock.runFor(100);
+        assertFalse(timedOut.isDone());
+        clock.runFor(200);
+        assertTrue(failure(timedOut) instanceof TimeoutException);
+        assertEquals(0, link.getPipeline().getQueueDepth());
+
+        connect();
+        assertEquals(0, link.getDelivered().size());
+    }
+
+    @Test
+    public void cancelStopsATransferMidway() throws InterruptedException {
+        link.setMtu(23);
+        connect();
+        int[] acknowledged = new int[1];
+        UploadFuture cancelled = upload(payload(1, 2000)).addProgressListener((done, length) -> acknowledged[0] = done);
+        for (int i = 0; i < 10000 && acknowledged[0] == 0 && clock.runNext(); i++) {
+            // run
+        }
+        assertTrue(acknowledged[0] > 0 && acknowledged[0] < 2000);
+        assertTrue(cancelled.cancel(false));
+        int framesReceived = link.getFramesReceived();
+
+        UploadFuture next = upload(payload(2, 100));
+        clock.runFor(5000);
+        assertTrue(next.isDone() && !next.isCompletedExceptionally());
+        assertEquals(1, link.getDelivered().size());
+        assertArrayEquals(payload(2, 100), link.getDelivered().get(0));
+        /* at most the frame already in flight, then only the next payload */
+        assertTrue(link.getFramesReceived() - framesReceived <= 1 + (100 + 7) / 8);
+        assertTrue(link.getPipeline().isIdle());
+    }
+
+    @Test
+    public void cancellingOneWaiterKeepsACoalescedUpload() throws InterruptedException {
+        UploadFuture cancelled = uploadProgram(payload(1, 100));
+        UploadFuture kept = uploadProgram(payload(1, 100));
+        assertEquals(1, link.getPipeline().getQueueDepth());
+        assertTrue(cancelled.cancel(false));
+        assertEquals(1, link.getPipeline().getQueueDepth());
+
+        connect();
+        assertTrue(cancelled.isCancelled());
+        assertTrue(kept.isDone() && !kept.isCompletedExceptionally());
+        assertEquals(1, link.getDelivered().size());
+    }
+
+    @Test
+    public void timeoutAfterDeliveryChangesNothing() throws InterruptedException, ExecutionException {
+        connect();
+        UploadFuture delivered = upload(payload(1, 100)).withTimeout(500);
+        clock.runFor(1000);
+        assertTrue(delivered.isDone() && !delivered.isCompletedExceptionally());
+        assertFalse(delivered.cancel(false));
+        clock.runFor(1000);
+        delivered.get();
+        assertEquals(1, link.getDelivered().size());
+    }
+
+    /* the service's scheduler drops the timeout once the connection is closed */
+    @Test
+    public void timeoutThatCannotBeScheduledFailsTheUpload() throws InterruptedException {
+        UploadFuture future = new UploadFuture((task, delayMillis) -> false);
+        future.setCanceller(() -> link.getPipeline().cancel(future));
+        link.getPipeline().submit(future, ByteBuffer.wrap(payload(1, 100)));
+        future.withTimeout(200);
+        assertTrue(failure(future) instanceof IOException);
+        assertEquals(0, link.getPipeline().getQueueDepth());
+    }
+}
@@ -0,0 +1,518 @@
+package com.tangle.tanglelibrary;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadPipelineTest {
+
+    private static final int CAPACITY = 4;
+
+    private final VirtualClock clock = new VirtualClock();
+    private final SimulatedLink link = new SimulatedLink(clock, 11, CAPACITY);
+    private final List<String> results = new ArrayList<>();
+
+    /* target and bytes of every frame handed to the radio */
+    private final List<Integer> targets = new ArrayList<>();
+    private final List<byte[]> frames = new ArrayList<>();
+    private final List<Runnable> compiles = new ArrayList<>();
+
+    private static byte[] payload(int id) {
+        byte[] payload = new byte[100];
+        payload[0] = (byte) id;
+        return payload;
+    }
+
+    private void submit(int id) throws InterruptedException {
+        link.getPipeline().submit(delivered -> results.add(id + (delivered ? " delivered" : " failed")), ByteBuffer.wrap(payload(id)));
+    }
+
+    private void connect() {
+        link.getConnection().connect();
+        clock.runFor(5000);
+        assertTrue(link.getConnection().isReady());
+    }
+
+    private UploadPipeline framing(int packetSize) {
+        UploadPipeline pipeline = new UploadPipeline((target, frame) -> {
+            targets.add(target);
+            frames.add(frame);
+            return true;
+        }, compiles::add, CAPACITY);
+        pipeline.setPacketSize(packetSize);
+        pipeline.resume(() -> {
+        });
+        return pipeline;
+    }
+
+    private static byte[] bytes(int first, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    private static int header(byte[] frame, int field) {
+        return ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN).getInt(field * 4);
+    }
+
+    /* acknowledges frames until the pipeline has nothing left to send */
+    private static void acknowledgeAll(UploadPipeline pipeline) {
+        for (int i = 0; i < 1000 && !pipeline.isIdle(); i++) {
+            pipeline.onFrameWritten(true);
+        }
+        assertTrue(pipeline.isIdle());
+    }
+
+    @Test
+    public void rejectRefusesWhenFull() throws InterruptedException {
+        link.getPipeline().setBackpressure(UploadPipeline.BACKPRESSURE_REJECT);
+        for (int id = 1; id <= CAPACITY + 1; id++) {
+            submit(id);
+        }
+        assertEquals(CAPACITY, link.getPipeline().getQueueDepth());
+        assertEquals(1, results.size());
+        assertEquals((CAPACITY + 1) + " failed", results.get(0));
+
+        connect();
+        assertEquals(CAPACITY, link.getDelivered().size());
+        for (int id = 1; id <= CAPACITY; id++) {
+            assertArrayEquals(payload(id), link.getDelivered().get(id - 1));
+        }
+        assertEquals(1, link.getMetrics().snapshot().uploadsDropped);
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewest() throws InterruptedException {
+        link.getPipeline().setBackpressure(UploadPipeline.BACKPRESSURE_DROP_OLDEST);
+        for (int id = 1; id <= CAPACITY + 2; id++) {
+            submit(id);
+        }
+        assertEquals(CAPACITY, link.getPipeline().getQueueDepth());
+        assertEquals(2, results.size());
+        assertEquals("1 failed", results.get(0));
+        assertEquals("2 failed", results.get(1));
+
+        connect();
+        assertEquals(CAPACITY, link.getDelivered().size());
+        for (int id = 3; id <= CAPACITY + 2; id++) {
+            assertArrayEquals(payload(id), link.getDelivered().get(id - 3));
+        }
+        assertEquals(2, link.getMetrics().snapshot().uploadsDropped);
+    }
+
+    private void submitProgram(String name, ByteBuffer... parts) throws InterruptedException {
+        link.getPipeline().submitProgram(delivered -> results.add(name + (delivered ? " delivered" : " failed")), () -> parts);
+    }
+
+    @Test
+    public void identicalProgramsAreCoalesced() throws InterruptedException {
+        byte[] content = payload(1);
+        submitProgram("1", ByteBuffer.wrap(content));
+        submitProgram("2", ByteBuffer.wrap(payload(2)));
+        /* the same bytes split into other parts */
+        submitProgram("1 again", ByteBuffer.wrap(content, 0, 30), ByteBuffer.wrap(content, 30, 70));
+        assertEquals(2, link.getPipeline().getQueueDepth());
+        assertEquals(1, link.getMetrics().snapshot().uploadsCoalesced);
+
+        connect();
+        assertEquals(2, link.getDelivered().size());
+        assertEquals(3, results.size());
+        assertTrue(results.contains("1 delivered") && results.contains("1 again delivered") && results.contains("2 delivered"));
+    }
+
+    /* events and timeline records are meant to repeat */
+    @Test
+    public void identicalWritesAreAllSent() throws InterruptedException {
+        submit(1);
+        submit(1);
+        link.getPipeline().submit(ByteBuffer.wrap(payload(1)));
+        assertEquals(3, link.getPipeline().getQueueDepth());
+
+        connect();
+        assertEquals(0, link.getMetrics().snapshot().uploadsCoalesced);
+        assertEquals(Arrays.asList("1 delivered", "1 delivered"), results);
+        /* the controller remembers the last payload and drops the frames of a repeat */
+        assertEquals(1, link.getDelivered().size());
+        assertTrue(link.getDuplicateFrames() > 0);
+    }
+
+    /* the payload id is only a CRC32, colliding payloads are told apart byte by byte */
+    @Test
+    public void checksumCollisionsAreNotCoalesced() throws InterruptedException {
+        Random random = new Random(5);
+        Map<Long, byte[]> seen = new HashMap<>();
+        byte[] first = null;
+        byte[] second = null;
+        while (second == null) {
+            byte[] candidate = new byte[8];
+            random.nextBytes(candidate);
+            CRC32 crc = new CRC32();
+            crc.update(candidate);
+            first = seen.put(crc.getValue(), candidate);
+            if (first != null && !Arrays.equals(first, candidate)) {
+                second = candidate;
+            }
+        }
+        submitProgram("first", ByteBuffer.wrap(first));
+        submitProgram("second", ByteBuffer.wrap(second));
+        assertEquals(2, link.getPipeline().getQueueDepth());
+        assertEquals(0, link.getMetrics().snapshot().uploadsCoalesced);
+    }
+
+    /* callbacks are delivered on threads that must never wait, their uploads go over the capacity */
+    @Test
+    public void callbacksSubmitWithoutWaiting() throws InterruptedException {
+        connect();
+        link.getPipeline().submit(delivered -> {
+            try {
+                for (int id = 10; id < 10 + CAPACITY + 2; id++) {
+                    submit(id);
+                }
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }, ByteBuffer.wrap(payload(1)));
+        for (int i = 0; i < 10000 && clock.runNext(); i++) {
+            // run
+        }
+        assertEquals(1 + CAPACITY + 2, link.getDelivered().size());
+        assertEquals(CAPACITY + 2, results.size());
+    }
+
+    @Test
+    public void blockWaitsOnTheCallerUntilThereIsRoom() throws InterruptedException {
+        UploadPipeline pipeline = new UploadPipeline((target, frame) -> true, Runnable::run, CAPACITY);
+        List<UploadPipeline.UploadCallback> queued = new ArrayList<>();
+        for (int id = 0; id < CAPACITY; id++) {
+            UploadPipeline.UploadCallback callback = delivered -> {
+            };
+            queued.add(callback);
+            pipeline.submit(callback, ByteBuffer.wrap(payload(id)));
+        }
+        Thread caller = new Thread(() -> {
+            try {
+                pipeline.submit(ByteBuffer.wrap(payload(CAPACITY)));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        caller.start();
+        awaitWaiting(caller);
+
+        pipeline.cancel(queued.get(0));
+        caller.join(2000);
+        assertFalse(caller.isAlive());
+        assertEquals(CAPACITY, pipeline.getQueueDepth());
+    }
+
+    @Test
+    public void closingRefusesWaitingSubmissions() throws InterruptedException {
+        UploadPipeline pipeline = new UploadPipeline((target, frame) -> true, Runnable::run, CAPACITY);
+        for (int id = 0; id < CAPACITY; id++) {
+            pipeline.submit(ByteBuffer.wrap(payload(id)));
+        }
+        List<Boolean> waited = new ArrayList<>();
+        Thread caller = new Thread(() -> {
+            try {
+                pipeline.submit(waited::add, ByteBuffer.wrap(payload(CAPACITY)));
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        });
+        caller.start();
+        awaitWaiting(caller);
+
+        pipeline.clear();
+        caller.join(2000);
+        assertFalse(caller.isAlive());
+        assertEquals(1, waited.size());
+        assertFalse(waited.get(0));
+        /* nothing is left over for the next connection */
+        assertEquals(0, pipeline.getQueueDepth());
+    }
+
+    /*
+     * The service runs its timers on a looper thread. Submitting there with a full queue while the
+     * link is down must neither wait nor hold back the reconnect.
+     */
+    @Test
+    public void fullQueueDoesNotStallTheLooper() throws Exception {
+        ScheduledExecutorService looper = new ScheduledThreadPoolExecutor(1, task -> new Thread(() -> {
+            UploadPipeline.forbidWaiting();
+            task.run();
+        }));
+        try {
+            UploadPipeline pipeline = new UploadPipeline((target, frame) -> true, Runnable::run, CAPACITY);
+            AtomicInteger connects = new AtomicInteger();
+            ConnectionStateMachine connection = new ConnectionStateMachine(new ConnectionStateMachine.Link() {
+                @Override
+                public void connect() {
+                    connects.incrementAndGet();
+                }
+
+                @Override
+                public void discoverServices() {
+                }
+
+                @Override
+                public void resync() {
+                }
+
+                @Override
+                public void postDelayed(Runnable task, long delayMillis) {
+                    looper.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public void abort() {
+                }
+
+                @Override
+                public void onStateChanged(int state) {
+                }
+            });
+            connection.connect();
+
+            looper.submit(() -> {
+                for (int id = 0; id < CAPACITY + 2; id++) {
+                    pipeline.submit(ByteBuffer.wrap(payload(id)));
+                }
+                return null;
+            }).get(2, TimeUnit.SECONDS);
+            assertEquals(CAPACITY + 2, pipeline.getQueueDepth());
+
+            pipeline.pause();
+            connection.onDisconnected();
+            for (int i = 0; i < 200 && connects.get() < 2; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, connects.get());
+        } finally {
+            looper.shutdownNow();
+        }
+    }
+
+    @Test
+    public void partsAreCutIntoHeaderedFrames() throws InterruptedException {
+        UploadPipeline pipeline = framing(32);
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 30)), ByteBuffer.wrap(bytes(30, 20)));
+        acknowledgeAll(pipeline);
+
+        assertEquals(3, frames.size());
+        int chunk = 32 - UploadPipeline.HEADER_SIZE;
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            assertEquals(header(frames.get(0), 0), header(frame, 0));
+            assertEquals(i * chunk, header(frame, 1));
+            assertEquals(50, header(frame, 2));
+            int size = Math.min(chunk, 50 - i * chunk);
+            assertEquals(UploadPipeline.HEADER_SIZE + size, frame.length);
+            byte[] body = new byte[size];
+            System.arraycopy(frame, UploadPipeline.HEADER_SIZE, body, 0, size);
+            assertArrayEquals(bytes(i * chunk, size), body);
+        }
+    }
+
+    @Test
+    public void oneFrameIsInFlightAtATime() throws InterruptedException {
+        UploadPipeline pipeline = framing(32);
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 100)));
+        pipeline.submit(ByteBuffer.wrap(bytes(100, 10)));
+        assertEquals(1, frames.size());
+        pipeline.onFrameWritten(true);
+        assertEquals(2, frames.size());
+        acknowledgeAll(pipeline);
+        /* 100 bytes in five frames, then the second upload */
+        assertEquals(6, frames.size());
+        assertEquals(10, header(frames.get(5), 2));
+    }
+
+    @Test
+    public void failedFrameIsRetriedThenGivenUp() throws InterruptedException {
+        UploadPipeline pipeline = framing(512);
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 10)));
+        pipeline.submit(ByteBuffer.wrap(bytes(10, 10)));
+        for (int i = 0; i < UploadPipeline.MAX_RETRIES; i++) {
+            pipeline.onFrameWritten(false);
+            assertArrayEquals(frames.get(0), frames.get(i + 1));
+        }
+        pipeline.onFrameWritten(false);
+        assertEquals(10, frames.get(frames.size() - 1)[UploadPipeline.HEADER_SIZE]);
+        acknowledgeAll(pipeline);
+    }
+
+    @Test
+    public void compilingUploadHoldsBackTheOnesBehindIt() throws InterruptedException {
+        UploadPipeline pipeline = framing(512);
+        Callable<ByteBuffer[]> compiler = () -> new ByteBuffer[]{ByteBuffer.wrap(bytes(0, 5))};
+        pipeline.submit(compiler);
+        pipeline.submit(ByteBuffer.wrap(bytes(50, 5)));
+        assertEquals(0, frames.size());
+
+        compiles.remove(0).run();
+        assertEquals(1, frames.size());
+        assertEquals(0, frames.get(0)[UploadPipeline.HEADER_SIZE]);
+        acknowledgeAll(pipeline);
+        assertEquals(2, frames.size());
+        assertEquals(50, frames.get(1)[UploadPipeline.HEADER_SIZE]);
+    }
+
+    @Test
+    public void rawValueGoesOutUnframed() throws InterruptedException {
+        UploadPipeline pipeline = framing(512);
+        pipeline.submitRaw(UploadPipeline.TARGET_SYNC, new byte[]{0});
+        assertEquals(1, frames.size());
+        assertEquals(UploadPipeline.TARGET_SYNC, (int) targets.get(0));
+        assertArrayEquals(new byte[]{0}, frames.get(0));
+        acknowledgeAll(pipeline);
+    }
+
+    @Test
+    public void pausedPipelineHoldsEverythingBack() throws InterruptedException {
+        UploadPipeline pipeline = framing(512);
+        pipeline.pause();
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 10)));
+        assertEquals(0, frames.size());
+        assertEquals(1, pipeline.getQueueDepth());
+    }
+
+    /* after a dropout the resync goes out first, then the interrupted upload from its first frame */
+    @Test
+    public void droppedUploadIsReplayedAfterTheResync() throws InterruptedException {
+        UploadPipeline pipeline = framing(32);
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 60)));
+        pipeline.onFrameWritten(true);
+        assertEquals(2, frames.size());
+        pipeline.submitRaw(UploadPipeline.TARGET_SYNC, new byte[]{1});
+
+        pipeline.pause();
+        frames.clear();
+        targets.clear();
+        pipeline.resume(() -> pipeline.submitRaw(UploadPipeline.TARGET_SYNC, new byte[]{0}));
+        acknowledgeAll(pipeline);
+
+        /* the stale sync value is dropped */
+        assertEquals(4, frames.size());
+        assertArrayEquals(new byte[]{0}, frames.get(0));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(UploadPipeline.TARGET_TERMINAL, (int) targets.get(i));
+            assertEquals((i - 1) * 20, header(frames.get(i), 1));
+        }
+    }
+
+    @Test
+    public void clearDropsEverything() throws InterruptedException {
+        UploadPipeline pipeline = framing(32);
+        pipeline.submit(ByteBuffer.wrap(bytes(0, 60)));
+        pipeline.submit(ByteBuffer.wrap(bytes(60, 60)));
+        pipeline.clear();
+        assertEquals(0, pipeline.getQueueDepth());
+        frames.clear();
+        pipeline.resume(() -> {
+        });
+        assertEquals(0, frames.size());
+        assertTrue(pipeline.isIdle());
+    }
+
+    /* refuses every frame whose payload starts with a zero byte, and the first refusals[0] of the others */
+    private UploadPipeline busy(int[] refusals, List<Long> delays, List<Runnable> scheduled) {
+        UploadPipeline pipeline = new UploadPipeline((target, frame) -> {
+            if (frame[UploadPipeline.HEADER_SIZE] == 0 || refusals[0]-- > 0) {
+                return false;
+            }
+            frames.add(frame);
+            return true;
+        }, Runnable::run, CAPACITY);
+        pipeline.setPacketSize(32);
+        pipeline.setRetryScheduler((task, delayMillis) -> {
+            delays.add(delayMillis);
+            scheduled.add(task);
+        });
+        pipeline.resume(() -> {
+        });
+        return pipeline;
+    }
+
+    @Test
+    public void refusedFrameIsWrittenAgainAfterABackoff() throws InterruptedException {
+        List<Long> delays = new ArrayList<>();
+        List<Runnable> scheduled = new ArrayList<>();
+        UploadPipeline pipeline = busy(new int[]{2}, delays, scheduled);
+        pipeline.submit(delivered -> results.add(delivered ? "delivered" : "failed"), ByteBuffer.wrap(bytes(1, 10)));
+        assertEquals(Arrays.asList(10L), delays);
+        /* another submission does not cut the backoff short */
+        pipeline.submit(ByteBuffer.wrap(bytes(20, 10)));
+        assertEquals(0, frames.size());
+
+        scheduled.remove(0).run();
+        assertEquals(Arrays.asList(10L, 20L), delays);
+        scheduled.remove(0).run();
+        assertEquals(1, frames.size());
+        acknowledgeAll(pipeline);
+        assertEquals(Arrays.asList("delivered"), results);
+        assertEquals(2, frames.size());
+    }
+
+    @Test
+    public void frameRefusedTooOftenFailsItsUpload() throws InterruptedException {
+        List<Long> delays = new ArrayList<>();
+        List<Runnable> scheduled = new ArrayList<>();
+        UploadPipeline pipeline = busy(new int[]{0}, delays, scheduled);
+        /* two frames, the second one is never written */
+        pipeline.submit(delivered -> results.add("1 " + (delivered ? "delivered" : "failed")), ByteBuffer.wrap(bytes(0, 30)));
+        pipeline.submit(delivered -> results.add("2 " + (delivered ? "delivered" : "failed")), ByteBuffer.wrap(bytes(50, 10)));
+        while (!scheduled.isEmpty()) {
+            scheduled.remove(0).run();
+        }
+        assertEquals(UploadPipeline.MAX_REFUSALS, delays.size());
+        assertEquals(Arrays.asList(10L, 20L, 40L, 80L, 160L), delays);
+        assertEquals(Arrays.asList("1 failed"), results);
+
+        assertEquals(1, frames.size());
+        acknowledgeAll(pipeline);
+        assertEquals(Arrays.asList("1 failed", "2 delivered"), results);
+    }
+
+    @Test
+    public void dropoutVoidsAScheduledRetry() throws InterruptedException {
+        List<Long> delays = new ArrayList<>();
+        List<Runnable> scheduled = new ArrayList<>();
+        UploadPipeline pipeline = busy(new int[]{1}, delays, scheduled);
+        pipeline.submit(ByteBuffer.wrap(bytes(1, 10)));
+        pipeline.pause();
+        /* the replay after the resync does not wait for the backoff of the old link */
+        pipeline.resume(() -> {
+        });
+        assertEquals(1, frames.size());
+        scheduled.remove(0).run();
+        assertEquals(1, frames.size());
+        acknowledgeAll(pipeline);
+    }
+
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        for (int i = 0; i < 200 && thread.getState() != Thread.State.WAITING; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, thread.getState());
+    }
+}
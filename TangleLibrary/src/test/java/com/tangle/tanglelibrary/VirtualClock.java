@@ -0,0 +1,76 @@
+package com.tangle.tanglelibrary;
+
+import java.util.PriorityQueue;
+
+/**
+ * Discrete event clock for simulations: time only moves when the next scheduled task runs.
+ */
+public class VirtualClock implements TangleMetrics.TimeSource {
+
+    private static class Task implements Comparable<Task> {
+        final long time;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (time != other.time) {
+                return Long.compare(time, other.time);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    public long millis() {
+        return now / 1000000;
+    }
+
+    public void schedule(long delayMillis, Runnable runnable) {
+        scheduleNanos(delayMillis * 1000000, runnable);
+    }
+
+    public void scheduleNanos(long delayNanos, Runnable runnable) {
+        tasks.add(new Task(now + Math.max(0, delayNanos), sequence++, runnable));
+    }
+
+    public int pending() {
+        return tasks.size();
+    }
+
+    public boolean runNext() {
+        Task task = tasks.poll();
+        if (task == null) {
+            return false;
+        }
+        now = task.time;
+        task.runnable.run();
+        return true;
+    }
+
+    public void runUntil(long millis) {
+        long limit = millis * 1000000;
+        while (!tasks.isEmpty() && tasks.peek().time <= limit) {
+            runNext();
+        }
+        now = Math.max(now, limit);
+    }
+
+    public void runFor(long millis) {
+        runUntil(millis() + millis);
+    }
+}